@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.ResultCommand;
+
+/**
+ * A result that only carries a payload of a fixed size
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class BenchmarkResult extends ResultCommand {
+
+    private final byte[] payload;
+
+    public BenchmarkResult(int payloadSize) {
+        this.payload = new byte[payloadSize];
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+}
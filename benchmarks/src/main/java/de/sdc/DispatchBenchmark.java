@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the round trip of tasks through a server and clients on the
+ * loopback interface. Every operation adds a task and waits for its result,
+ * which the clients return right away. The throughput is the number of tasks
+ * per second, the sample time shows the percentiles of the round trip, e.g.
+ * the p99. The benchmark runs for both engines of the server
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(16)
+public class DispatchBenchmark {
+
+    private static final int PORT = 10400;
+
+    @Param({"BLOCKING", "NIO"})
+    private ServerEngine engine;
+
+    @Param({"1", "4"})
+    private int clients;
+
+    @Param({"16", "4096"})
+    private int payloadSize;
+
+    private Server<BenchmarkTask, BenchmarkResult> server;
+    private final List<ClientRunner<BenchmarkTask, BenchmarkResult>> runners = new ArrayList<>();
+    private final List<Thread> runnerThreads = new ArrayList<>();
+
+    @Setup
+    public void setup() throws IOException, InterruptedException {
+        server = new Server<>(PORT, engine);
+        server.setResultSink(new ResultSink<BenchmarkTask, BenchmarkResult>() {
+            @Override
+            public void resultReceived(BenchmarkTask task, BenchmarkResult result) throws IOException {
+            }
+        });
+        server.start();
+        for (int i = 0; i < clients; i++) {
+            final ClientRunner<BenchmarkTask, BenchmarkResult> runner = new ClientRunner<>("localhost", PORT,
+                    new TaskExecutor<BenchmarkTask, BenchmarkResult>() {
+                @Override
+                public BenchmarkResult execute(BenchmarkTask task, Initializer initializer) {
+                    return new BenchmarkResult(payloadSize);
+                }
+            });
+            runner.setThreads(2, 2);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runner.run();
+                    } catch (IOException ex) {
+                        throw new IllegalStateException("the client failed", ex);
+                    }
+                }
+            }, "BenchmarkClient-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            runners.add(runner);
+            runnerThreads.add(thread);
+        }
+        while (server.getCurrentClientNumber() < clients) {
+            Thread.sleep(10);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        for (ClientRunner<BenchmarkTask, BenchmarkResult> runner : runners) {
+            runner.stop();
+        }
+        server.close();
+        for (Thread thread : runnerThreads) {
+            thread.join(5000);
+        }
+    }
+
+    @Benchmark
+    public BenchmarkResult roundTrip() throws InterruptedException, ExecutionException {
+        return server.addTask(new BenchmarkTask(payloadSize)).get();
+    }
+}
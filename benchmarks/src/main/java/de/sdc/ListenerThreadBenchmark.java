@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Compares platform and virtual listener threads of the blocking engine under
+ * connection churn. A number of idle clients stay connected the whole time
+ * while churn threads connect, execute one task and disconnect in a loop.
+ * Virtual threads are skipped if the jvm doesn't support them.
+ *
+ * Usage: java -cp target/benchmarks.jar de.sdc.ListenerThreadBenchmark
+ * [idleClients] [churnThreads] [seconds] [port]
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class ListenerThreadBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int idleClients = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        int churnThreads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 10500;
+
+        System.out.println("mode\tidle clients\tconnections/s\tlive threads\tpeak threads\theap MB");
+        run("platform", ListenerThreads.platform(), idleClients, churnThreads, seconds, port);
+        if (ListenerThreads.isVirtualSupported()) {
+            run("virtual", ListenerThreads.virtual(), idleClients, churnThreads, seconds, port + 1);
+        } else {
+            System.out.println("virtual\tnot supported by this jvm (java 21 or newer is needed)");
+        }
+    }
+
+    private static void run(String mode, ThreadFactory factory, int idleClients, int churnThreads, int seconds, final int port) throws Exception {
+        final Server<BenchmarkTask, BenchmarkResult> server = new Server<>(port);
+        server.setListenerThreadFactory(factory);
+        server.start();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        List<Client> idle = new ArrayList<>(idleClients);
+        for (int i = 0; i < idleClients; i++) {
+            idle.add(new Client("localhost", port));
+        }
+
+        final LongAdder connections = new LongAdder();
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        Thread[] churn = new Thread[churnThreads];
+        for (int i = 0; i < churnThreads; i++) {
+            churn[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (System.nanoTime() < end) {
+                            server.addTask(new BenchmarkTask(0));
+                            Client client = new Client("localhost", port);
+                            Command command = client.requestCommand();
+                            if (command.getType() == CommandType.TASK) {
+                                client.sendResult(new BenchmarkResult(0));
+                            }
+                            client.disconnect();
+                            connections.increment();
+                        }
+                    } catch (IOException ex) {
+                        System.err.println(ex);
+                    }
+                }
+            });
+            churn[i].start();
+        }
+        for (Thread thread : churn) {
+            thread.join();
+        }
+
+        System.gc();
+        long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        System.out.printf("%s\t%d\t%.0f\t%d\t%d\t%d%n", mode, idleClients, connections.sum() / (double) seconds,
+                threads.getThreadCount(), threads.getPeakThreadCount(), heap / (1024 * 1024));
+
+        for (Client client : idle) {
+            client.close();
+        }
+        server.close();
+    }
+}
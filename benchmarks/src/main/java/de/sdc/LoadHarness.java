@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Runs a server and simulated workers in one jvm on the loopback interface
+ * for a fixed duration and reports how many tasks the server dispatched, the
+ * latencies of the dispatch and the heap, gc and thread usage. Every worker is
+ * a Client that leases a window of tasks, thinks for a random time (with the
+ * given mean) on every task and returns a result of the given size. With the
+ * failure rate a worker crashes while it works on a task, i.e. it closes its
+ * connection without a disconnect, so the server has to give its tasks to
+ * the other workers. With the disconnect rate it disconnects cleanly after a
+ * result. Both reconnect after a short delay. A feeder keeps a backlog of
+ * available tasks queued, so the workers never run dry. The queue wait grows
+ * with the backlog.
+ *
+ * The heap, gc and thread figures cover the whole jvm, so they include the
+ * simulated workers. Run it with e.g.
+ *
+ * java -cp benchmarks.jar de.sdc.LoadHarness --workers 200 --duration 300
+ * --think 5 --failure 0.001
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class LoadHarness {
+
+    private static final String USAGE = "usage: LoadHarness [--workers n] [--duration seconds] [--think ms] "
+            + "[--payload bytes] [--failure rate] [--disconnect rate] [--window tasks] [--engine BLOCKING|NIO] "
+            + "[--backlog tasks] [--port port] [--report seconds]";
+    private static final long RECONNECT_DELAY = 100;
+
+    private int workers = 16;
+    private long duration = 60;
+    private double thinkTime = 1;
+    private int payloadSize = 256;
+    private double failureRate = 0;
+    private double disconnectRate = 0;
+    private int window = 4;
+    /**
+     * the number of available tasks the feeder keeps, by default one window
+     * for every worker
+     */
+    private int backlog = 0;
+    private ServerEngine engine = ServerEngine.BLOCKING;
+    private int port = 10500;
+    private long reportInterval = 10;
+
+    private final LongAdder results = new LongAdder();
+    private final LongAdder crashes = new LongAdder();
+    private final LongAdder disconnects = new LongAdder();
+    private final LongAdder connectFailures = new LongAdder();
+    private volatile boolean running = true;
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        try {
+            harness.parse(args);
+        } catch (IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(USAGE);
+            System.exit(1);
+        }
+        harness.run();
+        System.exit(0);
+    }
+
+    void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("missing value of " + option);
+            }
+            String value = args[++i];
+            switch (option) {
+                case "--workers":
+                    workers = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    duration = Long.parseLong(value);
+                    break;
+                case "--think":
+                    thinkTime = Double.parseDouble(value);
+                    break;
+                case "--payload":
+                    payloadSize = Integer.parseInt(value);
+                    break;
+                case "--failure":
+                    failureRate = Double.parseDouble(value);
+                    break;
+                case "--disconnect":
+                    disconnectRate = Double.parseDouble(value);
+                    break;
+                case "--window":
+                    window = Integer.parseInt(value);
+                    break;
+                case "--engine":
+                    engine = ServerEngine.valueOf(value);
+                    break;
+                case "--backlog":
+                    backlog = Integer.parseInt(value);
+                    break;
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--report":
+                    reportInterval = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + option);
+            }
+        }
+        if (workers < 1 || duration < 1 || window < 1 || reportInterval < 1) {
+            throw new IllegalArgumentException("workers, duration, window and report must be positive");
+        }
+        if (backlog <= 0) {
+            backlog = workers * window;
+        }
+    }
+
+    void run() throws IOException, InterruptedException {
+        System.out.printf("%d workers, %s engine, think %.1f ms, payload %d bytes, failure rate %s, disconnect rate %s, "
+                + "window %d, backlog %d, %d s%n", workers, engine, thinkTime, payloadSize, failureRate, disconnectRate, window,
+                backlog, duration);
+        final Server<BenchmarkTask, BenchmarkResult> server = new Server<>(port, engine);
+        server.setMetricsEnabled(true);
+        server.setResultSink(new ResultSink<BenchmarkTask, BenchmarkResult>() {
+            @Override
+            public void resultReceived(BenchmarkTask task, BenchmarkResult result) throws IOException {
+                results.increment();
+            }
+        });
+        server.start();
+        Thread feeder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                feed(server);
+            }
+        }, "LoadFeeder");
+        feeder.setDaemon(true);
+        feeder.start();
+
+        Map<String, long[]> gcBefore = gcCounters();
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+        resetHeapPeaks();
+        List<Thread> workerThreads = new ArrayList<>();
+        for (int i = 0; i < workers; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "LoadWorker-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workerThreads.add(worker);
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(duration);
+        long lastResults = 0;
+        long lastReport = start;
+        while (lastReport < end) {
+            //round the rest up, so the last report doesn't cover only a few nanoseconds
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(reportInterval), TimeUnit.NANOSECONDS.toMillis(end - lastReport) + 1));
+            long now = System.nanoTime();
+            long count = results.sum();
+            System.out.printf("%5.0f s: %.0f tasks/s, %d clients%n", (now - start) / 1e9,
+                    (count - lastResults) * 1e9 / (now - lastReport), server.getCurrentClientNumber());
+            lastResults = count;
+            lastReport = now;
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+        running = false;
+        report(server.getMetrics(), elapsed, gcBefore, threads);
+        server.close();
+        for (Thread worker : workerThreads) {
+            worker.join(1000);
+        }
+    }
+
+    /**
+     * keeps the backlog of available tasks queued
+     *
+     * @param server the server the tasks are added to
+     */
+    private void feed(Server<BenchmarkTask, BenchmarkResult> server) {
+        Metrics metrics = server.getMetrics();
+        while (running) {
+            int missing = backlog - metrics.getAvailableTasks();
+            for (int i = 0; i < missing; i++) {
+                server.addTask(new BenchmarkTask(payloadSize));
+            }
+            try {
+                Thread.sleep(1);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * connects a simulated worker and works on the received tasks until the
+     * harness stops. The worker connects again after a crash or disconnect
+     */
+    private void work() {
+        while (running) {
+            Client client;
+            try {
+                client = new Client("localhost", port);
+                client.lease(window);
+            } catch (IOException ex) {
+                connectFailures.increment();
+                sleep(RECONNECT_DELAY);
+                continue;
+            }
+            try {
+                if (!workOn(client)) {
+                    return;
+                }
+            } catch (IOException ex) {
+                //the server closed the connection
+                if (!running) {
+                    return;
+                }
+            } finally {
+                close(client);
+            }
+            sleep(RECONNECT_DELAY);
+        }
+    }
+
+    /**
+     * works on the tasks of a connection
+     *
+     * @param client the connected client
+     * @return true if the worker crashed or disconnected and should connect
+     * again, false if the server sent a disconnect
+     * @throws IOException if the connection is lost
+     */
+    private boolean workOn(Client client) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while (true) {
+            Command command = client.receiveCommand();
+            if (command.getType() == CommandType.DISCONNECT) {
+                return false;
+            }
+            if (command.getType() != CommandType.TASK) {
+                continue;
+            }
+            Task task = ((TaskCommand) command).getTask();
+            if (thinkTime > 0) {
+                //exponentially distributed think times with the given mean
+                sleepNanos((long) (-Math.log(1 - random.nextDouble()) * thinkTime * 1e6));
+            }
+            if (random.nextDouble() < failureRate) {
+                crashes.increment();
+                return true;
+            }
+            client.sendResult(task, new BenchmarkResult(payloadSize));
+            if (random.nextDouble() < disconnectRate) {
+                disconnects.increment();
+                client.disconnect();
+                return true;
+            }
+        }
+    }
+
+    private void report(Metrics metrics, double elapsed, Map<String, long[]> gcBefore, ThreadMXBean threads) {
+        long finished = results.sum();
+        System.out.println();
+        System.out.printf("throughput:        %.0f tasks/s (%d tasks in %.1f s)%n", finished / elapsed, finished, elapsed);
+        printLatency("dispatch latency:", metrics.getDispatchLatency());
+        printLatency("queue wait:", metrics.getQueueWait());
+        System.out.printf("requeued tasks:    %d%n", metrics.getTasksRequeued());
+        System.out.printf("client errors:     %d (%d crashes, %d disconnects, %d failed connects)%n", metrics.getClientErrors(),
+                crashes.sum(), disconnects.sum(), connectFailures.sum());
+        System.out.printf("network:           %.1f MB sent, %.1f MB received%n", metrics.getBytesSent() / 1e6,
+                metrics.getBytesReceived() / 1e6);
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        System.out.printf("heap:              %.1f MB used, %.1f MB peak, %.1f MB committed, %.1f MB max%n", heap.getUsed() / 1e6,
+                heapPeak() / 1e6, heap.getCommitted() / 1e6, heap.getMax() / 1e6);
+        Map<String, long[]> gcAfter = gcCounters();
+        for (Map.Entry<String, long[]> gc : gcAfter.entrySet()) {
+            long[] before = gcBefore.get(gc.getKey());
+            long collections = gc.getValue()[0] - (before == null ? 0 : before[0]);
+            long time = gc.getValue()[1] - (before == null ? 0 : before[1]);
+            System.out.printf("gc %-15s %d collections, %d ms (%.2f%% of the time)%n", gc.getKey() + ":", collections, time,
+                    time / (elapsed * 10));
+        }
+        System.out.printf("threads:           %d live, %d peak%n", threads.getThreadCount(), threads.getPeakThreadCount());
+        //the workers run on the same box, so a load above the cores means the harness limits the throughput itself
+        System.out.printf("system:            %d cores, load average %.1f%n", Runtime.getRuntime().availableProcessors(),
+                ManagementFactory.getOperatingSystemMXBean().getSystemLoadAverage());
+    }
+
+    private static void printLatency(String name, LatencyHistogram histogram) {
+        System.out.printf("%-18s p50 %.3f ms, p90 %.3f ms, p99 %.3f ms, p99.9 %.3f ms, max %.3f ms%n", name,
+                histogram.getP50() / 1e6, histogram.getP90() / 1e6, histogram.getP99() / 1e6, histogram.getP999() / 1e6,
+                histogram.getMax() / 1e6);
+    }
+
+    /**
+     * @return the number of collections and the collection time in ms by the
+     * name of the collector
+     */
+    private static Map<String, long[]> gcCounters() {
+        Map<String, long[]> counters = new HashMap<>();
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            counters.put(gc.getName(), new long[]{gc.getCollectionCount(), gc.getCollectionTime()});
+        }
+        return counters;
+    }
+
+    private static void resetHeapPeaks() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * @return the sum of the peak usages of the heap pools. The pools peak at
+     * different times, so this is an upper bound of the peak heap usage
+     */
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+
+    private static void close(Client client) {
+        try {
+            client.close();
+        } catch (IOException ex) {
+            //the connection is closed already
+        }
+    }
+
+    private static void sleep(long millis) {
+        sleepNanos(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    private static void sleepNanos(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
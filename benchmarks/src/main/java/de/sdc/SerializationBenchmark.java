@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.TaskCommand;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long NetworkUtil takes to send and to receive a task command
+ * as frame. The streams are in memory, so only the framing and the
+ * serialization are measured, not the network
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"16", "1024", "65536", "1048576"})
+    private int payloadSize;
+
+    private TaskCommand<BenchmarkTask> command;
+    private final CountingOutputStream sink = new CountingOutputStream();
+    private ByteArrayInputStream frame;
+
+    @Setup
+    public void setup() throws IOException {
+        command = new TaskCommand<>(new BenchmarkTask(payloadSize));
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        NetworkUtil.sendObject(command, stream);
+        frame = new ByteArrayInputStream(stream.toByteArray());
+    }
+
+    @Benchmark
+    public long sendObject() throws IOException {
+        NetworkUtil.sendObject(command, sink);
+        return sink.count;
+    }
+
+    @Benchmark
+    public Object receiveObject() throws IOException {
+        frame.reset();
+        return NetworkUtil.receiveObject(frame);
+    }
+
+    /**
+     * a stream that only counts the written bytes
+     */
+    private static final class CountingOutputStream extends OutputStream {
+
+        private long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures the task queue while many threads poll and finish tasks at once,
+ * like the listeners of many clients do. Every operation polls a task, adds a
+ * new one and finishes the polled one, so the number of queued tasks stays the
+ * same. The results are handed to a sink that drops them. Run the main method
+ * to measure the queue with 1 to 64 threads, or pass the threads to the JMH
+ * runner with -t
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TaskQueueBenchmark {
+
+    private static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+    private static final BenchmarkResult RESULT = new BenchmarkResult(0);
+
+    /**
+     * the number of tasks in the queue
+     */
+    @Param({"1024"})
+    private int queuedTasks;
+
+    private TaskQueue<BenchmarkTask, BenchmarkResult> queue;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        queue = new TaskQueue<>();
+        queue.setResultSink(new ResultSink<BenchmarkTask, BenchmarkResult>() {
+            @Override
+            public void resultReceived(BenchmarkTask task, BenchmarkResult result) throws IOException {
+            }
+        }, null, 1);
+        for (int i = 0; i < queuedTasks; i++) {
+            queue.addTask(new BenchmarkTask(0));
+        }
+    }
+
+    @Benchmark
+    public boolean pollAndFinish() {
+        BenchmarkTask task = queue.pollTask();
+        if (task == null) {
+            //more threads than queued tasks
+            return false;
+        }
+        queue.addTask(new BenchmarkTask(0));
+        return queue.finishTask(task, RESULT);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .include(TaskQueueBenchmark.class.getSimpleName())
+                    .threads(threads)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
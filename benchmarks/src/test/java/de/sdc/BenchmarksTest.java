@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.Collection;
+import org.junit.Test;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs every JMH benchmark for one short iteration in this jvm, so a broken
+ * setup or benchmark method fails the build instead of the next measurement
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class BenchmarksTest {
+
+    @Test(timeout = 120000)
+    public void theSerializationIsMeasured() throws RunnerException {
+        Collection<RunResult> results = run(options(SerializationBenchmark.class)
+                .param("payloadSize", "16", "1048576"));
+        //sending and receiving for both payloads
+        assertEquals(4, results.size());
+        assertScored(results);
+    }
+
+    @Test(timeout = 120000)
+    public void theTaskQueueIsMeasured() throws RunnerException {
+        Collection<RunResult> results = run(options(TaskQueueBenchmark.class).threads(4));
+        assertEquals(1, results.size());
+        assertScored(results);
+    }
+
+    @Test(timeout = 120000)
+    public void theDispatchIsMeasuredForBothEngines() throws RunnerException {
+        Collection<RunResult> results = run(options(DispatchBenchmark.class)
+                .param("clients", "1")
+                .param("payloadSize", "16")
+                .threads(2));
+        //throughput and sample time for both engines
+        assertEquals(4, results.size());
+        assertScored(results);
+    }
+
+    private static ChainedOptionsBuilder options(Class<?> benchmark) {
+        return new OptionsBuilder()
+                .include(benchmark.getName() + "\\.")
+                .forks(0)
+                .warmupIterations(0)
+                .measurementIterations(1)
+                .measurementTime(TimeValue.milliseconds(200))
+                .shouldFailOnError(true);
+    }
+
+    private static Collection<RunResult> run(ChainedOptionsBuilder options) throws RunnerException {
+        return new Runner(options.build()).run();
+    }
+
+    private static void assertScored(Collection<RunResult> results) {
+        for (RunResult result : results) {
+            double score = result.getPrimaryResult().getScore();
+            assertTrue(result.getParams().getBenchmark() + " has no score", score > 0);
+        }
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs the load harness for a short time with crashing and disconnecting
+ * workers and checks that it reports the finished tasks
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class LoadHarnessTest {
+
+    private static final Pattern THROUGHPUT = Pattern.compile("throughput: +\\d+ tasks/s \\((\\d+) tasks in");
+
+    @Test(timeout = 60000)
+    public void theBlockingEngineFinishesTasksDespiteFailingWorkers() throws Exception {
+        assertTasksFinished("BLOCKING");
+    }
+
+    @Test(timeout = 60000)
+    public void theNioEngineFinishesTasksDespiteFailingWorkers() throws Exception {
+        assertTasksFinished("NIO");
+    }
+
+    @Test
+    public void invalidOptionsAreRejected() {
+        assertRejected("--workers");
+        assertRejected("--threads", "4");
+        assertRejected("--window", "0");
+        assertRejected("--engine", "ASYNC");
+    }
+
+    private static void assertTasksFinished(String engine) throws Exception {
+        String report = run("--workers", "4", "--duration", "1", "--think", "0.5", "--failure", "0.05", "--disconnect", "0.05",
+                "--report", "1", "--engine", engine, "--port", Integer.toString(freePort()));
+        Matcher matcher = THROUGHPUT.matcher(report);
+        assertTrue(report, matcher.find());
+        assertTrue(report, Long.parseLong(matcher.group(1)) > 0);
+        assertTrue(report, report.contains("requeued tasks:"));
+        assertTrue(report, report.contains("dispatch latency:"));
+    }
+
+    private static String run(String... args) throws IOException, InterruptedException {
+        LoadHarness harness = new LoadHarness();
+        harness.parse(args);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        PrintStream out = System.out;
+        System.setOut(new PrintStream(output, true));
+        try {
+            harness.run();
+        } finally {
+            System.setOut(out);
+        }
+        return output.toString();
+    }
+
+    private static void assertRejected(String... args) {
+        try {
+            new LoadHarness().parse(args);
+            fail("the options were accepted");
+        } catch (IllegalArgumentException expected) {
+            //main prints the usage
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
@@ -19,20 +19,29 @@ package de.sdc;
 import de.sdc.commands.Command;
 import de.sdc.commands.CommandType;
 import de.sdc.commands.DisconnectCommand;
+import de.sdc.commands.HeartbeatCommand;
+import de.sdc.commands.HelloCommand;
 import de.sdc.commands.InitCommand;
+import de.sdc.commands.LeaseCommand;
 import de.sdc.commands.RequestCommand;
+import de.sdc.commands.ResultBatchCommand;
 import de.sdc.commands.ResultCommand;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InvalidClassException;
 import java.net.Socket;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
  * This is the client which could receive commands from a server and forwards
- * the commands to the caller
+ * the commands to the caller. Commands may be sent from several threads, e.g.
+ * heartbeats from a worker thread while another thread receives the tasks
  *
  * @author Michael Pietsch (Skywalker-11)
  */
@@ -42,6 +51,27 @@ public class Client {
     private static final Logger log = LogManager.getLogger(Client.class);
     private final BufferedOutputStream bostream;
     private final BufferedInputStream bistream;
+    private final FrameWriter writer;
+    private final FrameReader reader;
+    private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+    private final int compressionThreshold;
+    private final InitializerCache initializerCache;
+    /**
+     * serializes the frames that are sent by different threads
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
+    /**
+     * the lease timeout of the server in milliseconds or 0
+     */
+    private long leaseTimeout;
+    /**
+     * the hash of the initializer of the server or null if it has none
+     */
+    private String initializerHash;
+    /**
+     * true if the server doesn't send its initializer because it is cached
+     */
+    private boolean initializerCached;
 
     /**
      * starts connection to server. if you want to use an init command from the
@@ -54,19 +84,128 @@ public class Client {
      * @throws IOException error during connection with server
      */
     public Client(String host, int port) throws IOException {
+        this(host, port, NetworkUtil.DEFAULT_CODEC);
+    }
+
+    /**
+     * starts connection to server. if you want to use an init command from the
+     * server receiveInitCommand should be the next method that is called on the
+     * client
+     *
+     * @param host server to connect
+     * @param port server port
+     * @param codec the codec that serializes the commands. It has to be the
+     * same as the one of the server
+     * @throws IOException error during connection with server
+     */
+    public Client(String host, int port, Codec codec) throws IOException {
+        this(host, port, codec, Compression.NONE);
+    }
+
+    /**
+     * starts connection to server and agrees on the compression with the
+     * server. The connection is only compressed if the server enables the
+     * compression too. If you want to use an init command from the server
+     * receiveInitCommand should be the next method that is called on the
+     * client
+     *
+     * @param host server to connect
+     * @param port server port
+     * @param codec the codec that serializes the commands. It has to be the
+     * same as the one of the server
+     * @param compression the compression settings of the client
+     * @throws IOException error during connection with server
+     */
+    public Client(String host, int port, Codec codec, Compression compression) throws IOException {
+        this(host, port, codec, compression, null);
+    }
+
+    /**
+     * starts connection to server like Client(String, int, Codec, Compression)
+     * does. If the initializer of the server is in the given cache it isn't
+     * downloaded again but loaded by receiveInitCommand from the cache.
+     * Downloaded initializers are stored in the cache
+     *
+     * @param host server to connect
+     * @param port server port
+     * @param codec the codec that serializes the commands. It has to be the
+     * same as the one of the server
+     * @param compression the compression settings of the client
+     * @param initializerCache the cache of the received initializers or null
+     * if they shouldn't be cached
+     * @throws IOException error during connection with server
+     */
+    public Client(String host, int port, Codec codec, Compression compression, InitializerCache initializerCache) throws IOException {
+        this.initializerCache = initializerCache;
+        writer = new FrameWriter(codec);
+        reader = new FrameReader(codec, compressionStatistics);
         socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
         bostream = new BufferedOutputStream(socket.getOutputStream());
         bistream = new BufferedInputStream(socket.getInputStream());
+        compressionThreshold = sayHello(compression);
         log.info("connected to server");
     }
 
+    /**
+     * sends the hello with the cached initializers to the server and enables
+     * the compression the server answered with
+     *
+     * @param compression the compression settings of the client
+     * @return the compression threshold of the connection
+     * @throws IOException error during connection with server
+     */
+    private int sayHello(Compression compression) throws IOException {
+        List<String> cached = initializerCache == null ? Collections.<String>emptyList() : initializerCache.getHashes();
+        write(new HelloCommand(compression.getThreshold(), cached));
+        Command command = reader.read(bistream);
+        if (command.getType() != CommandType.HELLO) {
+            close();
+            throw new InvalidClassException("Expected a hello command, but received the command:" + command.getType());
+        }
+        HelloCommand hello = (HelloCommand) command;
+        initializerHash = hello.getInitializerHash();
+        leaseTimeout = hello.getLeaseTimeout();
+        initializerCached = initializerHash != null && cached.contains(initializerHash);
+        int threshold = compression.negotiate(hello.getCompressionThreshold());
+        writer.enableCompression(threshold, compression.getLevel(), compressionStatistics);
+        return threshold;
+    }
+
+    /**
+     * writes a command to the server
+     *
+     * @param command the command that should be sent
+     * @throws IOException error during connection with server
+     */
+    private void write(Command command) throws IOException {
+        sendLock.lock();
+        try {
+            writer.write(command, bostream);
+        } finally {
+            sendLock.unlock();
+        }
+    }
+
+    /**
+     * checks if the server has an initializer that has to be received with
+     * receiveInitCommand
+     *
+     * @return true if the server has an initializer
+     */
+    public boolean hasInitializer() {
+        return initializerHash != null;
+    }
+
     /**
      * !!! If you want to receive an initCommand from the server this method
      * must be the first method called after creating the client object!!!
      *
      * receives an initcommand from the server. If no Initializer is specified
      * in the server no init command will be send and so this method will always
-     * throw an InvalidClassException
+     * throw an InvalidClassException. If the client has an initializer cache
+     * the initializer is loaded from the cache if the server has announced a
+     * cached one, else the received initializer is stored in the cache
      *
      * @return initcommand returned by the server (initializer could be null if
      * no initializer is specified in the server
@@ -74,7 +213,31 @@ public class Client {
      *
      */
     public InitCommand receiveInitCommand() throws IOException {
-        Command command = NetworkUtil.receiveObject(bistream);
+        if (initializerHash == null) {
+            throw new InvalidClassException("Expected an init command, but the server has no initializer");
+        }
+        Command command;
+        if (initializerCached) {
+            initializerCached = false;
+            byte[] content = initializerCache.load(initializerHash);
+            if (content == null) {
+                throw new IOException("the initializer " + initializerHash + " was removed from the cache");
+            }
+            command = reader.decode(content);
+            log.trace("loaded init command from the cache: {}", initializerHash);
+        } else if (initializerCache != null) {
+            byte[] content = reader.readContent(bistream);
+            command = reader.decode(content);
+            if (command.getType() == CommandType.INIT) {
+                if (InitializerCache.hash(content, 0, content.length).equals(initializerHash)) {
+                    initializerCache.store(initializerHash, content);
+                } else {
+                    log.warn("the received initializer doesn't match its hash and isn't cached");
+                }
+            }
+        } else {
+            command = reader.read(bistream);
+        }
         if (command.getType() != CommandType.INIT) {
             throw new InvalidClassException("Expected an init command, but received the command:" + command.getType());
         }
@@ -82,6 +245,49 @@ public class Client {
         return (InitCommand) command;
     }
 
+    /**
+     * returns the minimal size of the frames that are compressed
+     *
+     * @return the compression threshold of the connection or 0 if the
+     * connection isn't compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * returns the statistics of the compression of this connection
+     *
+     * @return the compression statistics of the client
+     */
+    public CompressionStatistics getCompressionStatistics() {
+        return compressionStatistics;
+    }
+
+    /**
+     * returns the lease timeout of the server. If the client works longer than
+     * this on a task without sending anything, the server gives its tasks to
+     * other clients and closes the connection. So heartbeat should be called
+     * more often than this while working on a task
+     *
+     * @return the lease timeout in milliseconds or 0 if the leases of the
+     * server don't expire
+     */
+    public long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+
+    /**
+     * tells the server that the client is still working on its tasks. This
+     * may be called from any thread
+     *
+     * @throws IOException error during connection with server
+     */
+    public void heartbeat() throws IOException {
+        log.trace("send heartbeat");
+        write(new HeartbeatCommand());
+    }
+
     /**
      * checks if the client is connected to the server
      *
@@ -102,14 +308,57 @@ public class Client {
     public Command requestCommand() throws IOException {
         RequestCommand request = new RequestCommand();
         log.trace("request command: {}", request.getId());
-        NetworkUtil.sendObject(request, bostream);
+        write(request);
 
-        Command command = NetworkUtil.receiveObject(bistream);
+        Command command = reader.read(bistream);
         log.trace("Received command: {}", command.getId());
 
         return command;
     }
 
+    /**
+     * leases a window of tasks. The server sends up to window tasks without
+     * waiting for a request and sends a new task for every received result.
+     * The tasks have to be received with receiveCommand and the results have to
+     * be sent with sendResult(Task, ResultCommand)
+     *
+     * @param window the number of tasks that should be outstanding
+     * @throws IOException error during connection with server
+     */
+    public void lease(int window) throws IOException {
+        lease(window, 1);
+    }
+
+    /**
+     * leases a window of tasks like lease(int) does, but allows the server to
+     * send up to batchSize of the available tasks in one TaskBatchCommand. The
+     * batches may be smaller if only few tasks are available
+     *
+     * @param window the number of tasks that should be outstanding
+     * @param batchSize the maximum number of tasks in one batch
+     * @throws IOException error during connection with server
+     */
+    public void lease(int window, int batchSize) throws IOException {
+        LeaseCommand lease = new LeaseCommand(window, batchSize);
+        log.trace("lease {} tasks in batches of {}: {}", window, batchSize, lease.getId());
+        write(lease);
+    }
+
+    /**
+     * receives the next command from the server without requesting one. If
+     * tasks are leased in batches this may be a TaskBatchCommand
+     *
+     * @return command sent by the server
+     * @throws IOException a SocketException is thrown if an error occured with
+     * the network connection. An EOFException occures if the server was shut
+     * down
+     */
+    public Command receiveCommand() throws IOException {
+        Command command = reader.read(bistream);
+        log.trace("Received command: {}", command.getId());
+        return command;
+    }
+
     /**
      * sends a command to the server
      *
@@ -118,7 +367,7 @@ public class Client {
      */
     public void sendCommand(Command command) throws IOException {
         log.trace("send command: {} of type {}", command.getId(), command.getType());
-        NetworkUtil.sendObject(command, bostream);
+        write(command);
     }
 
     /**
@@ -131,6 +380,33 @@ public class Client {
         sendCommand(command);
     }
 
+    /**
+     * sends the result of a task to the server. This has to be used if more
+     * than one task is leased
+     *
+     * @param task the task that was executed
+     * @param command the result of the task
+     * @throws IOException error during connection with server
+     */
+    public void sendResult(Task task, ResultCommand command) throws IOException {
+        command.setTaskId(task.getId());
+        sendCommand(command);
+    }
+
+    /**
+     * sends several results in one frame to the server. Every result must
+     * carry the id of its task (see ResultCommand.setTaskId)
+     *
+     * @param results the results that should be sent
+     * @throws IOException error during connection with server
+     */
+    public void sendResults(Collection<? extends ResultCommand> results) throws IOException {
+        if (results.isEmpty()) {
+            return;
+        }
+        sendCommand(new ResultBatchCommand(results));
+    }
+
     /**
      * disconnects the client
      *
@@ -152,5 +428,12 @@ public class Client {
         bostream.close();
         bistream.close();
         socket.close();
+        sendLock.lock();
+        try {
+            writer.close();
+        } finally {
+            sendLock.unlock();
+        }
+        reader.close();
     }
 }
@@ -18,6 +18,7 @@ package de.sdc;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -30,16 +31,19 @@ import org.apache.logging.log4j.Logger;
 class ClientAccepter implements Runnable {
 
     private static final Logger log = LogManager.getLogger(ClientAccepter.class);
-    private final Server server;
-    private boolean running;
+    private final Server<?, ?> server;
+    private final ThreadFactory threadFactory;
+    private volatile boolean running;
 
     /**
      * initializes the accepter
      *
      * @param server
+     * @param threadFactory factory for the threads the listeners run in
      */
-    ClientAccepter(Server server) {
+    ClientAccepter(Server<?, ?> server, ThreadFactory threadFactory) {
         this.server = server;
+        this.threadFactory = threadFactory;
     }
 
     /**
@@ -56,7 +60,8 @@ class ClientAccepter implements Runnable {
                             clientSocket,
                             server
                     );
-                    Thread listenerThread = new Thread(listener, "ClientListener" + listener.getId());
+                    Thread listenerThread = threadFactory.newThread(listener);
+                    listenerThread.setName("ClientListener" + listener.getId());
                     server.addListener(listener, listenerThread);
                     listenerThread.start();
                 } else {
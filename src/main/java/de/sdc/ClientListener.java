@@ -16,41 +16,47 @@
  */
 package de.sdc;
 
-import de.sdc.commands.TaskCommand;
 import de.sdc.commands.Command;
-import de.sdc.commands.DisconnectCommand;
-import de.sdc.commands.InitCommand;
-import de.sdc.commands.ResultCommand;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Listener that sends tasks to the client and handles the responses
+ * Listener that runs in its own thread, blocks on the socket of a client and
+ * handles its commands. Requests for tasks are parked in the task queue until
+ * a task is available
  *
  * @author Michael Pietsch (Skywalker-11)
  */
-class ClientListener implements Runnable {
+class ClientListener extends ClientSession implements Runnable {
 
     private static final Logger log = LogManager.getLogger(ClientListener.class);
-    private static final AtomicInteger nextId = new AtomicInteger(0);
 
     private final Socket socket;
-    private final int id;
+    private final String address;
     private final BufferedOutputStream bostream;
     private final BufferedInputStream bistream;
-    private final Server server;
-    private final TaskQueue taskQueue;
+    private final FrameWriter writer;
+    private final FrameReader reader;
+    /**
+     * a lock instead of a monitor, so a virtual listener thread doesn't pin
+     * its carrier thread while writing
+     */
+    private final ReentrantLock sendLock = new ReentrantLock();
 
-    private Task runningTask = null;
-    private boolean isRunning;
+    private volatile boolean isRunning;
+    /**
+     * the thread the listener runs in
+     */
+    private volatile Thread thread;
 
     /**
      * creates a new listener for a client socket.
@@ -59,14 +65,18 @@ class ClientListener implements Runnable {
      * @param server the server object that should be used
      * @throws IOException if an exception while creating the streams occured
      */
-    protected ClientListener(Socket socket, Server server) throws IOException {
+    protected ClientListener(Socket socket, Server<?, ?> server) throws IOException {
+        super(server);
+        this.writer = new FrameWriter(server.getCodec());
+        this.writer.setMetrics(server.getMetrics());
+        this.reader = new FrameReader(server.getCodec(), server.getCompressionStatistics());
+        this.reader.setMetrics(server.getMetrics());
         this.socket = socket;
+        this.address = String.valueOf(socket.getRemoteSocketAddress());
+        socket.setTcpNoDelay(true);
         this.bostream = new BufferedOutputStream(socket.getOutputStream());
         this.bistream = new BufferedInputStream(socket.getInputStream());
         log.info("Connected new client ({})", socket.getRemoteSocketAddress().toString());
-        this.id = nextId.getAndIncrement();
-        this.server = server;
-        this.taskQueue = server.getTaskQueue();
     }
 
     /**
@@ -75,112 +85,96 @@ class ClientListener implements Runnable {
      */
     @Override
     public void run() {
+        thread = Thread.currentThread();
         isRunning = true;
         try {
-            Initializer init = server.getInitializerCopy();
-            if (init != null) {
-                NetworkUtil.sendObject(new InitCommand(init), bostream);
-            }
-
             while (isRunning) {
-                Command c = NetworkUtil.receiveObject(bistream);
-                switch (c.getType()) {
-                    case RESULT:
-                        handleResultCommand((ResultCommand) c);
-                        break;
-
-                    case REQUEST_TASK:
-                        handleRequestTaskCommand();
-                        break;
-
-                    case DISCONNECT:
-                        disconnect();
-                        break;
-
-                    case CUSTOM:
-                        handleCustomCommand(c);
-                        break;
-
-                    default:
-                        log.error("received command could not be handled (commandID={}): closing connection to client", c.getType());
-                        server.removeListener(this);
-                        disconnect();
-                        break;
+                Command c = reader.read(bistream);
+                if (!handleCommand(c)) {
+                    isRunning = false;
+                    server.removeListener(this);
+                    disconnect();
                 }
             }
         } catch (SocketException | EOFException e) {
-            log.warn("Connection lost to Client {}", id);
-            server.removeListener(this);
-            disconnect();
-        } catch (IOException e) {
-            log.error(e.toString());
+            if (isRunning) {
+                log.warn("Connection lost to Client {}", id);
+                countError();
+                server.removeListener(this);
+                disconnect();
+            }
+        } catch (IOException | RuntimeException e) {
+            //e.g. a corrupt frame or a failed journal
+            if (isRunning) {
+                log.error("handling client {} failed: closing connection to client", id, e);
+                isRunning = false;
+                countError();
+                server.removeListener(this);
+                disconnect();
+            }
+        } finally {
+            reader.close();
+            //a task that was sent while the listener was aborted is given back
+            requeueTasks();
         }
     }
 
-    /**
-     * returns the id of the client
-     *
-     * @return id of the client
-     */
-    protected int getId() {
-        return id;
+    @Override
+    protected void send(Command command) throws IOException {
+        //the server thread sends a disconnect while closing the listener
+        sendLock.lock();
+        try {
+            writer.write(command, bostream);
+        } finally {
+            sendLock.unlock();
+        }
     }
 
-    /**
-     * handles a request command of the client. This will send a task if one is
-     * available
-     *
-     * @throws IOException
-     * @throws InterruptedException
-     */
-    private void handleRequestTaskCommand() throws IOException {
-        log.debug("Received request from {}", id);
-        Command toSend;
+    @Override
+    protected void sendFrame(ByteBuffer frame) throws IOException {
+        sendLock.lock();
+        try {
+            writer.write(frame, bostream);
+        } finally {
+            sendLock.unlock();
+        }
+    }
 
+    @Override
+    protected void enableCompression(int threshold) {
+        sendLock.lock();
         try {
-            while (runningTask == null) {
-                runningTask = taskQueue.pollTask();
-                Thread.sleep(20);
-            }
-        } catch (InterruptedException ex) {
-            log.log(Level.TRACE, ex);
+            writer.enableCompression(threshold, server.getCompression().getLevel(), server.getCompressionStatistics());
+        } finally {
+            sendLock.unlock();
         }
-        TaskCommand command = new TaskCommand(runningTask);
-        toSend = command;
-        log.debug("Send task {}", toSend.getId());
-        NetworkUtil.sendObject(toSend, bostream);
     }
 
-    /**
-     * handles the result from the client
-     *
-     * @param result the resultcommand from the client
-     */
-    private void handleResultCommand(ResultCommand result) {
-        log.debug("Received {} from client {}", result.getDescription(), id);
-        taskQueue.finishTask(runningTask, result);
-        runningTask = null;
+    @Override
+    protected String getAddress() {
+        return address;
     }
 
     /**
-     * handles a custom command from the client
+     * parks the listener in the task queue until a task is available
      *
-     * @param customCommand the customCommand received from the client
-     * @throws IOException
+     * @return the task or null if the listener was interrupted while waiting
      */
-    private void handleCustomCommand(Command customCommand) throws IOException {
-        log.debug("Received custom command from client {}", id);
-        CustomCommandHandler commandHandler = server.getCustomCommandHandler();
-        Command responseCommand = commandHandler.handleCustomCommand(customCommand);
-        if (responseCommand != null) {
-            NetworkUtil.sendObject(responseCommand, bostream);
+    @Override
+    protected Task awaitTask() {
+        try {
+            return taskQueue.takeTask();
+        } catch (InterruptedException ex) {
+            //the listener is being closed
+            log.log(Level.TRACE, ex);
+            Thread.currentThread().interrupt();
+            return null;
         }
     }
 
     /**
-     * closes the streams and the sockets to the client
-     *
-     * @param runningTask task that currently is executed by the client
+     * closes the streams and the sockets to the client and makes its
+     * unfinished tasks available again
      */
     private void disconnect() {
         try {
@@ -190,19 +184,40 @@ class ClientListener implements Runnable {
         } catch (IOException ex) {
             log.log(Level.ALL, ex);
         }
-        if (runningTask != null) {
-            taskQueue.setTaskAvailable(runningTask);
+        sendLock.lock();
+        try {
+            writer.close();
+        } finally {
+            sendLock.unlock();
         }
+        requeueTasks();
+        closeStatistics();
         log.info("client {} disconnected", id);
     }
 
+    /**
+     * closes the socket of a stalled client and wakes the listener if it
+     * waits for a task
+     */
+    @Override
+    protected void abort() {
+        isRunning = false;
+        server.removeListener(this);
+        disconnect();
+        Thread listenerThread = thread;
+        if (listenerThread != null) {
+            listenerThread.interrupt();
+        }
+    }
+
     /**
      * sends an disconnect to the client and closes the streams and sockets
      */
+    @Override
     protected void close() {
         isRunning = false;
         try {
-            NetworkUtil.sendObject(new DisconnectCommand(), bostream);
+            sendDisconnect();
         } catch (IOException ex) {
             log.log(Level.ALL, ex);
         }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.ResultCommand;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the loop of a client, so only the computation of a task has to be
+ * implemented as a TaskExecutor. The runner connects to the server, receives
+ * the initializer and executes the tasks with a WorkerRuntime. The network I/O
+ * is pipelined with the computation: while task n is computed, task n+1 is
+ * received and the result of task n-1 is sent.
+ *
+ * If the connection is lost the runner connects again after a delay. Failed
+ * connection attempts are repeated with an exponentially growing delay. A
+ * connection that is lost before it lasted the maximal delay counts as a
+ * failed attempt too, so a server that accepts and drops the connections
+ * right away isn't flooded with reconnects. If the server
+ * sends a disconnect the runner stops, unless it should reconnect after a
+ * disconnect too, e.g. to work for the next server that is started on the same
+ * port. The settings have to be made before the runner is started
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ * @param <T> the task class
+ * @param <R> the result command class
+ */
+public class ClientRunner<T extends Task, R extends ResultCommand> {
+
+    private static final Logger log = LogManager.getLogger(ClientRunner.class);
+
+    private final String host;
+    private final int port;
+    private final TaskExecutor<T, R> executor;
+    private Codec codec = NetworkUtil.DEFAULT_CODEC;
+    private Compression compression = Compression.NONE;
+    private InitializerCache initializerCache;
+    private int threads = 1;
+    private int prefetch = 1;
+    private long initialDelay = TimeUnit.MILLISECONDS.toNanos(100);
+    private long maxDelay = TimeUnit.SECONDS.toNanos(10);
+    private int maxAttempts = 10;
+    private boolean reconnectAfterDisconnect;
+    private volatile boolean stopped;
+    private volatile WorkerRuntime<T, R> runtime;
+
+    /**
+     * creates a runner that executes one task at a time
+     *
+     * @param host the host of the server
+     * @param port the port of the server
+     * @param executor the executor that computes the tasks
+     */
+    public ClientRunner(String host, int port, TaskExecutor<T, R> executor) {
+        this.host = host;
+        this.port = port;
+        this.executor = executor;
+    }
+
+    /**
+     * sets the codec that serializes the commands. It has to be the same as
+     * the one of the server
+     *
+     * @param codec the codec that should be used
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * sets the compression the runner wants to use
+     *
+     * @param compression the compression settings of the client
+     */
+    public void setCompression(Compression compression) {
+        this.compression = compression;
+    }
+
+    /**
+     * caches the received initializer, so it isn't downloaded again after a
+     * reconnect
+     *
+     * @param initializerCache the cache of the received initializers
+     */
+    public void setInitializerCache(InitializerCache initializerCache) {
+        this.initializerCache = initializerCache;
+    }
+
+    /**
+     * executes several tasks at once on a shared connection
+     *
+     * @param threads the number of threads that execute tasks
+     * @param prefetch the number of tasks that are received in advance
+     */
+    public void setThreads(int threads, int prefetch) {
+        this.threads = threads;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * sets how often and how fast a lost connection is established again
+     *
+     * @param maxAttempts the number of failed connection attempts in a row
+     * after which the runner gives up, connections that were lost before they
+     * lasted maxDelay count as failed attempts
+     * @param initialDelay the delay after the first failed attempt, it doubles
+     * after every further failed attempt
+     * @param maxDelay the maximal delay between two attempts
+     * @param unit the unit of the delays
+     */
+    public void setReconnect(int maxAttempts, long initialDelay, long maxDelay, TimeUnit unit) {
+        this.maxAttempts = maxAttempts;
+        this.initialDelay = unit.toNanos(initialDelay);
+        this.maxDelay = unit.toNanos(maxDelay);
+    }
+
+    /**
+     * lets the runner connect again after the server sent a disconnect
+     *
+     * @param reconnect true if the runner should connect again
+     */
+    public void setReconnectAfterDisconnect(boolean reconnect) {
+        this.reconnectAfterDisconnect = reconnect;
+    }
+
+    /**
+     * executes the tasks of the server until it disconnects or the runner is
+     * stopped
+     *
+     * @throws IOException if no connection could be established within the
+     * attempts or the executor failed
+     */
+    public void run() throws IOException {
+        int failedAttempts = 0;
+        long delay = initialDelay;
+        while (!stopped) {
+            Client client;
+            try {
+                client = new Client(host, port, codec, compression, initializerCache);
+            } catch (IOException ex) {
+                if (++failedAttempts >= maxAttempts) {
+                    throw ex;
+                }
+                log.warn("could not connect to {}:{}, trying again in {} ms", host, port, TimeUnit.NANOSECONDS.toMillis(delay));
+                sleep(delay);
+                delay = Math.min(2 * delay, maxDelay);
+                continue;
+            }
+            long connected = System.nanoTime();
+            WorkerRuntime<T, R> current = new WorkerRuntime<>(client, executor, threads, prefetch);
+            runtime = current;
+            if (stopped) {
+                //stop was called while connecting
+                current.close();
+                return;
+            }
+            IOException lost = null;
+            try {
+                current.run();
+                if (!reconnectAfterDisconnect) {
+                    return;
+                }
+            } catch (IOException ex) {
+                if (current.getFailure() != null) {
+                    throw ex;
+                }
+                lost = ex;
+            }
+            if (System.nanoTime() - connected >= maxDelay) {
+                //the connection was healthy, so the server is back to normal
+                failedAttempts = 0;
+                delay = initialDelay;
+            } else if (++failedAttempts >= maxAttempts) {
+                throw lost != null ? lost : new IOException("the server " + host + ":" + port + " closed the connection " + failedAttempts + " times in a row");
+            }
+            log.warn("connection to the server lost{}, connecting again in {} ms", lost == null ? "" : ": " + lost, TimeUnit.NANOSECONDS.toMillis(delay));
+            sleep(delay);
+            delay = Math.min(2 * delay, maxDelay);
+        }
+    }
+
+    private void sleep(long nanos) throws InterruptedIOException {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting to reconnect");
+        }
+    }
+
+    /**
+     * stops the runner. The connection is closed and run returns
+     */
+    public void stop() {
+        stopped = true;
+        WorkerRuntime<T, R> current = runtime;
+        if (current != null) {
+            current.close();
+        }
+    }
+}
@@ -0,0 +1,732 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.DisconnectCommand;
+import de.sdc.commands.HelloCommand;
+import de.sdc.commands.LeaseCommand;
+import de.sdc.commands.ResultBatchCommand;
+import de.sdc.commands.ResultCommand;
+import de.sdc.commands.TaskBatchCommand;
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The server side of a connection to a client. It sends tasks to the client
+ * and handles the responses independent of how the commands are transported.
+ * A client either requests every task on its own or leases a window of tasks
+ * which is kept filled by the session. Results are assigned to their task by
+ * the task id. Clients that lease with a batch size receive the available
+ * tasks in batches and may send their results in batches. The initializer is
+ * sent once the client said hello, unless the client has it cached already.
+ * If the server has a lease timeout every sent task is leased, and all tasks
+ * of the client are given to other clients if the client hasn't sent anything,
+ * not even a heartbeat, within the timeout.
+ *
+ * The session measures the completion rate of the client and the latency from
+ * sending a task to receiving its result. With adaptive dispatch the leased
+ * window is only the upper bound of the tasks that are outstanding at the
+ * client. Like TCP Vegas the session estimates from the latencies how many
+ * tasks wait at the client instead of being processed, and grows the window
+ * while hardly any task waits and shrinks it if too many wait. Near the end of
+ * the job the window is limited to the share of the unfinished tasks the
+ * client finishes at its completion rate, so slow clients don't hold tasks the
+ * fast clients could finish earlier
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+abstract class ClientSession {
+
+    private static final Logger log = LogManager.getLogger(ClientSession.class);
+    private static final AtomicInteger nextId = new AtomicInteger(0);
+    /**
+     * the shortest round the completion rate is measured over
+     */
+    private static final long MIN_ROUND = TimeUnit.MILLISECONDS.toNanos(10);
+
+    protected final int id;
+    protected final Server<?, ?> server;
+    protected final TaskQueue<Task, ResultCommand> taskQueue;
+    /**
+     * the timer of the leases or null if the leases don't expire
+     */
+    private final LeaseTimer leaseTimer;
+    /**
+     * the metrics of the server or null if they are disabled
+     */
+    private final Metrics metrics;
+
+    /**
+     * the tasks that were sent to the client and are not finished yet
+     */
+    private final Map<Integer, SentTask> runningTasks = new ConcurrentHashMap<>();
+    /**
+     * the number of tasks the client wants to have outstanding or 0 if the
+     * client requests every task on its own
+     */
+    private int leaseWindow = 0;
+    /**
+     * the maximum number of tasks that are sent in one frame
+     */
+    private int batchSize = 1;
+    /**
+     * true if the window is adapted to the client
+     */
+    private final boolean adaptive;
+    /**
+     * the adapted window that is at most the leased window
+     */
+    private volatile int dispatchWindow = 0;
+    /**
+     * true until the window had to shrink the first time, the window doubles
+     * every round until then
+     */
+    private boolean slowStart = true;
+    /**
+     * guards the completion rate that is part of the rate of the server
+     */
+    private final Object statisticsLock = new Object();
+    private boolean statisticsClosed;
+    private volatile long completedTasks;
+    private volatile double completionRate;
+    private volatile long averageLatency;
+    private volatile long minLatency = Long.MAX_VALUE;
+    private final AtomicLong errors = new AtomicLong();
+    /**
+     * the round ends once the client finished as many tasks as the window has
+     */
+    private long roundStart = System.nanoTime();
+    private int roundResults;
+    private long roundLatency;
+    /**
+     * the compression threshold negotiated with the client
+     */
+    private int compressionThreshold = 0;
+    /**
+     * the time the last command of the client was received at
+     */
+    private volatile long lastSeen = System.nanoTime();
+    /**
+     * true while the thread of the session waits for the result sink. The
+     * client isn't read then, so its leases must not expire
+     */
+    private volatile boolean waitingForResultSink;
+
+    /**
+     * creates a new session for a client of the server
+     *
+     * @param server the server object that should be used
+     */
+    protected ClientSession(Server<?, ?> server) {
+        this.id = nextId.getAndIncrement();
+        this.server = server;
+        //the session only hands back the tasks it took from the queue and the
+        //results of their clients
+        @SuppressWarnings("unchecked")
+        TaskQueue<Task, ResultCommand> queue = (TaskQueue<Task, ResultCommand>) server.getTaskQueue();
+        this.taskQueue = queue;
+        this.leaseTimer = server.getLeaseTimer();
+        this.adaptive = server.isAdaptiveDispatch();
+        this.metrics = server.getMetrics();
+    }
+
+    /**
+     * returns the id of the client
+     *
+     * @return id of the client
+     */
+    protected int getId() {
+        return id;
+    }
+
+    /**
+     * sends a command to the client
+     *
+     * @param command the command that should be sent
+     * @throws IOException
+     */
+    protected abstract void send(Command command) throws IOException;
+
+    /**
+     * sends a frame that was serialized already to the client
+     *
+     * @param frame the whole frame including the header
+     * @throws IOException
+     */
+    protected abstract void sendFrame(ByteBuffer frame) throws IOException;
+
+    /**
+     * is called if the client has no running task and no task is available.
+     * An implementation either waits for a task and returns it or arranges
+     * that deliverTask is called once a task was taken for this session
+     *
+     * @return the task or null if the task will be delivered later
+     * @throws IOException
+     */
+    protected abstract Task awaitTask() throws IOException;
+
+    /**
+     * tells whether the thread that handles the commands of this session may
+     * wait until the result sink has caught up. A session whose thread serves
+     * other clients too returns false and has to stop reading on its own (see
+     * TaskQueue.hasResultBacklog)
+     *
+     * @return true by default
+     */
+    protected boolean mayWaitForResultSink() {
+        return true;
+    }
+
+    /**
+     * compresses the frames that are sent to the client from now on
+     *
+     * @param threshold the negotiated compression threshold of the connection
+     */
+    protected abstract void enableCompression(int threshold);
+
+    /**
+     * closes the connection without sending a disconnect, because the client
+     * stalled. The unfinished tasks of the client were made available again
+     * already
+     */
+    protected abstract void abort();
+
+    /**
+     * @return the remote address of the client
+     */
+    protected abstract String getAddress();
+
+    /**
+     * handles a command received from the client
+     *
+     * @param c the received command
+     * @return false if the client disconnected or sent a command that could
+     * not be handled, so the connection should be closed
+     * @throws IOException
+     */
+    protected boolean handleCommand(Command c) throws IOException {
+        if (leaseTimer != null) {
+            lastSeen = System.nanoTime();
+        }
+        switch (c.getType()) {
+            case HELLO:
+                handleHelloCommand((HelloCommand) c);
+                return true;
+
+            case RESULT:
+                handleResultCommand((ResultCommand) c);
+                return true;
+
+            case RESULT_BATCH:
+                handleResultBatchCommand((ResultBatchCommand) c);
+                return true;
+
+            case REQUEST_TASK:
+                handleRequestTaskCommand();
+                return true;
+
+            case LEASE:
+                handleLeaseCommand((LeaseCommand) c);
+                return true;
+
+            case HEARTBEAT:
+                log.trace("Received heartbeat from {}", id);
+                return true;
+
+            case DISCONNECT:
+                return false;
+
+            case CUSTOM:
+                return handleCustomCommand(c);
+
+            default:
+                log.error("received command could not be handled (commandID={}): closing connection to client", c.getType());
+                countError();
+                return false;
+        }
+    }
+
+    /**
+     * answers the hello of the client with the compression both sides use and
+     * the hash of the initializer. The initializer is sent afterwards if the
+     * client hasn't cached it
+     *
+     * @param hello the hello command received from the client
+     * @throws IOException
+     */
+    private void handleHelloCommand(HelloCommand hello) throws IOException {
+        compressionThreshold = server.getCompression().negotiate(hello.getCompressionThreshold());
+        log.debug("Received hello from {}, compression threshold {}", id, compressionThreshold);
+        SerializedFrame init = server.getInitializerFrame();
+        long leaseTimeout = leaseTimer == null ? 0 : TimeUnit.NANOSECONDS.toMillis(leaseTimer.getTimeout());
+        send(new HelloCommand(compressionThreshold, init == null ? null : init.getHash(), leaseTimeout));
+        enableCompression(compressionThreshold);
+        if (init == null) {
+            return;
+        }
+        if (hello.getCachedInitializers().contains(init.getHash())) {
+            log.debug("client {} has the initializer cached", id);
+            return;
+        }
+        sendFrame(init.getFrame(compressionThreshold));
+    }
+
+    /**
+     * handles a request command of the client. This will send a task once one
+     * is available
+     *
+     * @throws IOException
+     */
+    private void handleRequestTaskCommand() throws IOException {
+        log.debug("Received request from {}", id);
+        if (leaseWindow == 0 && !runningTasks.isEmpty()) {
+            //the client requested again without sending a result, so it
+            //receives its unfinished task again
+            sendTask(runningTasks.values().iterator().next().task);
+            return;
+        }
+        fillLease(runningTasks.size() + 1);
+    }
+
+    /**
+     * handles a lease command of the client by sending tasks until the leased
+     * window is filled
+     *
+     * @param lease the lease command received from the client
+     * @throws IOException
+     */
+    private void handleLeaseCommand(LeaseCommand lease) throws IOException {
+        log.debug("Received lease of {} tasks from {}", lease.getWindow(), id);
+        leaseWindow = lease.getWindow();
+        batchSize = lease.getBatchSize();
+        dispatchWindow = adaptive ? Math.min(leaseWindow, Math.max(2, batchSize)) : leaseWindow;
+        slowStart = true;
+        fillLease(currentWindow());
+    }
+
+    /**
+     * sends tasks to the client until the given number of tasks is
+     * outstanding. If the client has no task at all the session waits for a
+     * task (see awaitTask), else only the currently available tasks are sent,
+     * or copies of stragglers if no task is available.
+     * The tasks are sent in batches of up to batchSize tasks, so the batches
+     * shrink if only few tasks are available
+     *
+     * @param window the number of tasks that should be outstanding
+     * @throws IOException
+     */
+    private void fillLease(int window) throws IOException {
+        while (runningTasks.size() < window) {
+            Task task = taskQueue.pollTask();
+            if (task == null && !runningTasks.isEmpty()) {
+                //a leasing client with free capacity gets a copy of a
+                //straggler of another client, if there is one
+                task = taskQueue.pollStraggler(runningTasks.keySet());
+                if (task == null) {
+                    return;
+                }
+            } else if (task == null && (task = awaitTask()) == null) {
+                return;
+            }
+            int free = window - runningTasks.size();
+            if (batchSize == 1 || free == 1) {
+                startTask(task);
+                sendTask(task);
+                continue;
+            }
+            List<Task> batch = new ArrayList<>(Math.min(free, batchSize));
+            batch.add(task);
+            taskQueue.pollTasks(Math.min(free, batchSize) - 1, batch);
+            for (Task t : batch) {
+                startTask(t);
+            }
+            sendTasks(batch);
+        }
+    }
+
+    /**
+     * sends a task that was taken for this session after awaitTask returned
+     * null and refills the leased window
+     *
+     * @param task the task taken for this session
+     * @throws IOException
+     */
+    protected void deliverTask(Task task) throws IOException {
+        if (runningTasks.containsKey(task.getId())) {
+            //a copy of a task the client runs already
+            taskQueue.setTaskAvailable(task);
+            return;
+        }
+        startTask(task);
+        sendTask(task);
+        if (leaseWindow > 0) {
+            fillLease(currentWindow());
+        }
+    }
+
+    /**
+     * adds a task to the running tasks of the client and leases it
+     *
+     * @param task the task that is sent to the client
+     */
+    private void startTask(Task task) {
+        runningTasks.put(task.getId(), new SentTask(task, System.nanoTime()));
+        if (leaseTimer != null) {
+            leaseTimer.lease(this, task);
+        }
+    }
+
+    /**
+     * checks if a task is still running on the client
+     *
+     * @param task the task that was sent to the client
+     * @return true if the client hasn't finished the task and it wasn't given
+     * to another client
+     */
+    boolean isRunning(Task task) {
+        SentTask sent = runningTasks.get(task.getId());
+        return sent != null && sent.task == task;
+    }
+
+    /**
+     * returns the time the last command of the client was received at. While
+     * the session waits for the result sink, the server stopped reading the
+     * client, so the client counts as seen just now
+     *
+     * @return the time the client was seen the last time (see
+     * System.nanoTime)
+     */
+    long getLastSeen() {
+        return waitingForResultSink ? System.nanoTime() : lastSeen;
+    }
+
+    /**
+     * is called by the lease timer if the lease of a task expired, so the
+     * client hasn't sent anything within the lease timeout. The tasks of the
+     * client are made available for the other clients and the connection is
+     * closed
+     *
+     * @param task the task whose lease expired
+     */
+    void leaseExpired(Task task) {
+        log.warn("client {} didn't answer within the lease timeout: its tasks are given to other clients", id);
+        countError();
+        requeueTasks();
+        abort();
+    }
+
+    /**
+     * sends a task to the client
+     *
+     * @param task the task that should be sent
+     * @throws IOException
+     */
+    private void sendTask(Task task) throws IOException {
+        TaskCommand<Task> command = new TaskCommand<>(task);
+        log.debug("Send task {}", command.getId());
+        send(command);
+    }
+
+    /**
+     * sends several tasks to the client in one frame
+     *
+     * @param tasks the tasks that should be sent
+     * @throws IOException
+     */
+    private void sendTasks(List<Task> tasks) throws IOException {
+        if (tasks.size() == 1) {
+            sendTask(tasks.get(0));
+            return;
+        }
+        TaskBatchCommand<Task> command = new TaskBatchCommand<>(tasks);
+        log.debug("Send batch of {} tasks {}", tasks.size(), command.getId());
+        send(command);
+    }
+
+    /**
+     * handles the result from the client. If the client leased a window of
+     * tasks a new task is sent for the finished one
+     *
+     * @param result the resultcommand from the client
+     * @throws IOException
+     */
+    private void handleResultCommand(ResultCommand result) throws IOException {
+        finishTask(result);
+        if (leaseWindow > 0) {
+            fillLease(currentWindow());
+        }
+    }
+
+    /**
+     * handles several results from the client. The leased window is refilled
+     * once after all results are processed
+     *
+     * @param batch the result batch from the client
+     * @throws IOException
+     */
+    private void handleResultBatchCommand(ResultBatchCommand batch) throws IOException {
+        log.debug("Received batch of {} results from client {}", batch.getResults().size(), id);
+        for (ResultCommand result : batch.getResults()) {
+            finishTask(result);
+        }
+        if (leaseWindow > 0) {
+            fillLease(currentWindow());
+        }
+    }
+
+    /**
+     * finishes the task the result belongs to
+     *
+     * @param result a result from the client
+     * @throws IOException if the journal of the server failed
+     */
+    private void finishTask(ResultCommand result) throws IOException {
+        log.debug("Received {} from client {}", result.getDescription(), id);
+        SentTask sent = removeRunningTask(result.getTaskId());
+        if (sent == null) {
+            log.error("received result for task {} which was not sent to client {}", result.getTaskId(), id);
+            countError();
+        } else {
+            taskCompleted(sent);
+            boolean mayWait = mayWaitForResultSink();
+            waitingForResultSink = mayWait && leaseTimer != null;
+            try {
+                taskQueue.finishTask(sent.task, result, mayWait);
+            } catch (UncheckedIOException ex) {
+                throw ex.getCause();
+            } finally {
+                if (waitingForResultSink) {
+                    //the time spent waiting doesn't count against the lease
+                    lastSeen = System.nanoTime();
+                    waitingForResultSink = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * updates the statistics with a finished task and ends the round once the
+     * client finished as many tasks as its window has
+     *
+     * @param sent the finished task
+     */
+    private void taskCompleted(SentTask sent) {
+        long now = System.nanoTime();
+        long latency = now - sent.time;
+        if (metrics != null) {
+            metrics.resultReceived(latency);
+        }
+        if (latency < minLatency) {
+            minLatency = latency;
+        }
+        averageLatency = averageLatency == 0 ? latency : averageLatency + (latency - averageLatency) / 8;
+        completedTasks++;
+        roundResults++;
+        roundLatency += latency;
+        if (roundResults >= Math.max(1, dispatchWindow) && now - roundStart >= MIN_ROUND) {
+            double rate = roundResults * (double) TimeUnit.SECONDS.toNanos(1) / (now - roundStart);
+            synchronized (statisticsLock) {
+                double newRate = completionRate == 0 ? rate : (completionRate + rate) / 2;
+                if (!statisticsClosed) {
+                    server.addCompletionRate(newRate - completionRate);
+                }
+                completionRate = newRate;
+            }
+            if (adaptive && leaseWindow > 0) {
+                adaptWindow(roundLatency / roundResults);
+            }
+            roundStart = now;
+            roundResults = 0;
+            roundLatency = 0;
+        }
+    }
+
+    /**
+     * adapts the window to the latency of the last round. If every task was
+     * processed right away, the latency would be the minimal latency, so by
+     * Little's law window * (1 - minLatency / latency) tasks waited at the
+     * client
+     *
+     * @param latency the average latency of the last round
+     */
+    private void adaptWindow(long latency) {
+        int window = dispatchWindow;
+        double waiting = window * (1 - (double) minLatency / latency);
+        //a few tasks have to wait, so the client never runs dry
+        int low = Math.max(2, batchSize);
+        if (waiting < low) {
+            window = slowStart ? window * 2 : window + 1;
+        } else {
+            slowStart = false;
+            if (waiting > 2 * low) {
+                window--;
+            }
+        }
+        dispatchWindow = Math.max(1, Math.min(window, leaseWindow));
+    }
+
+    /**
+     * returns the number of tasks that should be outstanding at a leasing
+     * client
+     *
+     * @return the leased window or the adapted window
+     */
+    private int currentWindow() {
+        if (!adaptive) {
+            return leaseWindow;
+        }
+        int window = dispatchWindow;
+        double rate = completionRate;
+        double serverRate = server.getCompletionRate();
+        if (rate > 0 && serverRate > 0) {
+            //the share of the unfinished tasks the client finishes
+            double share = Math.ceil(taskQueue.getUnfinishedTaskCount() * Math.min(1, rate / serverRate));
+            if (share < window) {
+                window = Math.max(1, (int) share);
+            }
+        }
+        return window;
+    }
+
+    /**
+     * removes the completion rate of the client from the rate of the server.
+     * This is called once the connection to the client is closed
+     */
+    protected void closeStatistics() {
+        synchronized (statisticsLock) {
+            if (!statisticsClosed) {
+                statisticsClosed = true;
+                server.addCompletionRate(-completionRate);
+            }
+        }
+    }
+
+    /**
+     * @return a snapshot of the statistics of the client
+     */
+    ClientStatistics getStatistics() {
+        long min = minLatency;
+        return new ClientStatistics(id, getAddress(), runningTasks.size(), completedTasks, completionRate, averageLatency,
+                min == Long.MAX_VALUE ? 0 : min, leaseWindow == 0 ? 1 : currentWindow(), errors.get());
+    }
+
+    /**
+     * counts an error of the client, like a lost connection or a result of an
+     * unknown task
+     */
+    protected void countError() {
+        errors.incrementAndGet();
+        if (metrics != null) {
+            metrics.clientError();
+        }
+    }
+
+    /**
+     * removes a task from the running tasks of the client. A result without a
+     * task id is assigned to the only running task
+     *
+     * @param taskId id of the task or ResultCommand.NO_TASK
+     * @return the removed task or null if no such task is running
+     */
+    private SentTask removeRunningTask(int taskId) {
+        if (taskId != ResultCommand.NO_TASK) {
+            return runningTasks.remove(taskId);
+        }
+        if (runningTasks.size() != 1) {
+            return null;
+        }
+        Iterator<SentTask> iterator = runningTasks.values().iterator();
+        SentTask sent = iterator.next();
+        iterator.remove();
+        return sent;
+    }
+
+    /**
+     * handles a custom command from the client
+     *
+     * @param customCommand the customCommand received from the client
+     * @return false if the server has no handler for custom commands, so the
+     * connection should be closed
+     * @throws IOException
+     */
+    private boolean handleCustomCommand(Command customCommand) throws IOException {
+        log.debug("Received custom command from client {}", id);
+        CustomCommandHandler commandHandler = server.getCustomCommandHandler();
+        if (commandHandler == null) {
+            log.error("received a custom command from client {}, but the server has no handler for them: closing connection to client", id);
+            countError();
+            return false;
+        }
+        Command responseCommand = commandHandler.handleCustomCommand(customCommand);
+        if (responseCommand != null) {
+            send(responseCommand);
+        }
+        return true;
+    }
+
+    /**
+     * makes the unfinished tasks of the client available again. This is called
+     * once the connection to the client is closed
+     */
+    protected void requeueTasks() {
+        for (Iterator<SentTask> iterator = runningTasks.values().iterator(); iterator.hasNext();) {
+            taskQueue.setTaskAvailable(iterator.next().task);
+            iterator.remove();
+        }
+    }
+
+    /**
+     * sends a disconnect to the client
+     *
+     * @throws IOException
+     */
+    protected void sendDisconnect() throws IOException {
+        send(new DisconnectCommand());
+    }
+
+    /**
+     * sends a disconnect to the client and closes the connection
+     */
+    protected abstract void close();
+
+    /**
+     * a task that was sent to the client and the time it was sent at
+     */
+    private static final class SentTask {
+
+        private final Task task;
+        private final long time;
+
+        private SentTask(Task task, long time) {
+            this.task = task;
+            this.time = time;
+        }
+    }
+}
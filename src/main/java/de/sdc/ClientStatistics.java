@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the statistics of a connected client. The completion rate is
+ * measured over the rounds in which the client finished its dispatch window,
+ * the latency is the time from sending a task to receiving its result, so it
+ * includes the network round trip and the time the task waited at the client
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public final class ClientStatistics {
+
+    private final int clientId;
+    private final String address;
+    private final int runningTasks;
+    private final long completedTasks;
+    private final double completionRate;
+    private final long averageLatency;
+    private final long minLatency;
+    private final int dispatchWindow;
+    private final long errors;
+
+    ClientStatistics(int clientId, String address, int runningTasks, long completedTasks, double completionRate,
+            long averageLatency, long minLatency, int dispatchWindow, long errors) {
+        this.clientId = clientId;
+        this.address = address;
+        this.runningTasks = runningTasks;
+        this.completedTasks = completedTasks;
+        this.completionRate = completionRate;
+        this.averageLatency = averageLatency;
+        this.minLatency = minLatency;
+        this.dispatchWindow = dispatchWindow;
+        this.errors = errors;
+    }
+
+    /**
+     * @return the id the server gave the client
+     */
+    public int getClientId() {
+        return clientId;
+    }
+
+    /**
+     * @return the remote address of the client
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * @return the number of tasks that were sent to the client and are not
+     * finished yet
+     */
+    public int getRunningTasks() {
+        return runningTasks;
+    }
+
+    /**
+     * @return the number of results the client sent
+     */
+    public long getCompletedTasks() {
+        return completedTasks;
+    }
+
+    /**
+     * @return the finished tasks per second or 0 if it isn't measured yet
+     */
+    public double getCompletionRate() {
+        return completionRate;
+    }
+
+    /**
+     * @param unit the unit of the latency
+     * @return the moving average of the time from sending a task to receiving
+     * its result
+     */
+    public long getAverageLatency(TimeUnit unit) {
+        return unit.convert(averageLatency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param unit the unit of the latency
+     * @return the shortest time from sending a task to receiving its result or
+     * 0 if no result was received yet
+     */
+    public long getMinLatency(TimeUnit unit) {
+        return unit.convert(minLatency, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return the number of tasks the server keeps outstanding at the client
+     */
+    public int getDispatchWindow() {
+        return dispatchWindow;
+    }
+
+    /**
+     * @return the number of errors of the client, like results of unknown
+     * tasks, unhandled commands or an expired lease
+     */
+    public long getErrors() {
+        return errors;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("client %d (%s): %d running, %d completed (%.1f/s), latency %.2f ms (min %.2f ms), window %d, %d errors",
+                clientId, address, runningTasks, completedTasks, completionRate, averageLatency / 1e6, minLatency / 1e6,
+                dispatchWindow, errors);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+
+/**
+ * Serializes the commands that are sent between server and client. The server
+ * and its clients must use the same codec (see Server.setCodec and the Client
+ * constructors). Every connection creates its own encoder and decoder, so they
+ * may reuse their buffers and don't have to be thread safe
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public interface Codec {
+
+    /**
+     * @return a new encoder for one connection
+     */
+    Encoder createEncoder();
+
+    /**
+     * @return a new decoder for one connection
+     */
+    Decoder createDecoder();
+
+    /**
+     * Serializes objects into a buffer owned by the encoder
+     */
+    interface Encoder {
+
+        /**
+         * serializes an object into the buffer of the encoder
+         *
+         * @param object the object that should be serialized
+         * @return the number of bytes written to the beginning of the buffer
+         * @throws IOException thrown if the serialization fails
+         */
+        int encode(Object object) throws IOException;
+
+        /**
+         * @return the buffer containing the last serialized object. It is
+         * only valid until encode is called again
+         */
+        byte[] getBuffer();
+    }
+
+    /**
+     * Deserializes objects
+     */
+    interface Decoder {
+
+        /**
+         * deserializes an object
+         *
+         * @param buffer the buffer containing the serialized object at its
+         * beginning. It may be reused after this method returned
+         * @param length the number of bytes of the serialized object
+         * @return the deserialized object
+         * @throws IOException thrown if the deserialization fails
+         */
+        Object decode(byte[] buffer, int length) throws IOException;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.zip.Deflater;
+
+/**
+ * The compression settings of a server or client. Frames that are at least
+ * as large as the threshold are compressed with a Deflater, smaller frames
+ * are sent as they are because compressing them costs more time than it
+ * saves. Server and client agree on the compression when the client connects:
+ * a connection is only compressed if both sides enable it and then uses the
+ * larger of both thresholds
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public final class Compression {
+
+    /**
+     * the threshold that is used if no other threshold is given
+     */
+    public static final int DEFAULT_THRESHOLD = 16 * 1024;
+
+    /**
+     * disables the compression
+     */
+    public static final Compression NONE = new Compression(0, Deflater.DEFAULT_COMPRESSION);
+
+    private final int threshold;
+    private final int level;
+
+    /**
+     * compresses frames with at least threshold bytes as fast as possible
+     *
+     * @param threshold the minimal size of a compressed frame
+     */
+    public Compression(int threshold) {
+        this(threshold, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * compresses frames with at least threshold bytes
+     *
+     * @param threshold the minimal size of a compressed frame, 0 disables the
+     * compression
+     * @param level the level of the Deflater (0-9, see Deflater), higher
+     * levels need more cpu time for smaller frames
+     */
+    public Compression(int threshold, int level) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("the compression threshold must not be negative");
+        }
+        if ((level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) && level != Deflater.DEFAULT_COMPRESSION) {
+            throw new IllegalArgumentException("invalid compression level: " + level);
+        }
+        this.threshold = threshold;
+        this.level = level;
+    }
+
+    /**
+     * @return compression with the default threshold as fast as possible
+     */
+    public static Compression deflate() {
+        return new Compression(DEFAULT_THRESHOLD);
+    }
+
+    /**
+     * @return true if frames are compressed
+     */
+    public boolean isEnabled() {
+        return threshold > 0;
+    }
+
+    /**
+     * @return the minimal size of a compressed frame or 0 if the compression is
+     * disabled
+     */
+    public int getThreshold() {
+        return threshold;
+    }
+
+    /**
+     * @return the level of the Deflater
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * returns the threshold a connection uses if one side wants this
+     * compression and the other side the given threshold
+     *
+     * @param otherThreshold the threshold of the other side
+     * @return the threshold of the connection or 0 if it isn't compressed
+     */
+    int negotiate(int otherThreshold) {
+        if (!isEnabled() || otherThreshold <= 0) {
+            return 0;
+        }
+        return Math.max(threshold, otherThreshold);
+    }
+}
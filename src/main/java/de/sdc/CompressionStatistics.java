@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts how much the compression of the frames saves and how much cpu time
+ * it costs. The server shares one object for all its connections, so the
+ * counters may be updated by many threads
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public final class CompressionStatistics {
+
+    private final LongAdder compressedFrames = new LongAdder();
+    private final LongAdder skippedFrames = new LongAdder();
+    private final LongAdder bytesBeforeCompression = new LongAdder();
+    private final LongAdder bytesAfterCompression = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+    private final LongAdder decompressedFrames = new LongAdder();
+    private final LongAdder decompressionNanos = new LongAdder();
+
+    void frameCompressed(int length, int compressedLength, long nanos) {
+        compressedFrames.increment();
+        bytesBeforeCompression.add(length);
+        bytesAfterCompression.add(compressedLength);
+        compressionNanos.add(nanos);
+    }
+
+    void frameSkipped(long nanos) {
+        skippedFrames.increment();
+        compressionNanos.add(nanos);
+    }
+
+    void frameDecompressed(long nanos) {
+        decompressedFrames.increment();
+        decompressionNanos.add(nanos);
+    }
+
+    /**
+     * @return the number of frames that were sent compressed
+     */
+    public long getCompressedFrames() {
+        return compressedFrames.sum();
+    }
+
+    /**
+     * @return the number of frames above the threshold that were sent
+     * uncompressed because the compression didn't make them smaller
+     */
+    public long getSkippedFrames() {
+        return skippedFrames.sum();
+    }
+
+    /**
+     * @return the size of the compressed frames before the compression
+     */
+    public long getBytesBeforeCompression() {
+        return bytesBeforeCompression.sum();
+    }
+
+    /**
+     * @return the size of the compressed frames after the compression
+     */
+    public long getBytesAfterCompression() {
+        return bytesAfterCompression.sum();
+    }
+
+    /**
+     * @return the size of the compressed frames before the compression divided
+     * by their size after it or 1 if no frame was compressed
+     */
+    public double getCompressionRatio() {
+        long after = getBytesAfterCompression();
+        return after == 0 ? 1 : (double) getBytesBeforeCompression() / after;
+    }
+
+    /**
+     * @return the cpu time spent compressing frames in nanoseconds, including
+     * the skipped frames
+     */
+    public long getCompressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    /**
+     * @return the number of received frames that were decompressed
+     */
+    public long getDecompressedFrames() {
+        return decompressedFrames.sum();
+    }
+
+    /**
+     * @return the cpu time spent decompressing frames in nanoseconds
+     */
+    public long getDecompressionNanos() {
+        return decompressionNanos.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("compressed %d frames (ratio %.2f, %d ms), skipped %d frames, decompressed %d frames (%d ms)",
+                getCompressedFrames(), getCompressionRatio(), getCompressionNanos() / 1000000, getSkippedFrames(),
+                getDecompressedFrames(), getDecompressionNanos() / 1000000);
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads frames (see NetworkUtil) and deserializes the contained objects. Every
+ * connection owns a reader with its own decoder, so the decoder and the frame
+ * buffer are reused for all frames of the connection instead of being
+ * allocated for every message. A reader is not thread safe.
+ *
+ * Compressed frames (see FrameWriter) are inflated before they are
+ * deserialized, so a reader accepts them whether or not the compression was
+ * negotiated
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+final class FrameReader {
+
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    /**
+     * buffers that grew larger than this for a single big frame are dropped
+     * afterwards, so a connection doesn't keep them forever
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+    /**
+     * deflate can't compress data to less than about a thousandth, so a
+     * compressed frame claiming a larger content is rejected before the
+     * buffer for the content is allocated
+     */
+    private static final int MAX_DEFLATE_RATIO = 1032;
+
+    private final Codec.Decoder decoder;
+    private final byte[] header = new byte[NetworkUtil.FRAME_HEADER_LENGTH];
+    private final CompressionStatistics statistics;
+    private byte[] buffer = new byte[INITIAL_BUFFER_SIZE];
+    private Inflater inflater;
+    private byte[] inflated;
+    /**
+     * the metrics that count the received frames or null
+     */
+    private Metrics metrics;
+
+    /**
+     * creates a reader for one connection
+     *
+     * @param codec the codec used to deserialize the objects
+     */
+    FrameReader(Codec codec) {
+        this(codec, new CompressionStatistics());
+    }
+
+    /**
+     * creates a reader for one connection
+     *
+     * @param codec the codec used to deserialize the objects
+     * @param statistics the statistics that count the decompressed frames
+     */
+    FrameReader(Codec codec, CompressionStatistics statistics) {
+        this.decoder = codec.createDecoder();
+        this.statistics = statistics;
+    }
+
+    /**
+     * counts the received frames and measures their deserialization
+     *
+     * @param metrics the metrics of the server or null
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * reads the next frame from a stream
+     *
+     * @param <T> the object class in which the received object should be casted
+     * @param stream the stream of the connection
+     * @return the received object
+     * @throws IOException thrown if the receiving fails. An EOFException is
+     * thrown if the stream ended
+     */
+    <T> T read(InputStream stream) throws IOException {
+        readFully(stream, header, NetworkUtil.FRAME_HEADER_LENGTH);
+        int frameHeader = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        int length = NetworkUtil.getReceivedFrameLength(frameHeader);
+        byte[] frame = buffer(length);
+        readFully(stream, frame, length);
+        return deserialize(frame, length, frameHeader);
+    }
+
+    /**
+     * deserializes a frame content that was received completely
+     *
+     * @param <T> the object class in which the received object should be casted
+     * @param source buffer positioned at the frame content (behind the header)
+     * @param frameHeader the header of the frame
+     * @return the received object
+     * @throws IOException thrown if the deserialization fails
+     */
+    <T> T read(ByteBuffer source, int frameHeader) throws IOException {
+        int length = NetworkUtil.getReceivedFrameLength(frameHeader);
+        byte[] frame = buffer(length);
+        source.get(frame, 0, length);
+        return deserialize(frame, length, frameHeader);
+    }
+
+    /**
+     * reads the next frame from a stream without deserializing it
+     *
+     * @param stream the stream of the connection
+     * @return a copy of the uncompressed frame content
+     * @throws IOException thrown if the receiving fails. An EOFException is
+     * thrown if the stream ended
+     */
+    byte[] readContent(InputStream stream) throws IOException {
+        readFully(stream, header, NetworkUtil.FRAME_HEADER_LENGTH);
+        int frameHeader = ((header[0] & 0xff) << 24) | ((header[1] & 0xff) << 16) | ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        int length = NetworkUtil.getReceivedFrameLength(frameHeader);
+        byte[] frame = buffer(length);
+        readFully(stream, frame, length);
+        try {
+            if (NetworkUtil.isCompressed(frameHeader)) {
+                length = inflate(frame, length);
+                frame = inflated;
+            }
+            return Arrays.copyOf(frame, length);
+        } finally {
+            releaseBuffers();
+        }
+    }
+
+    /**
+     * deserializes a frame content that was read with readContent
+     *
+     * @param <T> the object class in which the received object should be casted
+     * @param content the uncompressed frame content
+     * @return the received object
+     * @throws IOException thrown if the deserialization fails
+     */
+    <T> T decode(byte[] content) throws IOException {
+        @SuppressWarnings("unchecked")
+        T object = (T) decoder.decode(content, content.length);
+        return object;
+    }
+
+    private byte[] buffer(int length) {
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, buffer.length * 2)];
+        }
+        return buffer;
+    }
+
+    private <T> T deserialize(byte[] frame, int length, int frameHeader) throws IOException {
+        long start = metrics == null ? 0 : System.nanoTime();
+        int frameLength = NetworkUtil.FRAME_HEADER_LENGTH + length;
+        try {
+            if (NetworkUtil.isCompressed(frameHeader)) {
+                length = inflate(frame, length);
+                frame = inflated;
+            }
+            @SuppressWarnings("unchecked")
+            T object = (T) decoder.decode(frame, length);
+            if (metrics != null) {
+                metrics.frameReceived(frameLength, System.nanoTime() - start);
+            }
+            return object;
+        } finally {
+            releaseBuffers();
+        }
+    }
+
+    /**
+     * drops the buffers that grew for a big frame
+     */
+    private void releaseBuffers() {
+        if (buffer.length > MAX_RETAINED_BUFFER_SIZE) {
+            buffer = new byte[INITIAL_BUFFER_SIZE];
+        }
+        if (inflated != null && inflated.length > MAX_RETAINED_BUFFER_SIZE) {
+            inflated = null;
+        }
+    }
+
+    /**
+     * inflates a compressed frame content into the inflated buffer
+     *
+     * @param frame the compressed frame content
+     * @param length the length of the compressed frame content
+     * @return the length of the uncompressed frame content
+     * @throws IOException thrown if the frame content is corrupt
+     */
+    private int inflate(byte[] frame, int length) throws IOException {
+        long start = System.nanoTime();
+        if (length < NetworkUtil.FRAME_HEADER_LENGTH) {
+            throw new IOException("compressed frame is too short: " + length);
+        }
+        int inflatedLength = ((frame[0] & 0xff) << 24) | ((frame[1] & 0xff) << 16) | ((frame[2] & 0xff) << 8) | (frame[3] & 0xff);
+        int deflatedLength = length - NetworkUtil.FRAME_HEADER_LENGTH;
+        if (inflatedLength < 0 || inflatedLength > (long) deflatedLength * MAX_DEFLATE_RATIO) {
+            throw new IOException("invalid length of compressed frame: " + inflatedLength + " bytes from " + deflatedLength);
+        }
+        NetworkUtil.checkFrameLength(inflatedLength);
+        if (inflated == null || inflated.length < inflatedLength) {
+            inflated = new byte[Math.max(inflatedLength, INITIAL_BUFFER_SIZE)];
+        }
+        if (inflater == null) {
+            inflater = new Inflater();
+        }
+        inflater.reset();
+        inflater.setInput(frame, NetworkUtil.FRAME_HEADER_LENGTH, deflatedLength);
+        try {
+            int read = 0;
+            while (read < inflatedLength && !inflater.finished()) {
+                int count = inflater.inflate(inflated, read, inflatedLength - read);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                read += count;
+            }
+            if (read != inflatedLength || !inflater.finished()) {
+                throw new IOException("compressed frame is corrupt");
+            }
+        } catch (DataFormatException ex) {
+            throw new IOException("compressed frame is corrupt", ex);
+        }
+        statistics.frameDecompressed(System.nanoTime() - start);
+        return inflatedLength;
+    }
+
+    /**
+     * releases the native memory of the decompression
+     */
+    void close() {
+        if (inflater != null) {
+            inflater.end();
+            inflater = null;
+        }
+    }
+
+    private static void readFully(InputStream stream, byte[] target, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int count = stream.read(target, read, length - read);
+            if (count < 0) {
+                throw new EOFException();
+            }
+            read += count;
+        }
+    }
+}
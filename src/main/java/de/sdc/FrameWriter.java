@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Writes objects as frames (see NetworkUtil). Every connection owns a writer
+ * with its own encoder, so the encoder and its buffer are reused for all
+ * frames of the connection instead of being allocated for every message. A
+ * writer is not thread safe.
+ *
+ * Once the compression is enabled for the connection, frames that reach the
+ * threshold are deflated. A compressed frame is marked in its header and
+ * starts with the length of the uncompressed content
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+final class FrameWriter {
+
+    /**
+     * the compression buffer is dropped after a frame larger than this
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final Codec.Encoder encoder;
+    private final byte[] header = new byte[NetworkUtil.FRAME_HEADER_LENGTH];
+
+    private Deflater deflater;
+    private int compressionThreshold;
+    private CompressionStatistics statistics;
+    private byte[] compressed;
+    /**
+     * used to copy frames that are serialized already to a stream
+     */
+    private byte[] chunk;
+    /**
+     * the metrics that count the sent frames or null
+     */
+    private Metrics metrics;
+
+    /**
+     * creates a writer for one connection
+     *
+     * @param codec the codec used to serialize the objects
+     */
+    FrameWriter(Codec codec) {
+        this.encoder = codec.createEncoder();
+    }
+
+    /**
+     * counts the sent frames and measures their serialization
+     *
+     * @param metrics the metrics of the server or null
+     */
+    void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * compresses all following frames that have at least threshold bytes
+     *
+     * @param threshold the negotiated threshold of the connection
+     * @param level the level of the Deflater
+     * @param statistics the statistics that count the compressed frames
+     */
+    void enableCompression(int threshold, int level, CompressionStatistics statistics) {
+        if (threshold <= 0) {
+            return;
+        }
+        this.deflater = new Deflater(level);
+        this.compressionThreshold = threshold;
+        this.statistics = statistics;
+    }
+
+    /**
+     * writes an object as frame to a stream and flushes it
+     *
+     * @param toSend the object that should be sent
+     * @param stream the stream of the connection
+     * @throws IOException thrown if the sending fails
+     */
+    void write(Object toSend, OutputStream stream) throws IOException {
+        long start = metrics == null ? 0 : System.nanoTime();
+        int length = encoder.encode(toSend);
+        int compressedLength = compress(encoder.getBuffer(), 0, length);
+        frameSerialized(compressedLength < 0 ? length : compressedLength, start);
+        int frameHeader = compressedLength < 0 ? length : compressedLength | NetworkUtil.COMPRESSED_FRAME;
+        header[0] = (byte) (frameHeader >>> 24);
+        header[1] = (byte) (frameHeader >>> 16);
+        header[2] = (byte) (frameHeader >>> 8);
+        header[3] = (byte) frameHeader;
+        stream.write(header);
+        if (compressedLength < 0) {
+            stream.write(encoder.getBuffer(), 0, length);
+        } else {
+            stream.write(compressed, 0, compressedLength);
+            releaseBuffer();
+        }
+        stream.flush();
+    }
+
+    /**
+     * writes a frame that was serialized already to a stream and flushes it
+     *
+     * @param frame the whole frame including the header
+     * @param stream the stream of the connection
+     * @throws IOException thrown if the sending fails
+     */
+    void write(ByteBuffer frame, OutputStream stream) throws IOException {
+        if (metrics != null) {
+            metrics.serializedFrameSent(frame.remaining());
+        }
+        if (frame.hasArray()) {
+            stream.write(frame.array(), frame.arrayOffset() + frame.position(), frame.remaining());
+        } else {
+            if (chunk == null) {
+                chunk = new byte[64 * 1024];
+            }
+            while (frame.hasRemaining()) {
+                int length = Math.min(chunk.length, frame.remaining());
+                frame.get(chunk, 0, length);
+                stream.write(chunk, 0, length);
+            }
+        }
+        stream.flush();
+    }
+
+    /**
+     * appends an object as frame to a buffer. If the frame doesn't fit into the
+     * buffer a larger buffer containing the old content is returned
+     *
+     * @param toSend the object that should be sent
+     * @param target the buffer in write mode
+     * @return the buffer containing the frame
+     * @throws IOException thrown if the serialization fails
+     */
+    ByteBuffer write(Object toSend, ByteBuffer target) throws IOException {
+        long start = metrics == null ? 0 : System.nanoTime();
+        int length = encoder.encode(toSend);
+        int compressedLength = compress(encoder.getBuffer(), 0, length);
+        int bodyLength = compressedLength < 0 ? length : compressedLength;
+        frameSerialized(bodyLength, start);
+        int frameLength = NetworkUtil.FRAME_HEADER_LENGTH + bodyLength;
+        if (target.remaining() < frameLength) {
+            ByteBuffer bigger = ByteBuffer.allocate(Math.max(target.capacity() * 2, target.position() + frameLength));
+            target.flip();
+            bigger.put(target);
+            target = bigger;
+        }
+        if (compressedLength < 0) {
+            target.putInt(length);
+            target.put(encoder.getBuffer(), 0, length);
+        } else {
+            target.putInt(compressedLength | NetworkUtil.COMPRESSED_FRAME);
+            target.put(compressed, 0, compressedLength);
+            releaseBuffer();
+        }
+        return target;
+    }
+
+    /**
+     * compresses the content of a frame that was serialized already
+     *
+     * @param content the array containing the uncompressed frame content
+     * @param offset the start of the frame content in the array
+     * @param length the length of the frame content
+     * @return the whole compressed frame including the header in write mode
+     * or null if the compression is disabled or didn't make the frame smaller
+     */
+    ByteBuffer compressFrame(byte[] content, int offset, int length) {
+        int compressedLength = compress(content, offset, length);
+        if (compressedLength < 0) {
+            return null;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(NetworkUtil.FRAME_HEADER_LENGTH + compressedLength);
+        frame.putInt(compressedLength | NetworkUtil.COMPRESSED_FRAME);
+        frame.put(compressed, 0, compressedLength);
+        releaseBuffer();
+        return frame;
+    }
+
+    /**
+     * counts a serialized frame if the metrics are enabled
+     *
+     * @param bodyLength the length of the frame without the header
+     * @param start the time the serialization started at
+     */
+    private void frameSerialized(int bodyLength, long start) {
+        if (metrics != null) {
+            metrics.frameSent(NetworkUtil.FRAME_HEADER_LENGTH + bodyLength, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * deflates a frame content into the compression buffer if the compression
+     * is enabled and the frame is large enough
+     *
+     * @param source the array containing the serialized object
+     * @param offset the start of the serialized object in the array
+     * @param length the length of the serialized object
+     * @return the length of the compressed frame content or -1 if the frame
+     * is sent uncompressed
+     */
+    private int compress(byte[] source, int offset, int length) {
+        if (deflater == null || length < compressionThreshold || length <= NetworkUtil.FRAME_HEADER_LENGTH) {
+            return -1;
+        }
+        long start = System.nanoTime();
+        //the compressed content must be smaller than the uncompressed one,
+        //else the frame is sent uncompressed
+        int capacity = length;
+        if (compressed == null || compressed.length < capacity) {
+            compressed = new byte[capacity];
+        }
+        compressed[0] = (byte) (length >>> 24);
+        compressed[1] = (byte) (length >>> 16);
+        compressed[2] = (byte) (length >>> 8);
+        compressed[3] = (byte) length;
+        deflater.reset();
+        deflater.setInput(source, offset, length);
+        deflater.finish();
+        int compressedLength = NetworkUtil.FRAME_HEADER_LENGTH;
+        while (!deflater.finished() && compressedLength < capacity) {
+            compressedLength += deflater.deflate(compressed, compressedLength, capacity - compressedLength);
+        }
+        long nanos = System.nanoTime() - start;
+        if (!deflater.finished()) {
+            statistics.frameSkipped(nanos);
+            return -1;
+        }
+        statistics.frameCompressed(length, compressedLength, nanos);
+        return compressedLength;
+    }
+
+    /**
+     * drops the compression buffer if it grew for a big frame
+     */
+    private void releaseBuffer() {
+        if (compressed != null && compressed.length > MAX_RETAINED_BUFFER_SIZE) {
+            compressed = null;
+        }
+    }
+
+    /**
+     * releases the native memory of the compression. Frames written
+     * afterwards aren't compressed anymore
+     */
+    void close() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import de.sdc.commands.DisconnectCommand;
+import de.sdc.commands.HeartbeatCommand;
+import de.sdc.commands.HelloCommand;
+import de.sdc.commands.InitCommand;
+import de.sdc.commands.LeaseCommand;
+import de.sdc.commands.RequestCommand;
+import de.sdc.commands.ResultBatchCommand;
+import de.sdc.commands.ResultCommand;
+import de.sdc.commands.TaskBatchCommand;
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.util.ArrayList;
+import org.nustaq.serialization.FSTConfiguration;
+import org.nustaq.serialization.FSTObjectInput;
+import org.nustaq.serialization.FSTObjectOutput;
+
+/**
+ * Codec that uses FST of Ruediger Moeller (available at
+ * http://ruedigermoeller.github.io/fast-serialization/). The command classes of
+ * this library and the given classes (e.g. the task, result and initializer
+ * classes of the application) are registered, so only a short id instead of
+ * the full class name is written for them. Server and clients have to
+ * register the same classes in the same order
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class FstCodec implements Codec {
+
+    /**
+     * buffers that grew larger than this for a single big object are dropped
+     * before the next object is serialized
+     */
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1024 * 1024;
+
+    private final FSTConfiguration conf;
+
+    /**
+     * creates a codec with the default FST configuration
+     *
+     * @param classes application classes that should be registered
+     */
+    public FstCodec(Class<?>... classes) {
+        this(FSTConfiguration.createDefaultConfiguration(), classes);
+    }
+
+    /**
+     * creates a codec with the given FST configuration
+     *
+     * @param conf the configuration that should be used
+     * @param classes application classes that should be registered
+     */
+    protected FstCodec(FSTConfiguration conf, Class<?>... classes) {
+        this.conf = conf;
+        conf.registerClass(Command.class, CommandType.class, InitCommand.class, RequestCommand.class,
+                LeaseCommand.class, TaskCommand.class, TaskBatchCommand.class, ResultCommand.class,
+                ResultBatchCommand.class, DisconnectCommand.class, HelloCommand.class, HeartbeatCommand.class,
+                ArrayList.class);
+        conf.registerClass(classes);
+    }
+
+    @Override
+    public Encoder createEncoder() {
+        return new Encoder() {
+            private FSTObjectOutput output = new FSTObjectOutput(conf);
+
+            @Override
+            public int encode(Object object) throws IOException {
+                if (output.getBuffer().length > MAX_RETAINED_BUFFER_SIZE) {
+                    //the unsafe encoder can't be reset with a new array, so
+                    //the stream is replaced
+                    output = new FSTObjectOutput(conf);
+                } else {
+                    output.resetForReUse();
+                }
+                output.writeObject(object);
+                return output.getWritten();
+            }
+
+            @Override
+            public byte[] getBuffer() {
+                return output.getBuffer();
+            }
+        };
+    }
+
+    @Override
+    public Decoder createDecoder() {
+        return new Decoder() {
+            private final FSTObjectInput input = new FSTObjectInput(conf);
+
+            @Override
+            public Object decode(byte[] buffer, int length) throws IOException {
+                try {
+                    input.resetForReuseUseArray(buffer, length);
+                    return input.readObject();
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException("received object of unknown class", ex);
+                }
+            }
+        };
+    }
+}
@@ -26,9 +26,15 @@ import java.io.Serializable;
 public abstract class Initializer implements Serializable {
 
     /**
-     * creates a full copy of this object and all sub objects
+     * creates a full copy of this object and all sub objects. The server
+     * doesn't call this anymore, it serializes the initializer once and sends
+     * the same frame to every client
      *
-     * @return a deep copy of this object
+     * @return this object by default
+     * @deprecated not used by the server, there is no need to override it
      */
-    public abstract Initializer copy();
+    @Deprecated
+    public Initializer copy() {
+        return this;
+    }
 }
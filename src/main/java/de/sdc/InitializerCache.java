@@ -0,0 +1,182 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Caches the initializers a client received in a directory on the local disk.
+ * Every initializer is stored as its serialized init command in a file named
+ * by the SHA-256 hash of the content. A client that has the initializer of the
+ * server cached loads it from the disk instead of downloading it again (see
+ * the Client constructors). Only the most recently used initializers are kept
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public final class InitializerCache {
+
+    private static final Logger log = LogManager.getLogger(InitializerCache.class);
+    private static final String SUFFIX = ".init";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Path directory;
+    private final int maxEntries;
+
+    /**
+     * creates a cache that keeps the 4 most recently used initializers
+     *
+     * @param directory the directory of the cached initializers
+     * @throws IOException thrown if the directory can't be created
+     */
+    public InitializerCache(Path directory) throws IOException {
+        this(directory, 4);
+    }
+
+    /**
+     * creates a cache
+     *
+     * @param directory the directory of the cached initializers
+     * @param maxEntries the maximal number of cached initializers
+     * @throws IOException thrown if the directory can't be created
+     */
+    public InitializerCache(Path directory, int maxEntries) throws IOException {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("the cache must keep at least 1 initializer");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.maxEntries = maxEntries;
+    }
+
+    /**
+     * @return the hashes of the cached initializers
+     * @throws IOException thrown if the directory can't be read
+     */
+    List<String> getHashes() throws IOException {
+        List<String> hashes = new ArrayList<>();
+        for (Path file : listEntries()) {
+            String name = file.getFileName().toString();
+            hashes.add(name.substring(0, name.length() - SUFFIX.length()));
+        }
+        return hashes;
+    }
+
+    /**
+     * loads a cached initializer
+     *
+     * @param hash the hash of the initializer
+     * @return the serialized init command or null if it isn't cached
+     * @throws IOException thrown if the file can't be read
+     */
+    byte[] load(String hash) throws IOException {
+        Path file = directory.resolve(hash + SUFFIX);
+        try {
+            byte[] content = Files.readAllBytes(file);
+            //mark the entry as recently used
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return content;
+        } catch (NoSuchFileException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * stores an initializer and removes the least recently used ones if the
+     * cache is full. The file is written completely before it gets its name,
+     * so an interrupted client doesn't leave a broken entry behind
+     *
+     * @param hash the hash of the initializer
+     * @param content the serialized init command
+     * @throws IOException thrown if the file can't be written
+     */
+    void store(String hash, byte[] content) throws IOException {
+        Path temp = Files.createTempFile(directory, hash, ".tmp");
+        try {
+            Files.write(temp, content);
+            Files.move(temp, directory.resolve(hash + SUFFIX), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        List<Path> entries = listEntries();
+        for (int i = maxEntries; i < entries.size(); i++) {
+            log.debug("remove initializer {} from the cache", entries.get(i).getFileName());
+            Files.deleteIfExists(entries.get(i));
+        }
+    }
+
+    /**
+     * @return the cached files, the most recently used first
+     */
+    private List<Path> listEntries() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SUFFIX)) {
+            for (Path file : stream) {
+                entries.add(file);
+            }
+        }
+        Collections.sort(entries, new Comparator<Path>() {
+            @Override
+            public int compare(Path a, Path b) {
+                try {
+                    return Files.getLastModifiedTime(b).compareTo(Files.getLastModifiedTime(a));
+                } catch (IOException ex) {
+                    return 0;
+                }
+            }
+        });
+        return entries;
+    }
+
+    /**
+     * computes the hash that identifies a serialized initializer
+     *
+     * @param content the buffer containing the serialized init command
+     * @param offset the start of the serialized init command
+     * @param length the length of the serialized init command
+     * @return the SHA-256 hash as hex string
+     */
+    static String hash(byte[] content, int offset, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException ex) {
+            //every java platform has to support SHA-256
+            throw new IllegalStateException(ex);
+        }
+        digest.update(content, offset, length);
+        byte[] hash = digest.digest();
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+/**
+ * Codec that uses the serialization of java. It is slower and writes larger
+ * frames than the FST codecs, but needs no library and works for every
+ * serializable class
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class JavaCodec implements Codec {
+
+    @Override
+    public Encoder createEncoder() {
+        return new Encoder() {
+            private final ReusableOutputStream output = new ReusableOutputStream();
+
+            @Override
+            public int encode(Object object) throws IOException {
+                output.reset();
+                try (ObjectOutputStream oostream = new ObjectOutputStream(output)) {
+                    oostream.writeObject(object);
+                }
+                return output.size();
+            }
+
+            @Override
+            public byte[] getBuffer() {
+                return output.getBuffer();
+            }
+        };
+    }
+
+    @Override
+    public Decoder createDecoder() {
+        return new Decoder() {
+            @Override
+            public Object decode(byte[] buffer, int length) throws IOException {
+                try (ObjectInputStream oistream = new ObjectInputStream(new ByteArrayInputStream(buffer, 0, length))) {
+                    return oistream.readObject();
+                } catch (ClassNotFoundException ex) {
+                    throw new IOException("received object of unknown class", ex);
+                }
+            }
+        };
+    }
+
+    /**
+     * output stream that grants access to its buffer to avoid a copy of it
+     */
+    private static class ReusableOutputStream extends ByteArrayOutputStream {
+
+        byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with logarithmic buckets. Every power
+ * of two is split into 16 linear buckets, so a percentile is off by at most
+ * 6.25 percent. Recording a value only increments counters in preallocated
+ * arrays and takes no lock, so it doesn't allocate and can be called by many
+ * threads at once. The getters read the counters while values are recorded,
+ * so they are only consistent if nothing is recorded meanwhile
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * records a duration
+     *
+     * @param nanos the duration in nanoseconds, negative durations are
+     * recorded as 0
+     */
+    void record(long nanos) {
+        if (nanos < 0) {
+            nanos = 0;
+        }
+        counts.incrementAndGet(index(nanos));
+        sum.add(nanos);
+        long current = max.get();
+        while (nanos > current && !max.compareAndSet(current, nanos)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * returns the bucket of a value. The values below 16 have a bucket of
+     * their own, the others are bucketed by their highest 5 bits
+     *
+     * @param value a value that is not negative
+     * @return the index of the bucket
+     */
+    private static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * @param index the index of a bucket
+     * @return the highest value of the bucket
+     */
+    private static long highestValue(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = SUB_BUCKETS + index % SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    /**
+     * @return the number of recorded durations
+     */
+    public long getCount() {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += counts.get(i);
+        }
+        return count;
+    }
+
+    /**
+     * @return the mean of the recorded durations in nanoseconds or 0 if
+     * nothing was recorded
+     */
+    public double getMean() {
+        long count = getCount();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * @return the longest recorded duration in nanoseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * returns the duration that the given percentage of the recorded durations
+     * doesn't exceed
+     *
+     * @param percentile the percentage between 0 and 100
+     * @return the duration in nanoseconds or 0 if nothing was recorded
+     */
+    public long getPercentile(double percentile) {
+        long count = getCount();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(count * Math.min(percentile, 100) / 100));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValue(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    /**
+     * @return the median in nanoseconds
+     */
+    public long getP50() {
+        return getPercentile(50);
+    }
+
+    /**
+     * @return the 90th percentile in nanoseconds
+     */
+    public long getP90() {
+        return getPercentile(90);
+    }
+
+    /**
+     * @return the 99th percentile in nanoseconds
+     */
+    public long getP99() {
+        return getPercentile(99);
+    }
+
+    /**
+     * @return the 99.9th percentile in nanoseconds
+     */
+    public long getP999() {
+        return getPercentile(99.9);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("n=%d mean=%.3f ms p50=%.3f ms p99=%.3f ms max=%.3f ms", getCount(), getMean() / 1e6,
+                getP50() / 1e6, getP99() / 1e6, getMax() / 1e6);
+    }
+}
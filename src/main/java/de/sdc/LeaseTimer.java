@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Hashed timer wheel that takes the tasks back from clients that stalled. Every
+ * task sent to a client gets a lease that expires after the lease timeout
+ * unless the client sent something meanwhile. The wheel has a bucket for every
+ * tick and a lease is linked into the bucket of the tick its deadline falls
+ * into, so a tick only looks at the leases that are due in it, no matter how
+ * many leases are outstanding. A lease that was renewed by the client in the
+ * meantime is moved to the bucket of its new deadline, a lease whose task is
+ * finished is dropped.
+ *
+ * New leases are handed over through a lock-free queue, the buckets are only
+ * touched by the timer thread
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+final class LeaseTimer implements Runnable {
+
+    private static final Logger log = LogManager.getLogger(LeaseTimer.class);
+    /**
+     * the number of ticks in the lease timeout, so a lease is due less than
+     * one revolution ahead
+     */
+    private static final int TICKS_PER_TIMEOUT = 256;
+    private static final int WHEEL_SIZE = 512;
+    private static final long MIN_TICK = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long timeout;
+    private final long tickDuration;
+    /**
+     * the heads of the linked leases of every bucket
+     */
+    private final Lease[] wheel = new Lease[WHEEL_SIZE];
+    private final Queue<Lease> addedLeases = new ConcurrentLinkedQueue<>();
+    private final long startTime = System.nanoTime();
+    /**
+     * the last tick that was processed
+     */
+    private long tick;
+    private volatile boolean running;
+    private Thread thread;
+
+    /**
+     * creates a timer for leases with the given timeout
+     *
+     * @param timeout the lease timeout
+     * @param unit the unit of the timeout
+     */
+    LeaseTimer(long timeout, TimeUnit unit) {
+        this.timeout = unit.toNanos(timeout);
+        this.tickDuration = Math.max(MIN_TICK, this.timeout / TICKS_PER_TIMEOUT);
+    }
+
+    /**
+     * @return the lease timeout in nanoseconds
+     */
+    long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * starts the timer thread
+     */
+    void start() {
+        running = true;
+        thread = new Thread(this, "LeaseTimer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stops the timer thread. The leases that are outstanding don't expire
+     * anymore
+     */
+    void stop() {
+        running = false;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    /**
+     * leases a task that was sent to a client
+     *
+     * @param session the session of the client
+     * @param task the task that was sent
+     */
+    void lease(ClientSession session, Task task) {
+        addedLeases.add(new Lease(session, task, System.nanoTime() + timeout));
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            long wait = startTime + (tick + 1) * tickDuration - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            tick++;
+            for (Lease lease = addedLeases.poll(); lease != null; lease = addedLeases.poll()) {
+                schedule(lease);
+            }
+            expire((int) (tick & (WHEEL_SIZE - 1)));
+        }
+        log.debug("lease timer stopped");
+    }
+
+    /**
+     * links a lease into the bucket of its deadline
+     *
+     * @param lease the lease that should be scheduled
+     */
+    private void schedule(Lease lease) {
+        //the first tick that starts after the deadline
+        long due = Math.max(tick + 1, (lease.deadline - startTime) / tickDuration + 1);
+        lease.rounds = (due - tick - 1) / WHEEL_SIZE;
+        int bucket = (int) (due & (WHEEL_SIZE - 1));
+        lease.next = wheel[bucket];
+        wheel[bucket] = lease;
+    }
+
+    /**
+     * checks the leases of a bucket. A lease expires if the client hasn't sent
+     * anything since the lease deadline was set
+     *
+     * @param bucket the index of the bucket that is due
+     */
+    private void expire(int bucket) {
+        Lease lease = wheel[bucket];
+        wheel[bucket] = null;
+        long now = System.nanoTime();
+        while (lease != null) {
+            Lease next = lease.next;
+            lease.next = null;
+            if (lease.rounds > 0) {
+                lease.rounds--;
+                lease.next = wheel[bucket];
+                wheel[bucket] = lease;
+            } else if (lease.session.isRunning(lease.task)) {
+                long deadline = Math.max(lease.deadline, lease.session.getLastSeen() + timeout);
+                if (deadline - now > 0) {
+                    lease.deadline = deadline;
+                    schedule(lease);
+                } else {
+                    lease.session.leaseExpired(lease.task);
+                }
+            }
+            lease = next;
+        }
+    }
+
+    /**
+     * the lease of a task that was sent to a client
+     */
+    private static final class Lease {
+
+        private final ClientSession session;
+        private final Task task;
+        private long deadline;
+        /**
+         * the number of revolutions of the wheel until the lease is due
+         */
+        private long rounds;
+        private Lease next;
+
+        private Lease(ClientSession session, Task task, long deadline) {
+            this.session = session;
+            this.task = task;
+            this.deadline = deadline;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Thread factories for the client listeners of the blocking engine (see
+ * Server.setListenerThreadFactory)
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public final class ListenerThreads {
+
+    private ListenerThreads() {
+    }
+
+    /**
+     * @return a factory that creates a platform thread for every listener. This
+     * is the default
+     */
+    public static ThreadFactory platform() {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r);
+            }
+        };
+    }
+
+    /**
+     * @return true, if the running jvm supports virtual threads
+     */
+    public static boolean isVirtualSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * creates a factory that runs every listener in a virtual thread. A blocked
+     * listener doesn't occupy a platform thread then, so tens of thousands of
+     * clients could be connected without the stack memory of a platform thread
+     * each. The factory is looked up by reflection, because virtual threads
+     * need java 21 or newer while this library is built for java 8
+     *
+     * @return a factory for virtual threads
+     * @throws UnsupportedOperationException if the jvm doesn't support virtual
+     * threads
+     */
+    public static ThreadFactory virtual() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException ex) {
+            throw new UnsupportedOperationException("virtual threads need java 21 or newer", ex);
+        }
+    }
+}
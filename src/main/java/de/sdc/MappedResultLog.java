@@ -0,0 +1,342 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.ResultCommand;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import java.util.zip.CRC32;
+
+/**
+ * A result sink that appends the serialized results to a log of memory mapped
+ * files instead of keeping them in the heap. The log is split into segments of
+ * a fixed size, a new segment is started once a result doesn't fit into the
+ * current one. Every record consists of its length and the CRC32 checksum of
+ * the serialized result as 4 byte ints followed by the serialized result; a
+ * length of 0 marks the end of a segment. The length is written last, so a
+ * record that was torn by a crash is either not visible or fails the checksum.
+ * When a log is continued, it is truncated at the first invalid record.
+ *
+ * The results can be read with an iterator or a stream which deserialize them
+ * one after the other, also while results are still appended. A log that was
+ * written before is continued, so its results can be read after a restart.
+ *
+ * An appended result is in the page cache of the operating system, so it
+ * survives a crash of the process. It is only written to the disk by force or
+ * close, so results that were appended afterwards may get lost if the
+ * operating system crashes or the power fails
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ * @param <T> class of the tasks
+ * @param <R> class of the result commands
+ */
+public class MappedResultLog<T extends Task, R extends ResultCommand> implements ResultSink<T, R>, Iterable<R>, Closeable {
+
+    /**
+     * the size of a segment if no other size is given
+     */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+    /**
+     * every record starts with the length and the checksum of its content
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    private final Path directory;
+    private final Codec codec;
+    private final int segmentSize;
+    private final Codec.Encoder encoder;
+    private final CRC32 crc = new CRC32();
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    private volatile long size;
+    private boolean closed;
+
+    /**
+     * creates a log with segments of the default size that serializes the
+     * results with the default codec
+     *
+     * @param directory the directory of the segment files
+     * @throws IOException thrown if the directory or an existing log can't be
+     * read
+     */
+    public MappedResultLog(Path directory) throws IOException {
+        this(directory, NetworkUtil.DEFAULT_CODEC, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * creates a log
+     *
+     * @param directory the directory of the segment files
+     * @param codec the codec that serializes the results
+     * @param segmentSize the size of a segment file in bytes
+     * @throws IOException thrown if the directory or an existing log can't be
+     * read
+     */
+    public MappedResultLog(Path directory, Codec codec, int segmentSize) throws IOException {
+        if (segmentSize <= RECORD_HEADER_LENGTH) {
+            throw new IllegalArgumentException("the segment size is too small: " + segmentSize);
+        }
+        this.directory = Files.createDirectories(directory);
+        this.codec = codec;
+        this.segmentSize = segmentSize;
+        this.encoder = codec.createEncoder();
+        openSegments();
+    }
+
+    /**
+     * maps the segments that were written before and finds the end of every
+     * segment. The log is truncated at the first invalid record: the rest of
+     * its segment is cleared and the following segments are deleted
+     */
+    private void openSegments() throws IOException {
+        long records = 0;
+        for (int index = 0; Files.exists(segmentFile(index)); index++) {
+            Segment segment = new Segment(map(segmentFile(index), 0));
+            ByteBuffer buffer = segment.buffer;
+            int position = 0;
+            boolean valid = true;
+            while (position + RECORD_HEADER_LENGTH <= buffer.capacity()) {
+                int length = buffer.getInt(position);
+                if (length == 0) {
+                    //the end of the segment
+                    break;
+                }
+                if (!isValidRecord(buffer, position, length)) {
+                    valid = false;
+                    break;
+                }
+                position += RECORD_HEADER_LENGTH + length;
+                records++;
+            }
+            segment.limit = position;
+            segments.add(segment);
+            if (!valid) {
+                //new records must not end up behind the remains of the torn one
+                clear(buffer, position);
+                int later = index + 1;
+                while (Files.deleteIfExists(segmentFile(later))) {
+                    later++;
+                }
+                break;
+            }
+        }
+        size = records;
+    }
+
+    /**
+     * checks the length and the checksum of a record
+     *
+     * @param buffer the segment of the record
+     * @param position the start of the record
+     * @param length the length of the record content
+     * @return true if the record is complete
+     */
+    private boolean isValidRecord(ByteBuffer buffer, int position, int length) {
+        if (length < 0 || length > buffer.capacity() - position - RECORD_HEADER_LENGTH) {
+            return false;
+        }
+        ByteBuffer content = buffer.duplicate();
+        content.limit(position + RECORD_HEADER_LENGTH + length);
+        content.position(position + RECORD_HEADER_LENGTH);
+        crc.reset();
+        crc.update(content);
+        return buffer.getInt(position + 4) == (int) crc.getValue();
+    }
+
+    /**
+     * fills a segment with zeros from the given position to its end
+     *
+     * @param buffer the segment
+     * @param position the start of the cleared part
+     */
+    private static void clear(ByteBuffer buffer, int position) {
+        ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        byte[] zeros = new byte[Math.min(target.remaining(), 64 * 1024)];
+        while (target.hasRemaining()) {
+            target.put(zeros, 0, Math.min(zeros.length, target.remaining()));
+        }
+    }
+
+    private Path segmentFile(int index) {
+        return directory.resolve(String.format("results-%05d.log", index));
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            //the mapping stays valid after the channel is closed
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, channel.size()));
+        }
+    }
+
+    /**
+     * appends a result to the log
+     *
+     * @param task the task that was finished
+     * @param result the result of the task
+     * @throws IOException thrown if the result can't be serialized or the log
+     * is closed
+     */
+    @Override
+    public synchronized void resultReceived(T task, R result) throws IOException {
+        if (closed) {
+            throw new IOException("the result log is closed");
+        }
+        int length = encoder.encode(result);
+        Segment segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        int recordLength = RECORD_HEADER_LENGTH + length;
+        if (segment == null || segment.buffer.capacity() - segment.limit < recordLength) {
+            //a record that is larger than a segment gets a segment of its own
+            segment = new Segment(map(segmentFile(segments.size()), Math.max(segmentSize, recordLength)));
+            segments.add(segment);
+        }
+        ByteBuffer target = segment.buffer.duplicate();
+        target.position(segment.limit + RECORD_HEADER_LENGTH);
+        target.put(encoder.getBuffer(), 0, length);
+        crc.reset();
+        crc.update(encoder.getBuffer(), 0, length);
+        target.putInt(segment.limit + 4, (int) crc.getValue());
+        //the length is written last, so a crash while writing the content
+        //leaves no record that points at it
+        target.putInt(segment.limit, length);
+        //the readers only see the record once the limit is moved behind it
+        segment.limit += recordLength;
+        size++;
+    }
+
+    /**
+     * @return the number of results in the log
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * returns an iterator that deserializes the results one after the other.
+     * Results that are appended while iterating are returned too
+     *
+     * @return an iterator over the results of the log
+     */
+    @Override
+    public Iterator<R> iterator() {
+        return new RecordIterator();
+    }
+
+    /**
+     * @return a sequential stream of the results of the log
+     */
+    public Stream<R> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator(), Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * writes the results that were appended so far to the disk
+     */
+    public synchronized void force() {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * writes the segments to the disk and stops appending results. The
+     * results can still be read afterwards
+     */
+    @Override
+    public synchronized void close() {
+        closed = true;
+        force();
+    }
+
+    private static final class Segment {
+
+        private final MappedByteBuffer buffer;
+        /**
+         * the end of the last complete record
+         */
+        private volatile int limit;
+
+        private Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+    }
+
+    private final class RecordIterator implements Iterator<R> {
+
+        private final Codec.Decoder decoder = codec.createDecoder();
+        private byte[] record = new byte[4 * 1024];
+        private int segmentIndex;
+        private int position;
+
+        @Override
+        public boolean hasNext() {
+            while (segmentIndex < segments.size()) {
+                if (position < segments.get(segmentIndex).limit) {
+                    return true;
+                }
+                if (segmentIndex == segments.size() - 1) {
+                    //the last segment may still grow
+                    return false;
+                }
+                segmentIndex++;
+                position = 0;
+            }
+            return false;
+        }
+
+        @Override
+        public R next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            ByteBuffer source = segments.get(segmentIndex).buffer.duplicate();
+            int length = source.getInt(position);
+            if (record.length < length) {
+                record = new byte[Math.max(length, record.length * 2)];
+            }
+            source.position(position + RECORD_HEADER_LENGTH);
+            source.get(record, 0, length);
+            position += RECORD_HEADER_LENGTH + length;
+            try {
+                //the log only contains results that were passed to resultReceived
+                @SuppressWarnings("unchecked")
+                R result = (R) decoder.decode(record, length);
+                return result;
+            } catch (IOException ex) {
+                throw new IllegalStateException("the result log is corrupt", ex);
+            }
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("results can't be removed from the log");
+        }
+    }
+}
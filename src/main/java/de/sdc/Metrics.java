@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The metrics of a server. The counters and histograms are updated on the hot
+ * paths of the server without allocating objects or taking locks, the gauges
+ * are read from the task queue and the clients when they are requested. The
+ * server registers its metrics as MXBean "de.sdc:type=Server,port=&lt;port&gt;"
+ * while it is running, and snapshot returns all values at once
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public final class Metrics implements MetricsMXBean {
+
+    private final Server<?, ?> server;
+    private final LatencyHistogram queueWait = new LatencyHistogram();
+    private final LatencyHistogram dispatchLatency = new LatencyHistogram();
+    private final LatencyHistogram serialization = new LatencyHistogram();
+    private final LatencyHistogram deserialization = new LatencyHistogram();
+    private final LongAdder tasksDispatched = new LongAdder();
+    private final LongAdder tasksRequeued = new LongAdder();
+    private final LongAdder resultsReceived = new LongAdder();
+    private final LongAdder clientErrors = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder framesSent = new LongAdder();
+    private final LongAdder framesReceived = new LongAdder();
+
+    Metrics(Server<?, ?> server) {
+        this.server = server;
+    }
+
+    void taskDispatched(long queueWaitNanos) {
+        tasksDispatched.increment();
+        queueWait.record(queueWaitNanos);
+    }
+
+    void taskRequeued() {
+        tasksRequeued.increment();
+    }
+
+    void resultReceived(long dispatchLatencyNanos) {
+        resultsReceived.increment();
+        dispatchLatency.record(dispatchLatencyNanos);
+    }
+
+    void clientError() {
+        clientErrors.increment();
+    }
+
+    void frameSent(int bytes, long serializationNanos) {
+        framesSent.increment();
+        bytesSent.add(bytes);
+        serialization.record(serializationNanos);
+    }
+
+    /**
+     * counts a frame that was serialized already
+     *
+     * @param bytes the length of the frame
+     */
+    void serializedFrameSent(int bytes) {
+        framesSent.increment();
+        bytesSent.add(bytes);
+    }
+
+    void frameReceived(int bytes, long deserializationNanos) {
+        framesReceived.increment();
+        bytesReceived.add(bytes);
+        deserialization.record(deserializationNanos);
+    }
+
+    @Override
+    public int getAvailableTasks() {
+        return server.getTaskQueue().getAvailableTaskCount();
+    }
+
+    @Override
+    public int getBlockedTasks() {
+        return server.getTaskQueue().getBlockedTaskCount();
+    }
+
+    @Override
+    public int getRunningTasks() {
+        return server.getTaskQueue().getRunningTaskCount();
+    }
+
+    @Override
+    public int getFinishedTasks() {
+        return server.getTaskQueue().getFinishedTaskCount();
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return server.getCurrentClientNumber();
+    }
+
+    @Override
+    public long getTasksDispatched() {
+        return tasksDispatched.sum();
+    }
+
+    @Override
+    public long getTasksRequeued() {
+        return tasksRequeued.sum();
+    }
+
+    @Override
+    public long getResultsReceived() {
+        return resultsReceived.sum();
+    }
+
+    @Override
+    public long getClientErrors() {
+        return clientErrors.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getFramesSent() {
+        return framesSent.sum();
+    }
+
+    @Override
+    public long getFramesReceived() {
+        return framesReceived.sum();
+    }
+
+    @Override
+    public LatencyHistogram getQueueWait() {
+        return queueWait;
+    }
+
+    @Override
+    public LatencyHistogram getDispatchLatency() {
+        return dispatchLatency;
+    }
+
+    @Override
+    public LatencyHistogram getSerialization() {
+        return serialization;
+    }
+
+    @Override
+    public LatencyHistogram getDeserialization() {
+        return deserialization;
+    }
+
+    @Override
+    public List<ClientStatistics> getClientStatistics() {
+        return server.getClientStatistics();
+    }
+
+    /**
+     * returns all metrics by their name, e.g. "tasks.available" or
+     * "latency.dispatch.p99". The durations are in nanoseconds, the values of
+     * a client are prefixed with "client.&lt;id&gt;."
+     *
+     * @return the current values of the metrics sorted by their names
+     */
+    public SortedMap<String, Number> snapshot() {
+        SortedMap<String, Number> values = new TreeMap<>();
+        values.put("tasks.available", getAvailableTasks());
+        values.put("tasks.blocked", getBlockedTasks());
+        values.put("tasks.running", getRunningTasks());
+        values.put("tasks.finished", getFinishedTasks());
+        values.put("tasks.dispatched", getTasksDispatched());
+        values.put("tasks.requeued", getTasksRequeued());
+        values.put("results.received", getResultsReceived());
+        values.put("clients.connected", getConnectedClients());
+        values.put("clients.errors", getClientErrors());
+        values.put("bytes.sent", getBytesSent());
+        values.put("bytes.received", getBytesReceived());
+        values.put("frames.sent", getFramesSent());
+        values.put("frames.received", getFramesReceived());
+        putHistogram(values, "latency.queue", queueWait);
+        putHistogram(values, "latency.dispatch", dispatchLatency);
+        putHistogram(values, "latency.serialization", serialization);
+        putHistogram(values, "latency.deserialization", deserialization);
+        for (ClientStatistics client : getClientStatistics()) {
+            String prefix = "client." + client.getClientId() + ".";
+            values.put(prefix + "completed", client.getCompletedTasks());
+            values.put(prefix + "rate", client.getCompletionRate());
+            values.put(prefix + "running", client.getRunningTasks());
+            values.put(prefix + "window", client.getDispatchWindow());
+            values.put(prefix + "errors", client.getErrors());
+        }
+        return values;
+    }
+
+    private static void putHistogram(SortedMap<String, Number> values, String name, LatencyHistogram histogram) {
+        values.put(name + ".count", histogram.getCount());
+        values.put(name + ".mean", histogram.getMean());
+        values.put(name + ".p50", histogram.getP50());
+        values.put(name + ".p99", histogram.getP99());
+        values.put(name + ".max", histogram.getMax());
+    }
+
+    @Override
+    public String toString() {
+        return snapshot().toString();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.List;
+
+/**
+ * The metrics of a server as they are shown by JMX. The durations of the
+ * histograms are in nanoseconds
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public interface MetricsMXBean {
+
+    /**
+     * @return the number of tasks that wait to be sent to a client
+     */
+    int getAvailableTasks();
+
+    /**
+     * @return the number of tasks that wait for their predecessors
+     */
+    int getBlockedTasks();
+
+    /**
+     * @return the number of tasks that are sent to a client and not finished
+     */
+    int getRunningTasks();
+
+    /**
+     * @return the number of finished tasks
+     */
+    int getFinishedTasks();
+
+    /**
+     * @return the number of connected clients
+     */
+    int getConnectedClients();
+
+    /**
+     * @return the number of times a task was taken from the queue
+     */
+    long getTasksDispatched();
+
+    /**
+     * @return the number of times a task was made available again
+     */
+    long getTasksRequeued();
+
+    /**
+     * @return the number of received results
+     */
+    long getResultsReceived();
+
+    /**
+     * @return the number of errors of all clients, like lost connections,
+     * expired leases and results of unknown tasks
+     */
+    long getClientErrors();
+
+    /**
+     * @return the number of bytes sent to the clients including the frame
+     * headers
+     */
+    long getBytesSent();
+
+    /**
+     * @return the number of bytes received from the clients including the
+     * frame headers
+     */
+    long getBytesReceived();
+
+    /**
+     * @return the number of frames sent to the clients
+     */
+    long getFramesSent();
+
+    /**
+     * @return the number of frames received from the clients
+     */
+    long getFramesReceived();
+
+    /**
+     * @return how long the tasks waited in the queue until they were sent
+     */
+    LatencyHistogram getQueueWait();
+
+    /**
+     * @return the time from sending a task to receiving its result
+     */
+    LatencyHistogram getDispatchLatency();
+
+    /**
+     * @return the time to serialize (and compress) a sent frame
+     */
+    LatencyHistogram getSerialization();
+
+    /**
+     * @return the time to deserialize (and decompress) a received frame
+     */
+    LatencyHistogram getDeserialization();
+
+    /**
+     * @return the statistics of the connected clients
+     */
+    List<ClientStatistics> getClientStatistics();
+}
@@ -18,31 +18,67 @@ package de.sdc;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.OutputStream;
-import org.nustaq.serialization.FSTConfiguration;
 
 /**
  * This class offers methods to send and receive objects over the network
- * For faster serialization FST is used.
+ * For faster serialization FST is used by default (see Codec for the other
+ * serializers).
+ *
+ * Every object is sent as a frame which consists of the length of the
+ * serialized object as 4 byte int followed by the serialized object. The
+ * blocking streams and the non blocking channels of the nio engine use the
+ * same frames. The connections write and read their frames with an own
+ * FrameWriter and FrameReader which reuse their buffers. If a connection is
+ * compressed the highest bit of the length marks the compressed frames
  *
  * @author Michael Pietsch (Skywalker-11)
  */
 public class NetworkUtil {
 
+    /**
+     * the number of bytes in front of every frame that contain its length
+     */
+    static final int FRAME_HEADER_LENGTH = 4;
+
+    /**
+     * the bit of the frame header that marks a compressed frame. The other
+     * bits contain the length of the frame content
+     */
+    static final int COMPRESSED_FRAME = 0x80000000;
+
+    /**
+     * the largest frame content that is accepted, before and after it is
+     * inflated. The length is sent by the peer, so a larger length is
+     * rejected before a buffer for the frame is allocated
+     */
+    static final int MAX_FRAME_LENGTH = 256 * 1024 * 1024;
+
     private NetworkUtil() {
     }
 
     /**
-     * this is a part of the java library FST of Ruediger Moeller and is used
-     * for more performant serialization. Available at
-     * http://ruedigermoeller.github.io/fast-serialization/
+     * the codec server and client use if no other codec is configured
      */
-    private static final FSTConfiguration conf = FSTConfiguration.createDefaultConfiguration();
+    static final Codec DEFAULT_CODEC = new FstCodec();
+
+    private static final ThreadLocal<FrameWriter> writers = new ThreadLocal<FrameWriter>() {
+        @Override
+        protected FrameWriter initialValue() {
+            return new FrameWriter(DEFAULT_CODEC);
+        }
+    };
+
+    private static final ThreadLocal<FrameReader> readers = new ThreadLocal<FrameReader>() {
+        @Override
+        protected FrameReader initialValue() {
+            return new FrameReader(DEFAULT_CODEC);
+        }
+    };
 
     /**
-     * This method sends an object over the output stream
+     * This method sends an object over the output stream using the default
+     * codec
      *
      * @param <T> the class of the object what is expected to be received
      * @param toSend the object that should be sended
@@ -50,15 +86,11 @@ public class NetworkUtil {
      * @throws IOException thrown if the sending fails
      */
     protected static <T> void sendObject(T toSend, OutputStream outputStream) throws IOException {
-        ObjectOutputStream oostream = new ObjectOutputStream(outputStream);
-        byte[] buffer = conf.asByteArray(toSend);
-        oostream.writeInt(buffer.length);
-        oostream.write(buffer);
-        oostream.flush();
+        writers.get().write(toSend, outputStream);
     }
 
     /**
-     * receives an object from an input stream
+     * receives an object from an input stream using the default codec
      *
      * @param <T> the object class in which the received object should be casted
      * @param inputStream the inputstream
@@ -66,12 +98,47 @@ public class NetworkUtil {
      * @throws IOException is thrown if the receiving fails
      */
     protected static <T> T receiveObject(InputStream inputStream) throws IOException {
-        ObjectInputStream oistream = new ObjectInputStream(inputStream);
-        int length = oistream.readInt();
-        byte[] buff = new byte[length];
-        while (length > 0) {
-            length -= oistream.read(buff, buff.length - length, length);
+        return readers.get().read(inputStream);
+    }
+
+    /**
+     * @param frameHeader the header of a frame
+     * @return the length of the frame content
+     */
+    static int getFrameLength(int frameHeader) {
+        return frameHeader & ~COMPRESSED_FRAME;
+    }
+
+    /**
+     * returns the length of the content of a received frame
+     *
+     * @param frameHeader the header of a received frame
+     * @return the length of the frame content
+     * @throws IOException thrown if the length exceeds MAX_FRAME_LENGTH
+     */
+    static int getReceivedFrameLength(int frameHeader) throws IOException {
+        return checkFrameLength(getFrameLength(frameHeader));
+    }
+
+    /**
+     * checks a frame length that was sent by the peer
+     *
+     * @param length the length of a frame content
+     * @return the length
+     * @throws IOException thrown if the length exceeds MAX_FRAME_LENGTH
+     */
+    static int checkFrameLength(int length) throws IOException {
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("the frame of " + length + " bytes exceeds the maximum of " + MAX_FRAME_LENGTH + " bytes");
         }
-        return (T) conf.asObject(buff);
+        return length;
+    }
+
+    /**
+     * @param frameHeader the header of a frame
+     * @return true if the frame content is compressed
+     */
+    static boolean isCompressed(int frameHeader) {
+        return (frameHeader & COMPRESSED_FRAME) != 0;
     }
 }
@@ -0,0 +1,471 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Listener for a client that is handled by an event loop of the nio engine.
+ * Received bytes are collected in a read buffer until a whole frame is
+ * available, sent frames are appended to a write buffer until the channel is
+ * writable. Both buffers and the frame writer and reader are reused for all
+ * frames of the connection. Frames that were serialized already (like the
+ * initializer) are queued as they are instead of being copied into the write
+ * buffer. If the
+ * client waits for a task the listener is handed to the dispatcher of the
+ * engine instead of blocking the event loop. If the result sink falls behind
+ * the listener stops reading from the channel until the sink caught up,
+ * instead of waiting in the event loop
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+class NioClientListener extends ClientSession {
+
+    private static final Logger log = LogManager.getLogger(NioClientListener.class);
+    private static final int INITIAL_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private final String address;
+    private final NioEngine engine;
+    private final NioEventLoop loop;
+    private final FrameReader reader;
+    private final FrameWriter writer;
+    /**
+     * guards the write buffer and the writer, because the dispatcher thread
+     * sends tasks too
+     */
+    private final Object writeLock = new Object();
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    /**
+     * buffers in read mode that are written before the write buffer
+     */
+    private final Queue<ByteBuffer> queuedFrames = new ArrayDeque<>();
+    private SelectionKey key;
+
+    private boolean waitingForTask;
+    /**
+     * the channel isn't read while the result sink falls behind, only used by
+     * the event loop
+     */
+    private boolean readSuspended;
+    /**
+     * the result that was received while the result sink falls behind, it is
+     * handled once reading is resumed
+     */
+    private Command suspendedResult;
+    /**
+     * the channel is closed once all queued frames are written
+     */
+    private boolean closing;
+    private volatile boolean closed;
+
+    /**
+     * creates a new listener for a non blocking client channel
+     *
+     * @param channel the channel to the client
+     * @param server the server object that should be used
+     * @param engine the engine that accepted the client
+     * @param loop the event loop that handles the channel
+     */
+    NioClientListener(SocketChannel channel, Server<?, ?> server, NioEngine engine, NioEventLoop loop) {
+        super(server);
+        this.reader = new FrameReader(server.getCodec(), server.getCompressionStatistics());
+        this.reader.setMetrics(server.getMetrics());
+        this.writer = new FrameWriter(server.getCodec());
+        this.writer.setMetrics(server.getMetrics());
+        this.channel = channel;
+        this.address = String.valueOf(channel.socket().getRemoteSocketAddress());
+        this.engine = engine;
+        this.loop = loop;
+        log.info("Connected new client ({})", channel.socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * registers the channel in the selector of the event loop and writes the
+     * frames that were queued before
+     *
+     * @param selector the selector of the event loop
+     */
+    void register(Selector selector) {
+        try {
+            key = channel.register(selector, SelectionKey.OP_READ, this);
+        } catch (IOException ex) {
+            log.warn("Connection lost to Client {}", id);
+            closeChannel();
+            return;
+        }
+        flush();
+    }
+
+    /**
+     * reads from the channel and handles all commands that were received
+     * completely. This is called by the event loop if the channel is readable
+     */
+    synchronized void read() {
+        try {
+            if (channel.read(readBuffer) < 0) {
+                log.warn("Connection lost to Client {}", id);
+                countError();
+                closeChannel();
+                return;
+            }
+            handleFrames();
+        } catch (IOException ex) {
+            log.warn("Connection lost to Client {}: {}", id, ex.getMessage());
+            countError();
+            closeChannel();
+        } catch (RuntimeException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * closes the channel after handling a command of the client threw an
+     * unexpected exception, e.g. a failing codec or command handler. Only this
+     * client is affected, the event loop keeps serving the others
+     *
+     * @param ex the exception thrown while handling the client
+     */
+    private void failed(RuntimeException ex) {
+        log.error("handling client {} failed: closing connection to client", id, ex);
+        countError();
+        closeChannel();
+    }
+
+    /**
+     * handles the frames that were received completely. Stops at a result
+     * while the result sink falls behind, the remaining frames stay in the
+     * read buffer until reading is resumed
+     *
+     * @throws IOException thrown if a frame can't be read or handled or if
+     * its length exceeds the maximum frame length
+     */
+    private void handleFrames() throws IOException {
+        readBuffer.flip();
+        while (readBuffer.remaining() >= NetworkUtil.FRAME_HEADER_LENGTH) {
+            int frameHeader = readBuffer.getInt(readBuffer.position());
+            int frameLength = NetworkUtil.FRAME_HEADER_LENGTH + NetworkUtil.getReceivedFrameLength(frameHeader);
+            if (readBuffer.remaining() < frameLength) {
+                if (readBuffer.capacity() < frameLength) {
+                    //the frame doesn't fit into the buffer
+                    ByteBuffer bigger = ByteBuffer.allocate(frameLength);
+                    bigger.put(readBuffer);
+                    readBuffer = bigger;
+                    return;
+                }
+                break;
+            }
+            readBuffer.position(readBuffer.position() + NetworkUtil.FRAME_HEADER_LENGTH);
+            Command c = reader.read(readBuffer, frameHeader);
+            if (isResult(c) && taskQueue.hasResultBacklog()) {
+                suspendedResult = c;
+                suspendReading();
+                break;
+            }
+            if (!handleCommand(c)) {
+                closeChannel();
+                return;
+            }
+        }
+        if (!readBuffer.hasRemaining() && readBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+            //drop the buffer that grew for a big frame
+            readBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+        } else {
+            readBuffer.compact();
+        }
+    }
+
+    private static boolean isResult(Command c) {
+        return c.getType() == CommandType.RESULT || c.getType() == CommandType.RESULT_BATCH;
+    }
+
+    /**
+     * stops reading from the channel until the result sink caught up
+     */
+    private void suspendReading() {
+        readSuspended = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        taskQueue.whenResultBacklogDrained(new Runnable() {
+            @Override
+            public void run() {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeReading();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * handles the result and the frames that were received while reading was
+     * suspended and reads from the channel again
+     */
+    synchronized void resumeReading() {
+        if (closed || !readSuspended) {
+            return;
+        }
+        readSuspended = false;
+        try {
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            Command result = suspendedResult;
+            suspendedResult = null;
+            if (!handleCommand(result)) {
+                closeChannel();
+                return;
+            }
+            handleFrames();
+        } catch (IOException ex) {
+            log.warn("Connection lost to Client {}: {}", id, ex.getMessage());
+            countError();
+            closeChannel();
+        } catch (RuntimeException ex) {
+            failed(ex);
+        }
+    }
+
+    /**
+     * @return the interest in reading unless reading is suspended
+     */
+    private int readInterest() {
+        return readSuspended ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * the event loop serves other clients too, so it must not wait for the
+     * result sink
+     *
+     * @return always false
+     */
+    @Override
+    protected boolean mayWaitForResultSink() {
+        return false;
+    }
+
+    /**
+     * appends a frame to the write buffer and writes it once the channel is
+     * writable
+     *
+     * @param command the command that should be sent
+     * @throws IOException thrown if the serialization fails
+     */
+    @Override
+    protected void send(Command command) throws IOException {
+        synchronized (writeLock) {
+            writeBuffer = writer.write(command, writeBuffer);
+        }
+        scheduleFlush();
+    }
+
+    /**
+     * queues a frame that was serialized already behind the frames in the
+     * write buffer and writes it once the channel is writable
+     *
+     * @param frame the whole frame including the header
+     */
+    @Override
+    protected void sendFrame(ByteBuffer frame) {
+        synchronized (writeLock) {
+            if (writeBuffer.position() > 0) {
+                //the buffered frames have to be written first
+                writeBuffer.flip();
+                queuedFrames.add(writeBuffer);
+                writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+            }
+            queuedFrames.add(frame);
+        }
+        scheduleFlush();
+    }
+
+    private void scheduleFlush() {
+        if (loop.inEventLoop()) {
+            flush();
+        } else {
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    flush();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void enableCompression(int threshold) {
+        synchronized (writeLock) {
+            writer.enableCompression(threshold, server.getCompression().getLevel(), server.getCompressionStatistics());
+        }
+    }
+
+    @Override
+    protected String getAddress() {
+        return address;
+    }
+
+    /**
+     * writes the buffered frames as far as the channel accepts them. If not
+     * all frames could be written the event loop calls this again once the
+     * channel is writable
+     */
+    void flush() {
+        if (key == null || !key.isValid()) {
+            return;
+        }
+        try {
+            synchronized (writeLock) {
+                for (ByteBuffer frame = queuedFrames.peek(); frame != null; frame = queuedFrames.peek()) {
+                    channel.write(frame);
+                    if (frame.hasRemaining()) {
+                        key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    queuedFrames.remove();
+                }
+                writeBuffer.flip();
+                channel.write(writeBuffer);
+                if (writeBuffer.hasRemaining()) {
+                    writeBuffer.compact();
+                    key.interestOps(readInterest() | SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (writeBuffer.capacity() > INITIAL_BUFFER_SIZE) {
+                    //drop the buffer that grew for a big frame
+                    writeBuffer = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+                } else {
+                    writeBuffer.clear();
+                }
+            }
+            key.interestOps(readInterest());
+            if (closing) {
+                closeChannel();
+            }
+        } catch (IOException ex) {
+            log.warn("Connection lost to Client {}", id);
+            closeChannel();
+        }
+    }
+
+    /**
+     * hands the listener to the dispatcher of the engine which takes a task for
+     * it once one is available
+     *
+     * @return always null, the task is delivered with taskAvailable
+     */
+    @Override
+    protected Task awaitTask() {
+        if (!waitingForTask) {
+            waitingForTask = true;
+            engine.awaitTask(this);
+        }
+        return null;
+    }
+
+    /**
+     * sends a task the dispatcher took for this listener. If the listener is
+     * closed meanwhile the task is made available again
+     *
+     * @param task the task that was taken for this listener
+     */
+    synchronized void taskAvailable(Task task) {
+        waitingForTask = false;
+        if (closed || closing) {
+            taskQueue.setTaskAvailable(task);
+            return;
+        }
+        try {
+            deliverTask(task);
+        } catch (IOException ex) {
+            log.log(Level.ALL, ex);
+        }
+    }
+
+    /**
+     * closes the channel and makes the unfinished tasks of the client
+     * available again
+     */
+    void closeChannel() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            requeueTasks();
+            closeStatistics();
+            reader.close();
+        }
+        synchronized (writeLock) {
+            writer.close();
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            log.log(Level.ALL, ex);
+        }
+        engine.removeListener(this);
+        log.info("client {} disconnected", id);
+    }
+
+    /**
+     * closes the channel of a stalled client without writing the queued
+     * frames
+     */
+    @Override
+    protected void abort() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeChannel();
+            }
+        });
+    }
+
+    /**
+     * sends a disconnect to the client and closes the channel once it is
+     * written
+     */
+    @Override
+    protected void close() {
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sendDisconnect();
+                } catch (IOException ex) {
+                    log.log(Level.ALL, ex);
+                }
+                closing = true;
+                flush();
+            }
+        });
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Engine that handles all clients of a server with a small number of selector
+ * event loops instead of a thread per client. An accepter thread assigns the
+ * accepted channels round robin to the event loops. Clients that wait for a
+ * task are queued for a dispatcher thread, which is the only thread that
+ * blocks in the task queue
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+class NioEngine {
+
+    private static final Logger log = LogManager.getLogger(NioEngine.class);
+
+    private final Server<?, ?> server;
+    private final ServerSocketChannel serverChannel;
+    private final NioEventLoop[] loops;
+    private final Set<NioClientListener> listeners = Collections.newSetFromMap(new ConcurrentHashMap<NioClientListener, Boolean>());
+    private final BlockingQueue<NioClientListener> waitingListeners = new LinkedBlockingQueue<>();
+
+    private Thread accepterThread;
+    private Thread dispatcherThread;
+    private volatile boolean running;
+
+    /**
+     * creates the engine and its event loops
+     *
+     * @param server the server the engine handles the clients for
+     * @param serverChannel the bound channel on which the clients connect
+     * @param loopCount the number of event loops
+     * @throws IOException if a selector could not be opened
+     */
+    NioEngine(Server<?, ?> server, ServerSocketChannel serverChannel, int loopCount) throws IOException {
+        this.server = server;
+        this.serverChannel = serverChannel;
+        this.loops = new NioEventLoop[loopCount];
+        for (int i = 0; i < loopCount; i++) {
+            loops[i] = new NioEventLoop();
+        }
+    }
+
+    /**
+     * starts the event loops and begins to accept clients
+     */
+    void start() {
+        running = true;
+        for (int i = 0; i < loops.length; i++) {
+            new Thread(loops[i], "NioEventLoop" + i).start();
+        }
+        accepterThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptClients();
+            }
+        }, "NioAccepter");
+        accepterThread.start();
+        dispatcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchTasks();
+            }
+        }, "NioDispatcher");
+        dispatcherThread.start();
+    }
+
+    private void acceptClients() {
+        int next = 0;
+        while (running) {
+            try {
+                SocketChannel channel = serverChannel.accept();
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                NioEventLoop loop = loops[next++ % loops.length];
+                NioClientListener listener = new NioClientListener(channel, server, this, loop);
+                listeners.add(listener);
+                loop.register(listener);
+            } catch (IOException ex) {
+                if (running) {
+                    //if the server should be closed an exception occures
+                    //so don't log it in that case
+                    log.error("connection to client failed: {}", ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * takes a task for every waiting listener as soon as one is available
+     */
+    private void dispatchTasks() {
+        TaskQueue<?, ?> taskQueue = server.getTaskQueue();
+        try {
+            while (running) {
+                NioClientListener listener = waitingListeners.take();
+                listener.taskAvailable(taskQueue.takeTask());
+            }
+        } catch (InterruptedException ex) {
+            log.log(Level.TRACE, ex);
+        }
+    }
+
+    /**
+     * queues a listener whose client waits for a task
+     *
+     * @param listener the waiting listener
+     */
+    void awaitTask(NioClientListener listener) {
+        waitingListeners.add(listener);
+    }
+
+    /**
+     * removes a listener whose channel was closed
+     *
+     * @param listener the closed listener
+     */
+    void removeListener(NioClientListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * @return the listeners of the connected clients
+     */
+    Set<NioClientListener> getListeners() {
+        return listeners;
+    }
+
+    /**
+     * @return the number of connected clients
+     */
+    int getClientNumber() {
+        return listeners.size();
+    }
+
+    /**
+     * sends a disconnect to all clients and stops the event loops
+     */
+    void close() {
+        running = false;
+        for (NioClientListener listener : listeners) {
+            listener.close();
+        }
+        try {
+            //wait to let the event loops send the disconnects
+            Thread.sleep(500);
+        } catch (InterruptedException ex) {
+            //ignore exeption
+        }
+        for (NioEventLoop loop : loops) {
+            loop.close();
+        }
+        dispatcherThread.interrupt();
+        accepterThread.interrupt();
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A selector event loop of the nio engine. It reads and writes the channels of
+ * the client listeners registered to it and runs the tasks that other threads
+ * hand over to it
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+class NioEventLoop implements Runnable {
+
+    private static final Logger log = LogManager.getLogger(NioEventLoop.class);
+
+    private final Selector selector;
+    private final Queue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private volatile Thread thread;
+    private volatile boolean running;
+
+    /**
+     * creates the event loop and its selector
+     *
+     * @throws IOException if the selector could not be opened
+     */
+    NioEventLoop() throws IOException {
+        this.selector = Selector.open();
+    }
+
+    /**
+     * selects the ready channels and handles them until the loop is closed
+     */
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        running = true;
+        while (running) {
+            try {
+                selector.select();
+                runPendingTasks();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioClientListener listener = (NioClientListener) key.attachment();
+                    try {
+                        if (key.isValid() && key.isWritable()) {
+                            listener.flush();
+                        }
+                        if (key.isValid() && key.isReadable()) {
+                            listener.read();
+                        }
+                    } catch (RuntimeException ex) {
+                        //only the failing client is dropped, the loop keeps
+                        //serving the other clients
+                        log.error("handling a client failed: closing its connection", ex);
+                        listener.closeChannel();
+                    }
+                }
+            } catch (IOException ex) {
+                log.error("selecting the client channels failed: {}", ex);
+            }
+        }
+        for (SelectionKey key : selector.keys()) {
+            ((NioClientListener) key.attachment()).closeChannel();
+        }
+        try {
+            selector.close();
+        } catch (IOException ex) {
+            log.log(Level.ALL, ex);
+        }
+    }
+
+    /**
+     * runs a task in the event loop
+     *
+     * @param task the task that should be run
+     */
+    void execute(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * @return true, if the calling thread is the thread of this event loop
+     */
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * registers the channel of a listener in the selector of this loop
+     *
+     * @param listener the listener that should be handled by this loop
+     */
+    void register(final NioClientListener listener) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                listener.register(selector);
+            }
+        });
+    }
+
+    private void runPendingTasks() {
+        Runnable task;
+        while ((task = pendingTasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException ex) {
+                log.error("a task of the event loop failed", ex);
+            }
+        }
+    }
+
+    /**
+     * stops the loop and closes the channels that are still registered
+     */
+    void close() {
+        running = false;
+        selector.wakeup();
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.ResultCommand;
+import java.io.IOException;
+
+/**
+ * Receives the results of the tasks as soon as they arrive at the server (see
+ * Server.setResultSink), so they can be streamed to a file or to another
+ * consumer instead of being collected in memory. A task counts as finished
+ * once its result was handed to the sink
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ * @param <T> class of the tasks
+ * @param <R> class of the result commands
+ */
+public interface ResultSink<T extends Task, R extends ResultCommand> {
+
+    /**
+     * handles the result of a task. If the sink is called by several threads
+     * (e.g. by the listeners of the clients or by an executor with many
+     * threads) this method has to be thread safe
+     *
+     * @param task the task that was finished
+     * @param result the result of the task
+     * @throws IOException if the result can't be handled. The error is logged
+     * and the task counts as finished anyway, but the tasks that depend on it
+     * fail without being run
+     */
+    void resultReceived(T task, R result) throws IOException;
+}
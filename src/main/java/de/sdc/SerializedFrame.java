@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A frame (see NetworkUtil) that is serialized once and then written to many
+ * connections, e.g. the init command. The frame is kept in an immutable
+ * buffer outside of the heap. If compression is enabled, a compressed copy is
+ * kept too and sent to the connections that negotiated compression. The hash
+ * of the uncompressed content identifies the frame in the initializer caches
+ * of the clients
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+final class SerializedFrame {
+
+    private final ByteBuffer frame;
+    private final ByteBuffer compressedFrame;
+    private final int length;
+    private final String hash;
+
+    private SerializedFrame(ByteBuffer frame, ByteBuffer compressedFrame, int length, String hash) {
+        this.frame = frame;
+        this.compressedFrame = compressedFrame;
+        this.length = length;
+        this.hash = hash;
+    }
+
+    /**
+     * serializes an object into a frame. The compressed frame is deflated from
+     * the uncompressed one, so the object is serialized only once
+     *
+     * @param object the object that should be sent
+     * @param codec the codec of the connections
+     * @param compression the compression settings of the server
+     * @param statistics the statistics that count the compressed frame
+     * @return the serialized frame
+     * @throws IOException thrown if the serialization fails
+     */
+    static SerializedFrame encode(Object object, Codec codec, Compression compression, CompressionStatistics statistics) throws IOException {
+        FrameWriter writer = new FrameWriter(codec);
+        try {
+            ByteBuffer frame = writer.write(object, ByteBuffer.allocate(0));
+            int length = frame.position() - NetworkUtil.FRAME_HEADER_LENGTH;
+            String hash = InitializerCache.hash(frame.array(), NetworkUtil.FRAME_HEADER_LENGTH, length);
+            ByteBuffer compressedFrame = null;
+            if (compression.isEnabled() && length >= compression.getThreshold()) {
+                writer.enableCompression(compression.getThreshold(), compression.getLevel(), statistics);
+                compressedFrame = writer.compressFrame(frame.array(), NetworkUtil.FRAME_HEADER_LENGTH, length);
+            }
+            return new SerializedFrame(toDirectBuffer(frame), compressedFrame == null ? null : toDirectBuffer(compressedFrame), length, hash);
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static ByteBuffer toDirectBuffer(ByteBuffer frame) {
+        frame.flip();
+        ByteBuffer direct = ByteBuffer.allocateDirect(frame.remaining());
+        direct.put(frame);
+        direct.flip();
+        return direct.asReadOnlyBuffer();
+    }
+
+    /**
+     * @return the SHA-256 hash of the uncompressed frame content
+     */
+    String getHash() {
+        return hash;
+    }
+
+    /**
+     * returns the frame for a connection. Every call returns an own buffer, so
+     * the connections can write the frame independent of each other
+     *
+     * @param compressionThreshold the compression threshold of the connection
+     * @return a read only buffer containing the whole frame
+     */
+    ByteBuffer getFrame(int compressionThreshold) {
+        if (compressedFrame != null && compressionThreshold > 0 && length >= compressionThreshold) {
+            return compressedFrame.duplicate();
+        }
+        return frame.duplicate();
+    }
+}
@@ -16,14 +16,29 @@
  */
 package de.sdc;
 
+import de.sdc.commands.InitCommand;
 import de.sdc.commands.ResultCommand;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.BindException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.util.HashMap;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import javax.management.JMException;
+import javax.management.ObjectName;
 import org.apache.logging.log4j.Level;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
@@ -41,14 +56,51 @@ public class Server<T extends Task, R extends ResultCommand> {
     private static final Logger log = LogManager.getLogger(Server.class);
 
     private final ServerSocket serverSocket;
-    private final Map<ClientListener, Thread> listeners = new HashMap<>();
+    private final Map<ClientListener, Thread> listeners = new ConcurrentHashMap<>();
+    /**
+     * the engine that handles the clients if the nio engine is used, null if
+     * every client is handled by its own ClientListener thread
+     */
+    private final NioEngine nioEngine;
 
-    private final Initializer initializer;
-    private final TaskQueue taskQueue;
+    private volatile Initializer initializer;
+    /**
+     * the init command serialized once for all clients. It is created when
+     * the first client needs it and dropped if the initializer is replaced
+     */
+    private volatile SerializedFrame initializerFrame;
+    /**
+     * a lock instead of a monitor, so a virtual listener thread serializing
+     * the initializer doesn't pin its carrier thread
+     */
+    private final ReentrantLock initializerLock = new ReentrantLock();
+    private final TaskQueue<T, R> taskQueue;
     private final CustomCommandHandler customHandler;
     private ClientAccepter accepter;
+    private ThreadFactory listenerThreadFactory = ListenerThreads.platform();
+    private Codec codec = NetworkUtil.DEFAULT_CODEC;
+    private Compression compression = Compression.NONE;
+    private final CompressionStatistics compressionStatistics = new CompressionStatistics();
+    private TaskJournal journal;
+    /**
+     * the lease timeout in nanoseconds or 0 if the leases don't expire
+     */
+    private long leaseTimeout = 0;
+    private LeaseTimer leaseTimer;
+    private boolean adaptiveDispatch;
+    /**
+     * the sum of the completion rates of the connected clients
+     */
+    private final DoubleAdder completionRate = new DoubleAdder();
+    private Metrics metrics;
+    /**
+     * the name the metrics are registered with at the platform MBean server
+     * or null if they aren't registered
+     */
+    private ObjectName metricsName;
 
     private Thread accepterThread;
+    private volatile boolean started;
 
     /**
      * Initialize the server and creats a socket. No custom commands will be
@@ -58,16 +110,19 @@ public class Server<T extends Task, R extends ResultCommand> {
      * @throws IOException the serverport could not be created
      */
     public Server(int port) throws IOException {
-        try {
-            serverSocket = new ServerSocket(port);
-        } catch (BindException e) {
-            log.fatal("An other server is already running");
-            throw e;
-        }
-        log.info("Server started");
-        this.taskQueue = new TaskQueue();
-        this.initializer = null;
-        this.customHandler = null;
+        this(port, null, null, ServerEngine.BLOCKING);
+    }
+
+    /**
+     * Initialize the server and creats a socket. No custom commands will be
+     * handle by the server. An empty init command will be send to the client
+     *
+     * @param port the server port
+     * @param engine the engine that should handle the clients
+     * @throws IOException the serverport could not be created
+     */
+    public Server(int port, ServerEngine engine) throws IOException {
+        this(port, null, null, engine);
     }
 
     /**
@@ -80,16 +135,7 @@ public class Server<T extends Task, R extends ResultCommand> {
      * @throws IOException the serverport could not be created
      */
     public Server(int port, Initializer initializer) throws IOException {
-        try {
-            serverSocket = new ServerSocket(port);
-        } catch (BindException e) {
-            log.fatal("An other server is already running");
-            throw e;
-        }
-        log.info("Server started");
-        this.initializer = initializer;
-        this.taskQueue = new TaskQueue();
-        this.customHandler = null;
+        this(port, initializer, null, ServerEngine.BLOCKING);
     }
 
     /**
@@ -102,34 +148,383 @@ public class Server<T extends Task, R extends ResultCommand> {
      * @throws IOException the serverport could not be created
      */
     public Server(int port, Initializer initializer, CustomCommandHandler customHandler) throws IOException {
+        this(port, initializer, customHandler, ServerEngine.BLOCKING);
+    }
+
+    /**
+     * initialize the server and creats a socket
+     *
+     * @param port the server port
+     * @param initializer the initializer that should be used to init the
+     * clients
+     * @param customHandler handler for custom commands (commandID = CUSTOM)
+     * @param engine the engine that should handle the clients
+     * @throws IOException the serverport could not be created
+     */
+    public Server(int port, Initializer initializer, CustomCommandHandler customHandler, ServerEngine engine) throws IOException {
+        this.initializer = initializer;
+        this.taskQueue = new TaskQueue<>();
+        this.customHandler = customHandler;
         try {
-            serverSocket = new ServerSocket(port);
+            if (engine == ServerEngine.NIO) {
+                ServerSocketChannel serverChannel = ServerSocketChannel.open();
+                try {
+                    serverChannel.socket().bind(new InetSocketAddress(port));
+                } catch (IOException e) {
+                    serverChannel.close();
+                    throw e;
+                }
+                serverSocket = serverChannel.socket();
+                nioEngine = new NioEngine(this, serverChannel, Runtime.getRuntime().availableProcessors());
+            } else {
+                serverSocket = new ServerSocket(port);
+                nioEngine = null;
+            }
         } catch (BindException e) {
             log.fatal("An other server is already running");
             throw e;
         }
         log.info("Server started");
-        this.initializer = initializer;
-        this.taskQueue = new TaskQueue();
-        this.customHandler = customHandler;
     }
 
     /**
      * starts accepting the client and listening for their commands
      */
     public void start() {
-        accepter = new ClientAccepter(this);
+        started = true;
+        if (metrics != null) {
+            registerMetrics();
+        }
+        if (leaseTimeout > 0) {
+            leaseTimer = new LeaseTimer(leaseTimeout, TimeUnit.NANOSECONDS);
+            leaseTimer.start();
+        }
+        if (nioEngine != null) {
+            nioEngine.start();
+            return;
+        }
+        accepter = new ClientAccepter(this, listenerThreadFactory);
         accepterThread = new Thread(accepter, "ClientAccepter");
         accepterThread.start();
     }
 
     /**
-     * creates a copy of the initializer
+     * sets the factory for the threads the client listeners of the blocking
+     * engine run in. With ListenerThreads.virtual() every listener runs in a
+     * virtual thread. This has to be called before the server is started
+     *
+     * @param threadFactory factory for the listener threads
+     */
+    public void setListenerThreadFactory(ThreadFactory threadFactory) {
+        checkNotStarted();
+        this.listenerThreadFactory = threadFactory;
+    }
+
+    /**
+     * lets the tasks sent to a client expire if the client hasn't sent
+     * anything within the timeout, e.g. because it hangs or the connection is
+     * half-open. Their tasks are then given to other clients and the
+     * connection to the client is closed. A client that works longer than the
+     * timeout on a task has to send heartbeats (see Client.heartbeat). By
+     * default the tasks are only taken back if the connection is lost. This
+     * has to be called before the server is started
+     *
+     * @param timeout the lease timeout, 0 if the leases shouldn't expire
+     * @param unit the unit of the timeout
+     */
+    public void setLeaseTimeout(long timeout, TimeUnit unit) {
+        checkNotStarted();
+        if (timeout < 0) {
+            throw new IllegalArgumentException("the lease timeout must not be negative");
+        }
+        this.leaseTimeout = unit.toNanos(timeout);
+    }
+
+    /**
+     * enables speculative execution: if no task is available, a client that
+     * waits for a task or has room in its leased window gets a copy of the
+     * task that runs the longest on another client, so a slow client doesn't
+     * delay the end of the job. Only tasks that run longer
+     * than the threshold are copied, and every task at most once. The first
+     * result of a task is taken, the results of the copies are ignored. This
+     * has to be called before the server is started
+     *
+     * @param stragglerThreshold the running time after which a task is
+     * copied, 0 if the tasks shouldn't be copied
+     * @param unit the unit of the threshold
+     */
+    public void setSpeculativeExecution(long stragglerThreshold, TimeUnit unit) {
+        checkNotStarted();
+        taskQueue.setStragglerThreshold(stragglerThreshold, unit);
+    }
+
+    /**
+     * adapts the number of tasks that are outstanding at a leasing client to
+     * its measured completion rate and latency. The window of the lease is
+     * then the upper bound, so fast clients get enough tasks to never run dry
+     * while slow clients get fewer. Near the end of the job every client gets
+     * at most its share of the unfinished tasks. This has to be called before
+     * the server is started
+     *
+     * @param adaptive true if the windows should be adapted
+     */
+    public void setAdaptiveDispatch(boolean adaptive) {
+        checkNotStarted();
+        this.adaptiveDispatch = adaptive;
+    }
+
+    /**
+     * @return true if the windows of the clients are adapted
+     */
+    boolean isAdaptiveDispatch() {
+        return adaptiveDispatch;
+    }
+
+    /**
+     * adds the change of the completion rate of a client
+     *
+     * @param delta the difference to the former rate of the client
+     */
+    void addCompletionRate(double delta) {
+        completionRate.add(delta);
+    }
+
+    /**
+     * @return the tasks all clients finish per second
+     */
+    double getCompletionRate() {
+        return completionRate.sum();
+    }
+
+    /**
+     * returns the live statistics of the connected clients, like their
+     * completion rate, latency and the number of tasks that are dispatched to
+     * them
+     *
+     * @return a snapshot of the statistics of every connected client
+     */
+    public List<ClientStatistics> getClientStatistics() {
+        List<ClientStatistics> statistics = new ArrayList<>();
+        Collection<? extends ClientSession> sessions = nioEngine != null ? nioEngine.getListeners() : listeners.keySet();
+        for (ClientSession session : sessions) {
+            statistics.add(session.getStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * enables the metrics of the server, like the queue wait and dispatch
+     * latency of the tasks, the bytes on the wire and the errors of the
+     * clients. While the server is running the metrics are registered as
+     * MXBean "de.sdc:type=Server,port=&lt;port&gt;", so they can be watched
+     * with JConsole or any other JMX client. They are disabled by default, so
+     * the hot paths don't measure anything. This has to be called before the
+     * server is started
+     *
+     * @param enabled true if the metrics should be collected
+     */
+    public void setMetricsEnabled(boolean enabled) {
+        checkNotStarted();
+        metrics = enabled ? new Metrics(this) : null;
+        taskQueue.setMetrics(metrics);
+    }
+
+    /**
+     * @return the metrics of the server or null if they aren't enabled
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    private void registerMetrics() {
+        try {
+            ObjectName name = new ObjectName("de.sdc:type=Server,port=" + serverSocket.getLocalPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics, name);
+            metricsName = name;
+        } catch (JMException ex) {
+            log.warn("the metrics could not be registered: {}", ex.toString());
+        }
+    }
+
+    private void unregisterMetrics() {
+        if (metricsName == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException ex) {
+            log.warn("the metrics could not be unregistered: {}", ex.toString());
+        }
+        metricsName = null;
+    }
+
+    /**
+     * @return the timer of the leases or null if the leases don't expire
+     */
+    LeaseTimer getLeaseTimer() {
+        return leaseTimer;
+    }
+
+    private void checkNotStarted() {
+        if (started) {
+            throw new IllegalStateException("the server is already started");
+        }
+    }
+
+    /**
+     * sets the codec that serializes the commands. The clients have to use the
+     * same codec. This has to be called before the server is started
+     *
+     * @param codec the codec that should be used
+     */
+    public void setCodec(Codec codec) {
+        checkNotStarted();
+        this.codec = codec;
+    }
+
+    /**
+     * @return the codec that serializes the commands
+     */
+    Codec getCodec() {
+        return codec;
+    }
+
+    /**
+     * hands the results to a sink as soon as they arrive instead of collecting
+     * them in the result list. The sink is called by the thread that received
+     * the result, so a slow sink slows down the clients. This has to be
+     * called before the server is started
+     *
+     * @param sink the sink that receives the results
+     */
+    public void setResultSink(ResultSink<T, R> sink) {
+        setResultSink(sink, null, 1);
+    }
+
+    /**
+     * hands the results to a sink as soon as they arrive instead of collecting
+     * them in the result list. The sink is called by the executor. If
+     * maxPendingResults results are waiting for the executor, the server stops
+     * reading from the clients that send more results until the sink has
+     * caught up. The nio engine never waits for the sink in its event loops,
+     * so with it the limit may be exceeded by about one result per client.
+     * This has to be called before the server is started
      *
-     * @return a full copy of the initializer
+     * @param sink the sink that receives the results
+     * @param executor the executor that calls the sink
+     * @param maxPendingResults the number of results that may wait for the
+     * executor
      */
-    protected synchronized Initializer getInitializerCopy() {
-        return initializer == null ? null : initializer.copy();
+    public void setResultSink(ResultSink<T, R> sink, Executor executor, int maxPendingResults) {
+        checkNotStarted();
+        taskQueue.setResultSink(sink, executor, maxPendingResults);
+    }
+
+    /**
+     * records the tasks in a journal, so the server can continue after a
+     * crash. The state of a previous server that used the same journal
+     * directory is restored first: its unfinished tasks are available again
+     * and its finished tasks count as finished (check getProgress before
+     * adding the tasks of a job again). The journal doesn't record the
+     * results, so a result sink that stores them, e.g. MappedResultLog, is
+     * required. Call TaskJournal.flush after adding the tasks of a job, added
+     * tasks that are not written yet are lost in a crash. The journal is
+     * closed with the server.
+     * This has to be called before the server is started and after the result
+     * sink is set
+     *
+     * @param journal the journal of the server
+     * @throws IOException thrown if the journal can't be read
+     * @throws IllegalStateException if no result sink is set, the results
+     * collected in memory would be lost in a crash while their tasks count as
+     * finished
+     */
+    public void setJournal(TaskJournal journal) throws IOException {
+        checkNotStarted();
+        if (this.journal != null) {
+            throw new IllegalStateException("the server has a journal already");
+        }
+        if (!taskQueue.hasResultSink()) {
+            throw new IllegalStateException("a result sink that stores the results has to be set before the journal");
+        }
+        TaskJournal.Recovery recovery = journal.recover();
+        //new tasks must not reuse the id of a finished task either, a
+        //dependent of the new task would see it as finished
+        Task.reserveIds(recovery.highestTaskId);
+        taskQueue.restore(recovery);
+        taskQueue.setJournal(journal);
+        this.journal = journal;
+    }
+
+    /**
+     * enables the compression of large frames. A connection is only
+     * compressed if the client enables the compression too. This has to be
+     * called before the server is started
+     *
+     * @param compression the compression settings of the server
+     */
+    public void setCompression(Compression compression) {
+        checkNotStarted();
+        this.compression = compression;
+    }
+
+    /**
+     * @return the compression settings of the server
+     */
+    Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * returns the statistics of the compression of all connections
+     *
+     * @return the compression statistics of the server
+     */
+    public CompressionStatistics getCompressionStatistics() {
+        return compressionStatistics;
+    }
+
+    /**
+     * replaces the initializer. Clients that connect afterwards receive the
+     * new initializer, connected clients keep the old one. The initializer is
+     * serialized once for all clients, so if it is changed this method has to
+     * be called again
+     *
+     * @param initializer the initializer that should be used to init the
+     * clients
+     */
+    public void setInitializer(Initializer initializer) {
+        initializerLock.lock();
+        try {
+            this.initializer = initializer;
+            this.initializerFrame = null;
+        } finally {
+            initializerLock.unlock();
+        }
+    }
+
+    /**
+     * returns the init command serialized for all clients. It is serialized
+     * when this is called the first time after the initializer was set
+     *
+     * @return the serialized init command or null if there is no initializer
+     * @throws IOException thrown if the serialization fails
+     */
+    SerializedFrame getInitializerFrame() throws IOException {
+        SerializedFrame frame = initializerFrame;
+        if (frame != null || initializer == null) {
+            return frame;
+        }
+        initializerLock.lock();
+        try {
+            if (initializerFrame == null && initializer != null) {
+                initializerFrame = SerializedFrame.encode(new InitCommand(initializer), codec, compression, compressionStatistics);
+                log.info("serialized the initializer once for all clients");
+            }
+            return initializerFrame;
+        } finally {
+            initializerLock.unlock();
+        }
     }
 
     /**
@@ -176,19 +571,118 @@ public class Server<T extends Task, R extends ResultCommand> {
     }
 
     /**
-     * resets the task queue and the result list
+     * resets the task queue and the result list. The futures of the unfinished
+     * tasks are cancelled
      */
     public void resetQueue() {
         taskQueue.resetQueue();
     }
 
     /**
-     * adds a task to the task queue
+     * adds a task to the task queue. The returned future completes with the
+     * result of the task in the thread that finished the task, so longer
+     * follow-up work should be chained with the async methods of the future.
+     * If the task has unfinished predecessors (see Task.getPredecessors) it
+     * is sent to the clients once they are finished. A task with the id of an
+     * unfinished task isn't added again, the future of the unfinished task is
+     * returned instead. The task must not be changed after it was added, it is
+     * serialized when it is sent and, with a journal, when it is recorded
      *
      * @param task task to be added
+     * @return a future that completes with the result of the task
+     * @throws IllegalArgumentException if a predecessor of the task was not
+     * added before, or if the task needs the results of its predecessors, a
+     * result sink is set and a predecessor is finished already
+     * @throws java.io.UncheckedIOException if the journal failed to write its
+     * records, the task isn't added then
+     */
+    public CompletableFuture<R> addTask(T task) {
+        return taskQueue.addTask(task);
+    }
+
+    /**
+     * adds a task to the task queue with the given priority instead of the
+     * priority of the task
+     *
+     * @param task task to be added
+     * @param priority the priority of the task, higher priorities are sent to
+     * the clients first
+     * @return a future that completes with the result of the task
+     */
+    public CompletableFuture<R> addTask(T task, int priority) {
+        return taskQueue.addTask(task, priority);
+    }
+
+    /**
+     * adds a task to a named queue that was added with
+     * {@link #addQueue(String, int)}
+     *
+     * @param task task to be added
+     * @param queue the name of the queue
+     * @return a future that completes with the result of the task
+     * @throws IllegalArgumentException if there is no queue with this name
+     */
+    public CompletableFuture<R> addTask(T task, String queue) {
+        return taskQueue.addTask(task, queue);
+    }
+
+    /**
+     * adds a named queue, e.g. "interactive" with a high and "batch" with a
+     * low priority. Adding a queue with an existing name changes its priority
+     * for the tasks added afterwards
+     *
+     * @param name the name of the queue
+     * @param priority the priority of the tasks that are added to the queue
+     */
+    public void addQueue(String name, int priority) {
+        taskQueue.addQueue(name, priority);
+    }
+
+    /**
+     * sets how long a waiting task needs to overtake the tasks with a priority
+     * that is one higher. So a low priority task is never starved. The default
+     * is one second
+     *
+     * @param aging the aging interval, a longer interval makes the priorities
+     * stricter
+     * @param unit the unit of the aging interval
+     */
+    public void setPriorityAging(long aging, TimeUnit unit) {
+        taskQueue.setPriorityAging(aging, unit);
+    }
+
+    /**
+     * adds a group of tasks to the task queue
+     *
+     * @param tasks the tasks to be added
+     * @return a future that completes with the results of the tasks in the
+     * order of the tasks once all of them are finished
+     */
+    public CompletableFuture<List<R>> addTasks(Collection<? extends T> tasks) {
+        final List<CompletableFuture<R>> futures = new ArrayList<>(tasks.size());
+        for (T task : tasks) {
+            futures.add(taskQueue.addTask(task));
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(new Function<Void, List<R>>() {
+            @Override
+            public List<R> apply(Void ignored) {
+                List<R> results = new ArrayList<>(futures.size());
+                for (CompletableFuture<R> future : futures) {
+                    results.add(future.join());
+                }
+                return results;
+            }
+        });
+    }
+
+    /**
+     * returns a future that completes once all tasks that are queued are
+     * finished, without polling allTasksFinished
+     *
+     * @return a future that completes once no task is unfinished
      */
-    public void addTask(T task) {
-        taskQueue.addTask(task);
+    public CompletableFuture<Void> whenAllTasksFinished() {
+        return taskQueue.whenAllTasksFinished();
     }
 
     /**
@@ -199,7 +693,9 @@ public class Server<T extends Task, R extends ResultCommand> {
     }
 
     /**
-     * @return list of the results received from the clients
+     * @return a copy of the list of the results received from the clients in
+     * the order they arrived, with the last result of every task id. It is
+     * empty if the results are handed to a result sink
      */
     public List<R> getResults() {
         return taskQueue.getResults();
@@ -209,7 +705,7 @@ public class Server<T extends Task, R extends ResultCommand> {
      * @return the number of clients that are connected to the server
      */
     public int getCurrentClientNumber() {
-        return listeners.size();
+        return nioEngine != null ? nioEngine.getClientNumber() : listeners.size();
     }
 
     /**
@@ -224,28 +720,56 @@ public class Server<T extends Task, R extends ResultCommand> {
      * closes connections to all clients and ends the server
      */
     public void close() {
-        accepter.close();
-        synchronized (listeners) {
-            for (ClientListener listener : listeners.keySet()) {
-                listener.close();
-            }
+        unregisterMetrics();
+        if (leaseTimer != null) {
+            leaseTimer.stop();
+        }
+        if (nioEngine != null) {
+            nioEngine.close();
             try {
-                //wait to let the listeners close the connection
-                Thread.sleep(500);
-            } catch (InterruptedException ex) {
-                //ignore exeption
+                serverSocket.close();
+            } catch (IOException ex) {
+                log.log(Level.ALL, ex);
             }
-            Thread[] listenerThreads = listeners.values().toArray(new Thread[listeners.size()]);
-            for (int i = 0; i < listeners.size(); i++) {
-                listenerThreads[i].interrupt();
+            closeJournal();
+            return;
+        }
+        if (accepter == null) {
+            //the server wasn't started, e.g. because its setup failed
+            try {
+                serverSocket.close();
+            } catch (IOException ex) {
+                log.log(Level.ALL, ex);
             }
-            listeners.clear();
+            closeJournal();
+            return;
+        }
+        accepter.close();
+        for (ClientListener listener : listeners.keySet()) {
+            listener.close();
         }
+        try {
+            //wait to let the listeners close the connection
+            Thread.sleep(500);
+        } catch (InterruptedException ex) {
+            //ignore exeption
+        }
+        for (Thread listenerThread : listeners.values()) {
+            listenerThread.interrupt();
+        }
+        listeners.clear();
         try {
             serverSocket.close();
         } catch (IOException ex) {
             log.log(Level.ALL, ex);
         }
         accepterThread.interrupt();
+        closeJournal();
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            journal.close();
+        }
     }
 }
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+/**
+ * The engines a server could use to handle the connections to its clients
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public enum ServerEngine {
+
+    /**
+     * every client is handled by its own thread which blocks while reading
+     * from the socket of the client
+     */
+    BLOCKING,
+    /**
+     * all clients are handled by a small number of selector event loops using
+     * non blocking channels. This is suitable for thousands of clients
+     */
+    NIO
+}
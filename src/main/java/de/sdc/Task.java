@@ -16,7 +16,11 @@
  */
 package de.sdc;
 
+import de.sdc.commands.ResultCommand;
 import java.io.Serializable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
 
 /**
@@ -29,6 +33,11 @@ public abstract class Task implements Serializable {
 
     private static final AtomicInteger nextId = new AtomicInteger(0);
     private final int id;
+    /**
+     * the results of the predecessors by their task id, set by the server if
+     * the task needs them
+     */
+    private Map<Integer, ResultCommand> predecessorResults;
 
     public Task() {
         this.id = nextId.getAndIncrement();
@@ -37,4 +46,70 @@ public abstract class Task implements Serializable {
     public int getId() {
         return id;
     }
+
+    /**
+     * returns the priority the task is queued with if no other priority is
+     * given when it is added to the server. Tasks with a higher priority are
+     * sent to the clients first. Override this to prioritize tasks
+     *
+     * @return the priority of the task, 0 by default
+     */
+    public int getPriority() {
+        return 0;
+    }
+
+    /**
+     * returns the ids of the tasks that have to be finished before this task
+     * is sent to a client. The predecessors have to be added to the server
+     * before this task, the task waits until all of them are finished. So the
+     * dependencies can't form a cycle. Override this to let the task depend on
+     * other tasks
+     *
+     * @return the ids of the predecessors, none by default
+     */
+    public Collection<Integer> getPredecessors() {
+        return Collections.emptyList();
+    }
+
+    /**
+     * tells the server whether it should pass the results of the predecessors
+     * to the task (see getPredecessorResults). Override this if the task needs
+     * them
+     *
+     * @return true if the task needs the results of its predecessors, false
+     * by default
+     */
+    public boolean needsPredecessorResults() {
+        return false;
+    }
+
+    /**
+     * returns the results of the predecessors if the task needs them. If the
+     * results are handed to a result sink, the server doesn't keep them, so
+     * such a task has to be added before its predecessors are finished (see
+     * Server.addTask)
+     *
+     * @return the results by the id of their task, empty if the task doesn't
+     * need them
+     */
+    public Map<Integer, ResultCommand> getPredecessorResults() {
+        return predecessorResults == null ? Collections.<Integer, ResultCommand>emptyMap() : predecessorResults;
+    }
+
+    void setPredecessorResults(Map<Integer, ResultCommand> results) {
+        this.predecessorResults = results;
+    }
+
+    /**
+     * makes sure that tasks created afterwards get a higher id than the given
+     * one, e.g. because tasks with lower ids were recovered from a journal
+     *
+     * @param id the highest id that is in use
+     */
+    static void reserveIds(int id) {
+        int next = nextId.get();
+        while (next <= id && !nextId.compareAndSet(next, id + 1)) {
+            next = nextId.get();
+        }
+    }
 }
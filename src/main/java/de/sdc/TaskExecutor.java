@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.ResultCommand;
+
+/**
+ * Computes the result of a task on a client. An executor that is used by a
+ * WorkerRuntime is called by several threads at once, so it has to be thread
+ * safe, and the initializer is shared by all of them
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ * @param <T> the task class
+ * @param <R> the result command class
+ */
+public interface TaskExecutor<T extends Task, R extends ResultCommand> {
+
+    /**
+     * computes the result of a task
+     *
+     * @param task the task received from the server
+     * @param initializer the initializer of the server or null if the server
+     * has none. It must not be changed
+     * @return the result that is sent to the server
+     * @throws Exception if the task can't be computed
+     */
+    R execute(T task, Initializer initializer) throws Exception;
+}
@@ -0,0 +1,609 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A write ahead journal of the task queue, so a server can continue its job
+ * after a crash (see Server.setJournal). Every added, dispatched, finished and
+ * requeued task is recorded. The records are written by a separate thread
+ * which writes all records that were queued meanwhile at once and forces them
+ * to the disk once per batch, so the threads handling the clients don't wait
+ * for the disk.
+ *
+ * The journal keeps track of the unfinished tasks and the ids of the finished
+ * tasks itself. After a number of records it writes this state to a snapshot
+ * and starts a new journal file, so the older files can be deleted. To
+ * recover, the last snapshot is loaded and the journal files written after it
+ * are replayed. The results are not recorded, a result sink that stores them
+ * (e.g. MappedResultLog) keeps them across a crash. A task is only recorded as
+ * finished once the sink accepted its result, so the result is in the sink
+ * before the finish record can be written (a MappedResultLog only forces
+ * its results to the disk on force or close).
+ *
+ * Records that were queued but not written when the server died are lost. A
+ * lost finish record means the task is computed again, but a lost add record
+ * drops the task, so flush has to be called after adding tasks that must not
+ * get lost. The added tasks are encoded by the writer thread, so a task must
+ * not be changed after it was added, the journal could record the changed
+ * state.
+ *
+ * If the journal can't be written, it stops recording: flush and the methods
+ * recording added, finished and reset tasks throw the error from then on, the
+ * records of dispatched and requeued tasks are dropped as they don't change
+ * the recovered state
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class TaskJournal implements Closeable {
+
+    private static final Logger log = LogManager.getLogger(TaskJournal.class);
+
+    /**
+     * the number of records after which a snapshot is written if no other
+     * interval is given
+     */
+    public static final int DEFAULT_SNAPSHOT_INTERVAL = 100000;
+    /**
+     * every record starts with the length and the checksum of its content
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+    private static final String JOURNAL_PREFIX = "journal-";
+    private static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    private static final byte ADD = 1;
+    private static final byte DISPATCH = 2;
+    private static final byte FINISH = 3;
+    private static final byte REQUEUE = 4;
+    private static final byte RESET = 5;
+    /**
+     * only queued by flush, it is not written
+     */
+    private static final byte SYNC = 6;
+
+    private final Path directory;
+    private final Codec codec;
+    private final int snapshotInterval;
+    private final BlockingQueue<Event> pendingEvents = new LinkedBlockingQueue<>();
+
+    /**
+     * the state recorded in the journal, only used by the writer thread after
+     * the recovery
+     */
+    private final Map<Integer, Task> unfinishedTasks = new LinkedHashMap<>();
+    private final Set<Integer> finishedTaskIds = new HashSet<>();
+    /**
+     * the highest id of a task that was ever added, also if the task is
+     * finished or the queue was reset since, or -1 if no task was added
+     */
+    private int highestTaskId = -1;
+
+    private int journalIndex;
+    private FileChannel journal;
+    private int recordsSinceSnapshot;
+    private Thread writerThread;
+    private volatile boolean running;
+    /**
+     * the error that stopped the writer from writing records or null
+     */
+    private volatile IOException failure;
+
+    /**
+     * opens the journal in a directory with the default snapshot interval.
+     * The records are serialized with the default codec
+     *
+     * @param directory the directory of the journal and snapshot files
+     * @throws IOException thrown if the directory can't be created
+     */
+    public TaskJournal(Path directory) throws IOException {
+        this(directory, NetworkUtil.DEFAULT_CODEC, DEFAULT_SNAPSHOT_INTERVAL);
+    }
+
+    /**
+     * opens the journal in a directory
+     *
+     * @param directory the directory of the journal and snapshot files
+     * @param codec the codec that serializes the tasks
+     * @param snapshotInterval the number of records after which a snapshot is
+     * written
+     * @throws IOException thrown if the directory can't be created
+     */
+    public TaskJournal(Path directory, Codec codec, int snapshotInterval) throws IOException {
+        if (snapshotInterval < 1) {
+            throw new IllegalArgumentException("the snapshot interval must be at least 1");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.codec = codec;
+        this.snapshotInterval = snapshotInterval;
+    }
+
+    /**
+     * restores the state from the last snapshot and the journal files written
+     * afterwards and starts the writer thread
+     *
+     * @return the state that was recovered
+     * @throws IOException thrown if the files can't be read
+     */
+    Recovery recover() throws IOException {
+        Codec.Decoder decoder = codec.createDecoder();
+        List<Integer> snapshots = listIndices(SNAPSHOT_PREFIX);
+        if (!snapshots.isEmpty()) {
+            journalIndex = snapshots.get(snapshots.size() - 1);
+            byte[] content = Files.readAllBytes(file(SNAPSHOT_PREFIX, journalIndex));
+            Object decoded = decoder.decode(content, content.length);
+            if (!(decoded instanceof Snapshot)) {
+                throw new IOException("snapshot " + journalIndex + " is corrupt");
+            }
+            Snapshot snapshot = (Snapshot) decoded;
+            for (Task task : snapshot.tasks) {
+                unfinishedTasks.put(task.getId(), task);
+            }
+            for (int id : snapshot.finishedTaskIds) {
+                finishedTaskIds.add(id);
+            }
+            highestTaskId = snapshot.highestTaskId;
+        }
+        int replayed = 0;
+        for (int index : listIndices(JOURNAL_PREFIX)) {
+            if (index >= journalIndex) {
+                replayed += replay(file(JOURNAL_PREFIX, index), decoder);
+                journalIndex = index;
+            }
+        }
+        log.info("recovered {} unfinished and {} finished tasks, replayed {} records", unfinishedTasks.size(), finishedTaskIds.size(), replayed);
+        //continue in a new file, so a torn record at the end of the last file
+        //is never followed by valid records
+        journalIndex++;
+        journal = openJournal(journalIndex);
+        recordsSinceSnapshot = replayed;
+        running = true;
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        }, "TaskJournal");
+        writerThread.setDaemon(true);
+        writerThread.start();
+        return new Recovery(new ArrayList<>(unfinishedTasks.values()), new HashSet<>(finishedTaskIds), highestTaskId);
+    }
+
+    /**
+     * applies the records of a journal file to the state. A torn or corrupt
+     * record ends the replay of the file
+     *
+     * @return the number of applied records
+     */
+    private int replay(Path file, Codec.Decoder decoder) throws IOException {
+        int replayed = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
+            byte[] content = new byte[4 * 1024];
+            CRC32 crc = new CRC32();
+            while (true) {
+                header.clear();
+                if (!readFully(channel, header)) {
+                    break;
+                }
+                int length = header.getInt(0);
+                int checksum = header.getInt(4);
+                if (length <= 0 || length > channel.size() - channel.position()) {
+                    break;
+                }
+                if (content.length < length) {
+                    content = new byte[Math.max(length, content.length * 2)];
+                }
+                if (!readFully(channel, ByteBuffer.wrap(content, 0, length))) {
+                    break;
+                }
+                crc.reset();
+                crc.update(content, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    log.warn("journal {} has a corrupt record, the rest of the file is ignored", file.getFileName());
+                    break;
+                }
+                Object decoded;
+                try {
+                    decoded = decoder.decode(content, length);
+                } catch (IOException | RuntimeException ex) {
+                    decoded = ex;
+                }
+                if (!(decoded instanceof Event)) {
+                    log.warn("journal {} has a record that is no event, the rest of the file is ignored", file.getFileName());
+                    break;
+                }
+                apply((Event) decoded);
+                replayed++;
+            }
+        }
+        return replayed;
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer target) throws IOException {
+        while (target.hasRemaining()) {
+            if (channel.read(target) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * records an added task. The task is encoded later by the writer thread,
+     * so it must not be changed anymore
+     *
+     * @param task the task that was added to the queue
+     * @throws UncheckedIOException if the journal failed to write a record
+     */
+    void taskAdded(Task task) {
+        checkFailure();
+        pendingEvents.add(new Event(ADD, task.getId(), task));
+    }
+
+    /**
+     * records a task that was sent to a client
+     *
+     * @param task the task that is running now
+     */
+    void taskDispatched(Task task) {
+        if (failure == null) {
+            pendingEvents.add(new Event(DISPATCH, task.getId(), null));
+        }
+    }
+
+    /**
+     * records a finished task
+     *
+     * @param task the finished task
+     * @throws UncheckedIOException if the journal failed to write a record
+     */
+    void taskFinished(Task task) {
+        checkFailure();
+        pendingEvents.add(new Event(FINISH, task.getId(), null));
+    }
+
+    /**
+     * records a task that is available again because its client disconnected
+     *
+     * @param task the task that is available again
+     */
+    void taskRequeued(Task task) {
+        if (failure == null) {
+            pendingEvents.add(new Event(REQUEUE, task.getId(), null));
+        }
+    }
+
+    /**
+     * records that the queue was reset
+     *
+     * @throws UncheckedIOException if the journal failed to write a record
+     */
+    void queueReset() {
+        checkFailure();
+        pendingEvents.add(new Event(RESET, 0, null));
+    }
+
+    private void checkFailure() {
+        IOException ex = failure;
+        if (ex != null) {
+            throw new UncheckedIOException("the task journal failed", ex);
+        }
+    }
+
+    /**
+     * waits until all records that were queued before are written to the disk
+     *
+     * @throws InterruptedException if the thread was interrupted while waiting
+     * @throws IOException if the journal failed to write the records
+     */
+    public void flush() throws InterruptedException, IOException {
+        if (failure != null) {
+            throw new IOException("the task journal failed", failure);
+        }
+        if (!running) {
+            return;
+        }
+        Event sync = new Event(SYNC, 0, null);
+        sync.written = new CountDownLatch(1);
+        pendingEvents.add(sync);
+        while (running && !sync.written.await(100, TimeUnit.MILLISECONDS)) {
+            //check again if the journal was closed meanwhile
+        }
+        if (failure != null) {
+            throw new IOException("the task journal failed", failure);
+        }
+    }
+
+    /**
+     * writes the queued records in batches until the journal is closed
+     */
+    private void writeEvents() {
+        Codec.Encoder encoder = codec.createEncoder();
+        CRC32 crc = new CRC32();
+        ByteBuffer batch = ByteBuffer.allocate(64 * 1024);
+        List<Event> events = new ArrayList<>();
+        List<Event> syncs = new ArrayList<>();
+        while (running || !pendingEvents.isEmpty()) {
+            try {
+                Event first = pendingEvents.take();
+                events.add(first);
+                pendingEvents.drainTo(events);
+                //the syncs are collected first, so they are released even if
+                //writing the batch fails
+                for (Event event : events) {
+                    if (event.type == SYNC) {
+                        syncs.add(event);
+                    }
+                }
+                if (failure != null) {
+                    //the records can't be persisted anymore, the syncs are
+                    //only released so their waiters see the failure
+                    continue;
+                }
+                batch.clear();
+                for (Event event : events) {
+                    if (event.type == SYNC) {
+                        continue;
+                    }
+                    int length = encoder.encode(event);
+                    if (batch.remaining() < RECORD_HEADER_LENGTH + length) {
+                        batch = write(batch, RECORD_HEADER_LENGTH + length);
+                    }
+                    crc.reset();
+                    crc.update(encoder.getBuffer(), 0, length);
+                    batch.putInt(length);
+                    batch.putInt((int) crc.getValue());
+                    batch.put(encoder.getBuffer(), 0, length);
+                    apply(event);
+                    recordsSinceSnapshot++;
+                }
+                write(batch, 0);
+                journal.force(false);
+                if (recordsSinceSnapshot >= snapshotInterval) {
+                    writeSnapshot();
+                }
+            } catch (InterruptedException ex) {
+                //the writer thread is only stopped by close
+                log.log(Level.TRACE, ex);
+            } catch (IOException ex) {
+                log.error("failed to write the task journal, it stops recording", ex);
+                failure = ex;
+            } catch (RuntimeException | Error ex) {
+                //e.g. a task that can't be encoded, the writer thread keeps
+                //running to release the waiting flushes
+                log.error("failed to write the task journal, it stops recording", ex);
+                failure = new IOException(ex);
+            } finally {
+                events.clear();
+                for (Event sync : syncs) {
+                    if (sync.written != null) {
+                        sync.written.countDown();
+                    }
+                }
+                syncs.clear();
+            }
+        }
+    }
+
+    /**
+     * writes the content of the batch buffer to the journal file
+     *
+     * @param batch the buffer in write mode
+     * @param needed the number of bytes the buffer must be able to take
+     * afterwards
+     * @return the empty buffer in write mode
+     */
+    private ByteBuffer write(ByteBuffer batch, int needed) throws IOException {
+        batch.flip();
+        while (batch.hasRemaining()) {
+            journal.write(batch);
+        }
+        if (batch.capacity() < needed) {
+            return ByteBuffer.allocate(needed);
+        }
+        batch.clear();
+        return batch;
+    }
+
+    private void apply(Event event) {
+        switch (event.type) {
+            case ADD:
+                unfinishedTasks.put(event.taskId, event.task);
+                highestTaskId = Math.max(highestTaskId, event.taskId);
+                break;
+            case FINISH:
+                if (unfinishedTasks.remove(event.taskId) != null) {
+                    finishedTaskIds.add(event.taskId);
+                }
+                break;
+            case RESET:
+                unfinishedTasks.clear();
+                finishedTaskIds.clear();
+                break;
+            default:
+                //dispatched and requeued tasks are unfinished either way
+                break;
+        }
+    }
+
+    /**
+     * writes the state to a snapshot, continues in a new journal file and
+     * deletes the files that are covered by the snapshot
+     */
+    private void writeSnapshot() throws IOException {
+        journal.close();
+        journalIndex++;
+        journal = openJournal(journalIndex);
+        int[] finished = new int[finishedTaskIds.size()];
+        int i = 0;
+        for (int id : finishedTaskIds) {
+            finished[i++] = id;
+        }
+        Snapshot snapshot = new Snapshot(new ArrayList<>(unfinishedTasks.values()), finished, highestTaskId);
+        Codec.Encoder encoder = codec.createEncoder();
+        int length = encoder.encode(snapshot);
+        Path temp = Files.createTempFile(directory, SNAPSHOT_PREFIX, ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer content = ByteBuffer.wrap(encoder.getBuffer(), 0, length);
+            while (content.hasRemaining()) {
+                channel.write(content);
+            }
+            channel.force(true);
+        }
+        Files.move(temp, file(SNAPSHOT_PREFIX, journalIndex), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        for (int index : listIndices(JOURNAL_PREFIX)) {
+            if (index < journalIndex) {
+                Files.deleteIfExists(file(JOURNAL_PREFIX, index));
+            }
+        }
+        for (int index : listIndices(SNAPSHOT_PREFIX)) {
+            if (index < journalIndex) {
+                Files.deleteIfExists(file(SNAPSHOT_PREFIX, index));
+            }
+        }
+        recordsSinceSnapshot = 0;
+        log.debug("wrote snapshot {} with {} unfinished tasks", journalIndex, unfinishedTasks.size());
+    }
+
+    private FileChannel openJournal(int index) throws IOException {
+        return FileChannel.open(file(JOURNAL_PREFIX, index), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private Path file(String prefix, int index) {
+        return directory.resolve(String.format("%s%08d", prefix, index));
+    }
+
+    /**
+     * @return the indices of the files with the prefix in ascending order
+     */
+    private List<Integer> listIndices(String prefix) throws IOException {
+        List<Integer> indices = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, prefix + "*")) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString();
+                if (!name.endsWith(".tmp")) {
+                    indices.add(Integer.parseInt(name.substring(prefix.length())));
+                }
+            }
+        }
+        Collections.sort(indices);
+        return indices;
+    }
+
+    /**
+     * writes the queued records and closes the journal file
+     */
+    @Override
+    public void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        //wake up the writer thread if no records are queued
+        pendingEvents.add(new Event(SYNC, 0, null));
+        try {
+            writerThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            journal.close();
+        } catch (IOException ex) {
+            log.log(Level.ALL, ex);
+        }
+    }
+
+    /**
+     * the state of the task queue restored from the journal
+     */
+    static final class Recovery {
+
+        final List<Task> unfinishedTasks;
+        final Set<Integer> finishedTaskIds;
+        /**
+         * the highest id the journal has seen, finished or not, or -1 if no
+         * task was added
+         */
+        final int highestTaskId;
+
+        private Recovery(List<Task> unfinishedTasks, Set<Integer> finishedTaskIds, int highestTaskId) {
+            this.unfinishedTasks = unfinishedTasks;
+            this.finishedTaskIds = finishedTaskIds;
+            this.highestTaskId = highestTaskId;
+        }
+    }
+
+    private static final class Event implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final byte type;
+        private final int taskId;
+        private final Task task;
+        /**
+         * counted down once the records queued before a sync event are written
+         */
+        private transient CountDownLatch written;
+
+        private Event(byte type, int taskId, Task task) {
+            this.type = type;
+            this.taskId = taskId;
+            this.task = task;
+        }
+    }
+
+    private static final class Snapshot implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final ArrayList<Task> tasks;
+        private final int[] finishedTaskIds;
+        private final int highestTaskId;
+
+        private Snapshot(ArrayList<Task> tasks, int[] finishedTaskIds, int highestTaskId) {
+            this.tasks = tasks;
+            this.finishedTaskIds = finishedTaskIds;
+            this.highestTaskId = highestTaskId;
+        }
+    }
+}
@@ -17,16 +17,67 @@
 package de.sdc;
 
 import de.sdc.commands.ResultCommand;
-import java.util.ArrayDeque;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Queue;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 /**
- * Queue for storing the tasks to run and their results
+ * Queue for storing the tasks to run and their results. Every server owns its
+ * own queue. Available tasks are kept in a heap ordered by their priority,
+ * which only takes a lock for the O(log n) insertion and removal, running
+ * tasks are indexed by their id and the task counters are updated atomically.
+ *
+ * Tasks with a higher priority are dispatched first, but tasks age while they
+ * wait: a task is ordered as if it was added priority times the aging interval
+ * earlier. So a task that waits longer than the aging interval overtakes tasks
+ * with a priority that is one higher and is never starved by them. Tasks with
+ * the same priority are dispatched in the order they were added.
+ *
+ * With speculative execution a client that waits for a task while no task is
+ * available gets a copy of the task that is running the longest, if it runs
+ * longer than the straggler threshold. The first result of a task wins, the
+ * results of the other copies are ignored. The running tasks are kept in the
+ * order they were started for this, so finding the straggler doesn't scan the
+ * running tasks.
+ *
+ * A task that has unfinished predecessors (see Task.getPredecessors) is
+ * blocked instead of being available. It counts as unfinished and is queued
+ * with its priority once its last predecessor is finished, so the stages of a
+ * pipeline overlap instead of waiting for each other. The blocked tasks are
+ * indexed by the ids of their predecessors, so finishing a task only looks at
+ * the tasks that wait for it. The ids of the finished tasks are kept, so a
+ * task that is added after its predecessors finished isn't blocked. A
+ * predecessor has to be added before its dependents.
+ *
+ * The results are collected by the id of their task unless a result sink is
+ * set, so they can be passed to the dependents that need them. Then they
+ * are handed to the sink, optionally by an executor. If the sink falls behind
+ * the thread that finishes a task waits until the sink has caught up, so the
+ * client connection stops being read and the results don't pile up in memory.
+ * A thread that handles other clients too (like an event loop of the nio
+ * engine) must not wait, it hands the result over anyway and stops reading
+ * the connection until it is notified that the sink caught up
  *
  * @author Michael Pietsch (Skywalker-11)
  * @param <R> class of the result commands
@@ -34,52 +85,585 @@ import org.apache.logging.log4j.Logger;
 class TaskQueue< T extends Task, R extends ResultCommand> {
 
     private static final Logger log = LogManager.getLogger(TaskQueue.class);
-    private static final transient ReentrantLock tasksLock = new ReentrantLock(true);
+    private static final String logString = "{}: Available:{} Running:{} Finished:{} Results:{}";
+
+    /**
+     * the upper 32 bits of the task state count the unfinished (available or
+     * running) tasks, the lower 32 bits count the finished tasks. Keeping both
+     * in one value lets the progress be read without a lock and without seeing
+     * a task in neither or both states
+     */
+    private static final long UNFINISHED_TASK = 1L << 32;
+    private static final long FINISHED_TASK = 1L;
+    /**
+     * the shortest interval in which waiting threads look for stragglers
+     */
+    private static final long MIN_STRAGGLER_CHECK = TimeUnit.MILLISECONDS.toNanos(1);
 
-    private ArrayList<R> results = new ArrayList<>();
-    private Queue<T> availableTasks = new ArrayDeque<>();
-    private ArrayList<T> runningTasks = new ArrayList<>();
-    private ArrayList<T> finishedTasks = new ArrayList<>();
-    private final String logString = "{}: Available:{} Running:{} Finished:{} Results:{}";
+    private final Queue<QueuedTask<T>> availableTasks = new PriorityBlockingQueue<>();
+    /**
+     * holds one permit for every task in availableTasks, so a waiting listener
+     * is parked here and exactly one is woken up for every added task
+     */
+    private final Semaphore availablePermits = new Semaphore(0);
+    private final ConcurrentHashMap<Integer, QueuedTask<T>> runningTasks = new ConcurrentHashMap<>();
+    /**
+     * orders the tasks that are added in the same nanosecond
+     */
+    private final AtomicLong sequence = new AtomicLong();
+    private volatile long agingNanos = TimeUnit.SECONDS.toNanos(1);
+    private final ConcurrentHashMap<String, Integer> queuePriorities = new ConcurrentHashMap<>();
+    /**
+     * the running time after which a task is copied for a waiting client or 0
+     * if the tasks aren't copied
+     */
+    private volatile long stragglerThreshold = 0;
+    /**
+     * the running tasks in the order they were started if the tasks may be
+     * copied. A task is removed once it is finished, made available again or
+     * copied, so the set only holds the running tasks
+     */
+    private final ConcurrentSkipListSet<Start<T>> startOrder = new ConcurrentSkipListSet<>();
+    /**
+     * replaced on a reset, so results that are delivered to the sink after the
+     * reset don't change the new state
+     */
+    private volatile AtomicLong taskState = new AtomicLong();
+    /**
+     * the results by the id of their task in the order they arrived if no
+     * result sink is set. The results of the predecessors of an added task are
+     * taken from here, so they don't depend on the order the tasks are added
+     */
+    private volatile Map<Integer, R> results = Collections.synchronizedMap(new LinkedHashMap<Integer, R>());
+
+    private ResultSink<T, R> resultSink;
+    private Executor resultExecutor;
+    /**
+     * one permit for every result that may be waiting for the sink
+     */
+    private PendingResults pendingResults;
+    /**
+     * notified once the results waiting for the executor of the result sink
+     * free a permit again
+     */
+    private final Queue<Runnable> backlogWaiters = new ConcurrentLinkedQueue<>();
+    private volatile TaskJournal journal;
+    /**
+     * the metrics of the server or null if they are disabled
+     */
+    private Metrics metrics;
+    /**
+     * the futures of the unfinished tasks that were added to this queue
+     */
+    private final ConcurrentHashMap<Integer, CompletableFuture<R>> futures = new ConcurrentHashMap<>();
+    /**
+     * the futures that complete once no task is unfinished anymore
+     */
+    private final Queue<CompletableFuture<Void>> finishedWaiters = new ConcurrentLinkedQueue<>();
+    /**
+     * guards the blocked tasks
+     */
+    private final Object dependencyLock = new Object();
+    /**
+     * the blocked tasks by the ids of their unfinished predecessors
+     */
+    private final Map<Integer, List<BlockedTask<T>>> dependents = new HashMap<>();
+    /**
+     * the number of blocked tasks. It is only changed while holding the
+     * dependency lock
+     */
+    private volatile int blockedTasks;
+    /**
+     * the ids of the finished tasks, guarded by the dependency lock
+     */
+    private final BitSet finishedTaskIds = new BitSet();
+    /**
+     * the ids of the tasks whose result was rejected by the result sink and
+     * of their dependents, which fail without being run. Guarded by the
+     * dependency lock
+     */
+    private final BitSet failedTaskIds = new BitSet();
+
+    /**
+     * hands the results to a sink instead of collecting them. This has to be
+     * called before the first task is finished
+     *
+     * @param sink the sink that receives the results
+     * @param executor the executor that calls the sink or null if the sink is
+     * called by the thread that received the result
+     * @param maxPendingResults the number of results that may wait for the
+     * executor before the threads receiving results wait too
+     */
+    protected void setResultSink(ResultSink<T, R> sink, Executor executor, int maxPendingResults) {
+        if (maxPendingResults < 1) {
+            throw new IllegalArgumentException("at least 1 result must be allowed to wait for the sink");
+        }
+        this.resultSink = sink;
+        this.resultExecutor = executor;
+        this.pendingResults = new PendingResults(maxPendingResults);
+    }
+
+    /**
+     * @return true if the results are passed to a result sink instead of being
+     * collected in memory
+     */
+    protected boolean hasResultSink() {
+        return resultSink != null;
+    }
+
+    /**
+     * copies the tasks that run longer than the threshold for clients that
+     * wait for a task while no task is available
+     *
+     * @param threshold the running time after which a task is a straggler, 0
+     * if the tasks shouldn't be copied
+     * @param unit the unit of the threshold
+     */
+    protected void setStragglerThreshold(long threshold, TimeUnit unit) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("the straggler threshold must not be negative");
+        }
+        this.stragglerThreshold = unit.toNanos(threshold);
+    }
+
+    /**
+     * counts the dispatched and requeued tasks and measures how long they
+     * waited in the queue
+     *
+     * @param metrics the metrics of the server
+     */
+    protected void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * records all following changes of the queue in a journal
+     *
+     * @param journal the journal of the queue
+     */
+    protected void setJournal(TaskJournal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * restores the state that was recovered from a journal. The unfinished
+     * tasks are available again. The results of the finished tasks are only
+     * kept by the result sink, so a recovered task that needs the result of a
+     * finished predecessor fails
+     *
+     * @param recovery the recovered state
+     */
+    protected void restore(TaskJournal.Recovery recovery) {
+        synchronized (dependencyLock) {
+            for (int id : recovery.finishedTaskIds) {
+                finishedTaskIds.set(id);
+            }
+        }
+        for (Task task : recovery.unfinishedTasks) {
+            futures.put(task.getId(), new CompletableFuture<R>());
+        }
+        int available = 0;
+        for (Task task : recovery.unfinishedTasks) {
+            //the journal only recorded tasks that were added to this queue
+            @SuppressWarnings("unchecked")
+            T recovered = (T) task;
+            if (!block(recovered, recovered.getPriority())) {
+                availableTasks.add(queue(recovered, recovered.getPriority()));
+                available++;
+            }
+        }
+        taskState.addAndGet(recovery.unfinishedTasks.size() * UNFINISHED_TASK + recovery.finishedTaskIds.size() * FINISHED_TASK);
+        availablePermits.release(available);
+        logState("restore");
+    }
 
     /**
      * @return an available task or null if no tasks are available
      */
-    protected Task pollTask() {
-        tasksLock.lock();
-        if (availableTasks.isEmpty()) {
-            tasksLock.unlock();
+    protected T pollTask() {
+        if (!availablePermits.tryAcquire()) {
             return null;
         }
+        return startTask();
+    }
 
-        T task;
-        try {
-            task = availableTasks.poll();
-            runningTasks.add(task);
-            log.debug(logString, "poll task", availableTasks.size(), runningTasks.size(), finishedTasks.size(), results.size());
-        } finally {
-            tasksLock.unlock();
+    /**
+     * polls up to max available tasks at once and marks them as running
+     *
+     * @param max the maximum number of tasks to poll
+     * @param tasks the list the tasks are added to
+     * @return the number of polled tasks
+     */
+    protected int pollTasks(int max, List<? super T> tasks) {
+        int polled = 0;
+        while (polled < max && availablePermits.tryAcquire()) {
+            tasks.add(startTask());
+            polled++;
+        }
+        return polled;
+    }
+
+    /**
+     * waits until a task is available and marks it as running. The calling
+     * thread is parked while the queue is empty. With speculative execution
+     * the thread wakes up regularly and returns a copy of a straggler instead
+     * if there is one
+     *
+     * @return an available task or a copy of a straggler
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    protected T takeTask() throws InterruptedException {
+        long threshold = stragglerThreshold;
+        if (threshold == 0) {
+            availablePermits.acquire();
+            return startTask();
+        }
+        while (true) {
+            if (availablePermits.tryAcquire(Math.max(threshold / 4, MIN_STRAGGLER_CHECK), TimeUnit.NANOSECONDS)) {
+                return startTask();
+            }
+            T copy = pollStraggler(threshold, Collections.<Integer>emptySet());
+            if (copy != null) {
+                return copy;
+            }
+        }
+    }
+
+    /**
+     * returns a copy of a straggler for a client that has free capacity while
+     * no task is available, e.g. a client that leased a window of tasks
+     *
+     * @param excluded the ids of the tasks the client runs already
+     * @return the task that should be copied or null if there is no straggler
+     * or the tasks aren't copied
+     */
+    protected T pollStraggler(Set<Integer> excluded) {
+        long threshold = stragglerThreshold;
+        return threshold == 0 ? null : pollStraggler(threshold, excluded);
+    }
+
+    /**
+     * returns the task that is running the longest if it runs longer than the
+     * threshold and wasn't copied yet
+     *
+     * @param threshold the running time after which a task is a straggler
+     * @param excluded the ids of the tasks that must not be copied
+     * @return the task that should be copied or null if there is no straggler
+     */
+    private T pollStraggler(long threshold, Set<Integer> excluded) {
+        for (Start<T> start : startOrder) {
+            QueuedTask<T> queued = start.queued;
+            if (runningTasks.get(queued.task.getId()) != queued || queued.startTime != start.time) {
+                //the task finished or was started again meanwhile
+                startOrder.remove(start);
+                continue;
+            }
+            if (System.nanoTime() - start.time < threshold) {
+                //the later tasks started even later
+                return null;
+            }
+            if (excluded.contains(queued.task.getId())) {
+                continue;
+            }
+            synchronized (queued) {
+                //the task may have finished meanwhile
+                if (startOrder.remove(start) && runningTasks.get(queued.task.getId()) == queued) {
+                    queued.start = null;
+                    queued.copies++;
+                    log.debug("copy task {} which runs for {} ms", queued.task.getId(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start.time));
+                    return queued.task;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * removes a task that isn't running anymore from the start order
+     *
+     * @param queued the entry of the task
+     */
+    private void removeStart(QueuedTask<T> queued) {
+        Start<T> start = queued.start;
+        if (start != null) {
+            queued.start = null;
+            startOrder.remove(start);
+        }
+    }
+
+    /**
+     * moves the head of the available tasks to the running tasks. The caller
+     * must own a permit for it
+     *
+     * @return the task that is running now
+     */
+    private T startTask() {
+        QueuedTask<T> queued = availableTasks.poll();
+        T task = queued.task;
+        queued.copies = 1;
+        if (stragglerThreshold > 0) {
+            queued.startTime = System.nanoTime();
+            queued.start = new Start<>(queued, queued.startTime);
+            startOrder.add(queued.start);
+        }
+        runningTasks.put(task.getId(), queued);
+        if (metrics != null) {
+            metrics.taskDispatched(System.nanoTime() - queued.queuedTime);
+        }
+        if (journal != null) {
+            journal.taskDispatched(task);
         }
+        logState("poll task");
         return task;
     }
 
     /**
-     * finishes a task by moving it from the running to the finished list and
-     * stores the result from this
+     * finishes a task by removing it from the running tasks and stores the
+     * result from this or hands it to the result sink. Results of tasks that
+     * are not running (e.g. because the queue was reset meanwhile) are ignored
      *
      * @param task that should be finished
      * @param command the result to that command
+     * @return true, if the task was running and is finished now
      */
-    protected void finishTask(T task, R command) {
-        tasksLock.lock();
+    protected boolean finishTask(T task, R command) {
+        return finishTask(task, command, true);
+    }
+
+    /**
+     * finishes a task like finishTask(task, command). If wait is false the
+     * calling thread doesn't wait while too many results are waiting for the
+     * executor of the result sink, it should stop receiving results then (see
+     * hasResultBacklog)
+     *
+     * @param task that should be finished
+     * @param command the result to that command
+     * @param wait true if the calling thread may wait for the result sink
+     * @return true, if the task was running and is finished now
+     */
+    protected boolean finishTask(T task, R command, boolean wait) {
+        QueuedTask<T> queued = runningTasks.remove(task.getId());
+        if (queued == null) {
+            log.debug("ignore result of task {} which is not running", task.getId());
+            return false;
+        }
+        removeStart(queued);
+        if (resultSink == null) {
+            results.put(task.getId(), command);
+            completeTask(task, command, taskState, true);
+        } else {
+            deliverResult(task, command, taskState, wait);
+        }
+        return true;
+    }
+
+    /**
+     * hands a result to the sink and counts its task as finished afterwards.
+     * Waits while too many results are waiting for the executor if wait is
+     * true, otherwise the permit is taken anyway
+     *
+     * @param task the finished task
+     * @param command the result of the task
+     * @param state the task state at the time the task was finished
+     * @param wait true if the calling thread may wait for the result sink
+     */
+    private void deliverResult(final T task, final R command, final AtomicLong state, boolean wait) {
+        if (resultExecutor == null) {
+            passToSink(task, command, state);
+            return;
+        }
+        if (wait) {
+            pendingResults.acquireUninterruptibly();
+        } else {
+            pendingResults.overdraw();
+        }
+        Runnable delivery = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    passToSink(task, command, state);
+                } finally {
+                    pendingResults.release();
+                    if (!backlogWaiters.isEmpty() && !hasResultBacklog()) {
+                        notifyBacklogWaiters();
+                    }
+                }
+            }
+        };
         try {
-            runningTasks.remove(task);
-            finishedTasks.add(task);
-            results.add(command);
-            log.debug(logString, "finish task", availableTasks.size(), runningTasks.size(), finishedTasks.size(), results.size());
+            resultExecutor.execute(delivery);
+        } catch (RejectedExecutionException ex) {
+            //the executor is shut down, the result must not get lost anyway
+            delivery.run();
+        }
+    }
+
+    /**
+     * @return true if the results that wait for the executor of the result
+     * sink used up all permits, so no more results should be received
+     */
+    protected boolean hasResultBacklog() {
+        return resultExecutor != null && pendingResults.availablePermits() <= 0;
+    }
+
+    /**
+     * runs the waiter once results may be received again, by the thread that
+     * handed a result to the sink. The waiter is run at once if there is no
+     * backlog
+     *
+     * @param waiter the waiter that continues receiving results
+     */
+    protected void whenResultBacklogDrained(Runnable waiter) {
+        backlogWaiters.add(waiter);
+        //the backlog may have been drained before the waiter was added
+        if (!hasResultBacklog()) {
+            notifyBacklogWaiters();
+        }
+    }
+
+    /**
+     * runs the waiters while there is no backlog. A waiter that was added
+     * again meanwhile because the backlog came back stays until the next
+     * result is handed to the sink
+     */
+    private void notifyBacklogWaiters() {
+        while (!hasResultBacklog()) {
+            Runnable waiter = backlogWaiters.poll();
+            if (waiter == null) {
+                return;
+            }
+            waiter.run();
+        }
+    }
+
+    private void passToSink(T task, R command, AtomicLong state) {
+        boolean accepted = false;
+        try {
+            resultSink.resultReceived(task, command);
+            accepted = true;
+        } catch (IOException | RuntimeException ex) {
+            log.error("result sink failed to handle the result of task {}", task.getId(), ex);
+        }
+        completeTask(task, command, state, accepted);
+    }
+
+    /**
+     * counts a task as finished and completes its future. The futures waiting
+     * for all tasks are completed if it was the last unfinished task. The task
+     * is only recorded as finished in the journal once its result was
+     * accepted, so a task whose result got lost is computed again after a
+     * crash
+     *
+     * @param task the finished task
+     * @param command the result of the task
+     * @param state the task state at the time the task was finished
+     * @param accepted true if the result was stored or accepted by the sink,
+     * the dependents of the task fail otherwise
+     * @throws UncheckedIOException if the journal failed, the task is
+     * finished anyway
+     */
+    private void completeTask(T task, R command, AtomicLong state, boolean accepted) {
+        try {
+            if (accepted && journal != null) {
+                journal.taskFinished(task);
+            }
         } finally {
-            tasksLock.unlock();
+            state.addAndGet(FINISHED_TASK - UNFINISHED_TASK);
+            logState("finish task");
+            //the task is recorded as finished before its future is removed, so
+            //it is known as a predecessor all the time
+            if (accepted) {
+                releaseDependents(task, command);
+            } else {
+                failDependents(task, state);
+            }
+            CompletableFuture<R> future = futures.remove(task.getId());
+            if (future != null) {
+                future.complete(command);
+            }
+            if (unfinished(state.get()) == 0) {
+                completeFinishedWaiters();
+            }
+        }
+    }
+
+    /**
+     * fails the tasks that depend on a task whose result was rejected by the
+     * result sink, also if they depend on it indirectly. They would run
+     * without the result, so their futures complete exceptionally instead and
+     * they count as finished. The journal doesn't record them as finished, so
+     * they are run again after a crash
+     *
+     * @param task the task whose result was rejected
+     * @param state the task state at the time the task was finished
+     */
+    private void failDependents(T task, AtomicLong state) {
+        List<BlockedTask<T>> failed = new ArrayList<>();
+        synchronized (dependencyLock) {
+            int id = task.getId();
+            for (int i = 0;; i++) {
+                failedTaskIds.set(id);
+                List<BlockedTask<T>> waiting = dependents.remove(id);
+                if (waiting != null) {
+                    for (BlockedTask<T> blocked : waiting) {
+                        //a task with several failed predecessors fails once
+                        if (!blocked.failed) {
+                            blocked.failed = true;
+                            blockedTasks--;
+                            failed.add(blocked);
+                        }
+                    }
+                }
+                if (i == failed.size()) {
+                    break;
+                }
+                id = failed.get(i).task.getId();
+            }
+        }
+        for (BlockedTask<T> blocked : failed) {
+            failTask(blocked.task, "the result sink rejected the result of task " + task.getId(), state);
+        }
+        if (!failed.isEmpty()) {
+            logState("fail dependents");
+        }
+    }
+
+    /**
+     * counts a task that can't be run as finished and completes its future
+     * exceptionally. The task has to be recorded as failed before
+     *
+     * @param task the task that failed
+     * @param reason why the task can't run
+     * @param state the task state the task was counted in
+     */
+    private void failTask(T task, String reason, AtomicLong state) {
+        state.addAndGet(FINISHED_TASK - UNFINISHED_TASK);
+        CompletableFuture<R> future = futures.remove(task.getId());
+        if (future != null) {
+            future.completeExceptionally(new IllegalStateException("task " + task.getId() + " can't run, " + reason));
+        }
+    }
+
+    private void completeFinishedWaiters() {
+        for (CompletableFuture<Void> waiter = finishedWaiters.poll(); waiter != null; waiter = finishedWaiters.poll()) {
+            waiter.complete(null);
+        }
+    }
+
+    /**
+     * returns a future that completes once all tasks of the queue are
+     * finished. It is completed already if no task is unfinished
+     *
+     * @return the future of all tasks that are added to the queue
+     */
+    protected CompletableFuture<Void> whenAllTasksFinished() {
+        CompletableFuture<Void> waiter = new CompletableFuture<>();
+        finishedWaiters.add(waiter);
+        //the last task may have been finished before the waiter was added
+        if (allTasksFinished()) {
+            completeFinishedWaiters();
         }
+        return waiter;
     }
 
     /**
@@ -87,31 +671,262 @@ class TaskQueue< T extends Task, R extends ResultCommand> {
      * tasks and results
      */
     protected void resetQueue() {
-        tasksLock.lock();
-        try {
-            availableTasks = new ArrayDeque<>();
-            runningTasks = new ArrayList<>();
-            finishedTasks = new ArrayList<>();
-            results = new ArrayList<>();
-            log.debug(logString, "reset queues", availableTasks.size(), runningTasks.size(), finishedTasks.size(), results.size());
-        } finally {
-            tasksLock.unlock();
+        if (journal != null) {
+            journal.queueReset();
+        }
+        int drained = availablePermits.drainPermits();
+        for (int i = 0; i < drained; i++) {
+            availableTasks.poll();
+        }
+        runningTasks.clear();
+        startOrder.clear();
+        results = Collections.synchronizedMap(new LinkedHashMap<Integer, R>());
+        taskState = new AtomicLong();
+        for (CompletableFuture<R> future : futures.values()) {
+            future.cancel(false);
+        }
+        futures.clear();
+        synchronized (dependencyLock) {
+            dependents.clear();
+            blockedTasks = 0;
+            finishedTaskIds.clear();
+            failedTaskIds.clear();
+        }
+        completeFinishedWaiters();
+        logState("reset queues");
+    }
+
+    /**
+     * sets how long a task has to wait to overtake the tasks with a priority
+     * that is one higher
+     *
+     * @param aging the aging interval
+     * @param unit the unit of the aging interval
+     */
+    protected void setPriorityAging(long aging, TimeUnit unit) {
+        if (aging <= 0) {
+            throw new IllegalArgumentException("the aging interval must be positive");
         }
+        this.agingNanos = unit.toNanos(aging);
+    }
+
+    /**
+     * adds a named queue whose tasks get the given priority
+     *
+     * @param name the name of the queue
+     * @param priority the priority of the tasks of the queue
+     */
+    protected void addQueue(String name, int priority) {
+        queuePriorities.put(name, priority);
     }
 
     /**
-     * adds a task to the queue
+     * adds a task to a named queue
      *
      * @param task the task that should be added
+     * @param queue the name of the queue
+     * @return a future that completes with the result of the task
      */
-    protected void addTask(T task) {
-        tasksLock.lock();
-        try {
-            availableTasks.add(task);
-            log.debug(logString, "add task", availableTasks.size(), runningTasks.size(), finishedTasks.size(), results.size());
-        } finally {
-            tasksLock.unlock();
+    protected CompletableFuture<R> addTask(T task, String queue) {
+        Integer priority = queuePriorities.get(queue);
+        if (priority == null) {
+            throw new IllegalArgumentException("unknown queue: " + queue);
         }
+        return addTask(task, priority);
+    }
+
+    /**
+     * adds a task to the queue with the priority of the task
+     *
+     * @param task the task that should be added
+     * @return a future that completes with the result of the task
+     */
+    protected CompletableFuture<R> addTask(T task) {
+        return addTask(task, task.getPriority());
+    }
+
+    /**
+     * adds a task to the queue. A task with the id of an unfinished task isn't
+     * added again, the future of the unfinished task is returned instead
+     *
+     * @param task the task that should be added
+     * @param priority the priority of the task, higher priorities are
+     * dispatched first
+     * @return a future that completes with the result of the task
+     * @throws IllegalArgumentException if a predecessor was not added before,
+     * so the task could wait forever, or if the task needs the result of a
+     * finished predecessor that was handed to the result sink
+     * @throws UncheckedIOException if the journal failed, the task isn't added
+     */
+    protected CompletableFuture<R> addTask(T task, int priority) {
+        synchronized (dependencyLock) {
+            for (Integer id : task.getPredecessors()) {
+                if (id == task.getId()) {
+                    continue;
+                }
+                //a finished task is recorded as finished before its future is
+                //removed, so the futures are checked first
+                if (id < 0 || !futures.containsKey(id) && !finishedTaskIds.get(id) && !failedTaskIds.get(id)) {
+                    throw new IllegalArgumentException("the predecessor " + id + " of task " + task.getId() + " was not added");
+                }
+                if (resultSink != null && task.needsPredecessorResults() && finishedTaskIds.get(id)) {
+                    throw new IllegalArgumentException("the result of the predecessor " + id + " of task " + task.getId()
+                            + " was handed to the result sink already");
+                }
+            }
+        }
+        CompletableFuture<R> future = new CompletableFuture<>();
+        CompletableFuture<R> pending = futures.putIfAbsent(task.getId(), future);
+        if (pending != null) {
+            log.debug("task {} is unfinished already and isn't added again", task.getId());
+            return pending;
+        }
+        if (journal != null) {
+            try {
+                journal.taskAdded(task);
+            } catch (UncheckedIOException ex) {
+                futures.remove(task.getId(), future);
+                throw ex;
+            }
+        }
+        taskState.addAndGet(UNFINISHED_TASK);
+        if (block(task, priority)) {
+            logState("block task");
+            return future;
+        }
+        availableTasks.add(queue(task, priority));
+        availablePermits.release();
+        logState("add task");
+        return future;
+    }
+
+    /**
+     * blocks a task until its unfinished predecessors are finished. The
+     * results of the predecessors that are finished already are taken from the
+     * collected results. The task fails at once if a predecessor failed or if
+     * it needs the result of a finished predecessor that was handed to the
+     * result sink. A task has to be counted as unfinished before, and has to
+     * be made available if it isn't blocked
+     *
+     * @param task the added task
+     * @param priority the priority the task is queued with once it is released
+     * @return true if the task is blocked or failed
+     */
+    private boolean block(T task, int priority) {
+        Collection<Integer> predecessors = task.getPredecessors();
+        if (predecessors.isEmpty()) {
+            return false;
+        }
+        BlockedTask<T> blocked = new BlockedTask<>(task, priority);
+        String failure;
+        synchronized (dependencyLock) {
+            failure = predecessorFailure(task);
+            if (failure == null) {
+                blockedTasks++;
+                for (Integer id : predecessors) {
+                    if (id == task.getId()) {
+                        continue;
+                    }
+                    if (finishedTaskIds.get(id)) {
+                        if (blocked.results != null) {
+                            blocked.results.put(id, results.get(id));
+                        }
+                        continue;
+                    }
+                    List<BlockedTask<T>> waiting = dependents.get(id);
+                    if (waiting == null) {
+                        waiting = new ArrayList<>(2);
+                        dependents.put(id, waiting);
+                    }
+                    waiting.add(blocked);
+                    blocked.remaining++;
+                }
+                if (blocked.remaining > 0) {
+                    return true;
+                }
+                blockedTasks--;
+            } else {
+                failedTaskIds.set(task.getId());
+            }
+        }
+        if (failure != null) {
+            failTask(task, failure, taskState);
+            logState("fail task");
+            return true;
+        }
+        if (blocked.results != null) {
+            task.setPredecessorResults(blocked.results);
+        }
+        return false;
+    }
+
+    /**
+     * checks if a task can't run because of its predecessors, the caller holds
+     * the dependency lock
+     *
+     * @param task the added task
+     * @return why the task can't run or null if it can
+     */
+    private String predecessorFailure(T task) {
+        for (Integer id : task.getPredecessors()) {
+            if (id == task.getId()) {
+                continue;
+            }
+            if (failedTaskIds.get(id)) {
+                return "its predecessor " + id + " failed";
+            }
+            if (resultSink != null && task.needsPredecessorResults() && finishedTaskIds.get(id)) {
+                return "the result of its predecessor " + id + " was handed to the result sink already";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * records a task as finished, counts it for the tasks that wait for it
+     * and queues the tasks that have no unfinished predecessor anymore
+     *
+     * @param task the finished task
+     * @param command the result of the task
+     */
+    private void releaseDependents(T task, R command) {
+        List<BlockedTask<T>> released = null;
+        synchronized (dependencyLock) {
+            finishedTaskIds.set(task.getId());
+            if (blockedTasks == 0) {
+                return;
+            }
+            List<BlockedTask<T>> waiting = dependents.remove(task.getId());
+            if (waiting == null) {
+                return;
+            }
+            for (BlockedTask<T> blocked : waiting) {
+                if (blocked.failed) {
+                    continue;
+                }
+                if (blocked.results != null) {
+                    blocked.results.put(task.getId(), command);
+                }
+                if (--blocked.remaining == 0) {
+                    blockedTasks--;
+                    if (released == null) {
+                        released = new ArrayList<>(waiting.size());
+                    }
+                    released.add(blocked);
+                }
+            }
+        }
+        if (released == null) {
+            return;
+        }
+        for (BlockedTask<T> blocked : released) {
+            if (blocked.results != null) {
+                blocked.task.setPredecessorResults(blocked.results);
+            }
+            availableTasks.add(queue(blocked.task, blocked.priority));
+            availablePermits.release();
+        }
+        logState("release tasks");
     }
 
     /**
@@ -121,56 +936,251 @@ class TaskQueue< T extends Task, R extends ResultCommand> {
      * @param task task that hasn't been finished
      */
     protected void setTaskAvailable(T task) {
-        tasksLock.lock();
-        try {
-            runningTasks.remove(task);
-            availableTasks.add(task);
-            log.debug(logString, "reset task", availableTasks.size(), runningTasks.size(), finishedTasks.size(), results.size());
-        } finally {
-            tasksLock.unlock();
+        QueuedTask<T> queued = runningTasks.get(task.getId());
+        if (queued == null || queued.task != task) {
+            return;
+        }
+        synchronized (queued) {
+            if (queued.copies > 1) {
+                //another client still runs a copy of the task
+                queued.copies--;
+                return;
+            }
+            if (!runningTasks.remove(task.getId(), queued)) {
+                return;
+            }
+        }
+        removeStart(queued);
+        if (journal != null) {
+            journal.taskRequeued(task);
         }
+        if (metrics != null) {
+            metrics.taskRequeued();
+            queued.queuedTime = System.nanoTime();
+        }
+        //the task keeps its place, it has waited already
+        availableTasks.add(queued);
+        availablePermits.release();
+        logState("reset task");
+    }
+
+    /**
+     * @return the number of tasks that wait to be sent to a client
+     */
+    protected int getAvailableTaskCount() {
+        return availablePermits.availablePermits();
+    }
+
+    /**
+     * @return the number of tasks that wait for their predecessors
+     */
+    protected int getBlockedTaskCount() {
+        return blockedTasks;
+    }
+
+    /**
+     * @return the number of tasks that are sent to a client and not finished
+     */
+    protected int getRunningTaskCount() {
+        return runningTasks.size();
+    }
+
+    /**
+     * @return the number of finished tasks
+     */
+    protected int getFinishedTaskCount() {
+        return finished(taskState.get());
+    }
+
+    /**
+     * @return the number of available and running tasks
+     */
+    protected int getUnfinishedTaskCount() {
+        return unfinished(taskState.get());
     }
 
     /**
      * @return true, if all queued task are finished
      */
     protected boolean allTasksFinished() {
-        tasksLock.lock();
-        boolean isfinished;
-        try {
-            isfinished = (availableTasks.size() + runningTasks.size()) == 0;
-            log.trace(logString, "check for finished tasks", availableTasks.size(), runningTasks.size(), finishedTasks.size(), results.size());
-        } finally {
-            tasksLock.unlock();
-        }
-        return isfinished;
+        return unfinished(taskState.get()) == 0;
     }
 
     /**
      *
-     * @return returns the results received by the clients
+     * @return returns a copy of the results received by the clients. It is
+     * empty if the results are handed to a result sink
      */
     protected List<R> getResults() {
-        List<R> resultList;
-        tasksLock.lock();
-        try {
-            resultList = results;
-            log.trace(logString, "get results", availableTasks.size(), runningTasks.size(), finishedTasks.size(), results.size());
-        } finally {
-            tasksLock.unlock();
+        Map<Integer, R> current = results;
+        synchronized (current) {
+            return new ArrayList<>(current.values());
         }
-        return resultList;
-
     }
 
     /**
      *
      * @return returns the percentage of finished tasks or -1 if 0 tasks are
-     * addedS
+     * added
      */
     protected double getProgress() {
-        double taskCount = (availableTasks.size() + runningTasks.size() + finishedTasks.size());
-        double percentage = (taskCount == 0d ? -1d : finishedTasks.size() / taskCount);
-        return percentage;
+        long state = taskState.get();
+        double finished = finished(state);
+        double taskCount = unfinished(state) + finished;
+        return taskCount == 0d ? -1d : finished / taskCount;
+    }
+
+    private static int unfinished(long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int finished(long state) {
+        return (int) state;
+    }
+
+    /**
+     * creates the heap entry of a task that is added now
+     *
+     * @param task the task that should be added
+     * @param priority the priority of the task
+     * @return the entry of the task
+     */
+    private QueuedTask<T> queue(T task, int priority) {
+        long boost;
+        try {
+            boost = Math.multiplyExact(priority, agingNanos);
+        } catch (ArithmeticException ex) {
+            boost = priority > 0 ? Long.MAX_VALUE / 2 : Long.MIN_VALUE / 2;
+        }
+        long now = System.nanoTime();
+        return new QueuedTask<>(task, now - boost, sequence.getAndIncrement(), now);
+    }
+
+    private void logState(String action) {
+        if (log.isDebugEnabled()) {
+            long state = taskState.get();
+            log.debug(logString, action, availablePermits.availablePermits(), runningTasks.size(), finished(state), results.size());
+        }
+    }
+
+    /**
+     * an available task in the heap. The key is the virtual time the task was
+     * added at, lower keys are dispatched first
+     */
+    private static final class QueuedTask<T extends Task> implements Comparable<QueuedTask<T>> {
+
+        private final T task;
+        private final long key;
+        private final long sequence;
+        /**
+         * the time the task was added or made available again at
+         */
+        private volatile long queuedTime;
+        /**
+         * the time the task was started at if the tasks may be copied
+         */
+        private volatile long startTime;
+        /**
+         * the entry of the running task in the start order or null
+         */
+        private volatile Start<T> start;
+        /**
+         * the number of clients the running task was sent to, guarded by the
+         * entry
+         */
+        private int copies;
+
+        private QueuedTask(T task, long key, long sequence, long queuedTime) {
+            this.task = task;
+            this.key = key;
+            this.sequence = sequence;
+            this.queuedTime = queuedTime;
+        }
+
+        @Override
+        public int compareTo(QueuedTask<T> other) {
+            //the keys are compared by their difference, so nanoTime may overflow
+            long difference = key - other.key;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return Long.compare(sequence, other.sequence);
+        }
+    }
+
+    /**
+     * the start of a running task in the start order. The starts are ordered
+     * by their time and the tasks that started in the same nanosecond by
+     * the order they were added
+     */
+    private static final class Start<T extends Task> implements Comparable<Start<T>> {
+
+        private final QueuedTask<T> queued;
+        private final long time;
+
+        private Start(QueuedTask<T> queued, long time) {
+            this.queued = queued;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Start<T> other) {
+            //compared by their difference, so nanoTime may overflow
+            long difference = time - other.time;
+            if (difference != 0) {
+                return difference < 0 ? -1 : 1;
+            }
+            return Long.compare(queued.sequence, other.queued.sequence);
+        }
+    }
+
+    /**
+     * one permit for every result that may be waiting for the executor of the
+     * result sink. A thread that must not wait overdraws the permits, so the
+     * other threads wait until its results are handed to the sink too
+     */
+    private static final class PendingResults extends Semaphore {
+
+        private static final long serialVersionUID = 1L;
+
+        private PendingResults(int permits) {
+            super(permits);
+        }
+
+        /**
+         * takes a permit without waiting, even if none is available
+         */
+        void overdraw() {
+            reducePermits(1);
+        }
+    }
+
+    /**
+     * a task that waits for its predecessors. The entry is guarded by the
+     * dependency lock until the task is released
+     */
+    private static final class BlockedTask<T extends Task> {
+
+        private final T task;
+        private final int priority;
+        /**
+         * the number of unfinished predecessors
+         */
+        private int remaining;
+        /**
+         * true if a predecessor failed, the task isn't released then
+         */
+        private boolean failed;
+        /**
+         * the results of the finished predecessors or null if the task
+         * doesn't need them
+         */
+        private final Map<Integer, ResultCommand> results;
+
+        private BlockedTask(T task, int priority) {
+            this.task = task;
+            this.priority = priority;
+            this.results = task.needsPredecessorResults() ? new HashMap<Integer, ResultCommand>() : null;
+        }
     }
 }
@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import org.nustaq.serialization.FSTConfiguration;
+
+/**
+ * FST codec that reads and writes the memory of the objects directly with
+ * sun.misc.Unsafe. It is the fastest codec, but server and clients must run on
+ * platforms with the same byte order
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class UnsafeFstCodec extends FstCodec {
+
+    /**
+     * creates an unsafe codec
+     *
+     * @param classes application classes that should be registered
+     */
+    public UnsafeFstCodec(Class<?>... classes) {
+        super(FSTConfiguration.createFastBinaryConfiguration(), classes);
+    }
+}
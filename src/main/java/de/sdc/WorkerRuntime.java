@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.ResultCommand;
+import de.sdc.commands.TaskBatchCommand;
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.Level;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs the tasks of a server on a pool of threads that share one connection
+ * and one initializer. The runtime leases as many tasks as it has threads plus
+ * a prefetch buffer, so the received tasks wait in a local buffer and a thread
+ * that finished a task takes the next one without waiting for the network.
+ * The results are sent by a sender thread, so the threads don't wait for the
+ * network either: while a task is computed the next one is received and the
+ * result of the previous one is sent. Results that are ready at the same time
+ * are sent in one frame, and the server sends a new task for every result.
+ *
+ * If the server has a lease timeout the runtime sends heartbeats while it is
+ * running, so long running tasks don't expire. If the executor throws an
+ * exception or an error the connection is closed, so the server gives the
+ * unfinished tasks of the runtime to other clients. If the server disconnects,
+ * the results that are computed but not sent yet are sent before the
+ * connection is closed
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ * @param <T> the task class
+ * @param <R> the result command class
+ */
+public class WorkerRuntime<T extends Task, R extends ResultCommand> {
+
+    private static final Logger log = LogManager.getLogger(WorkerRuntime.class);
+
+    private final Client client;
+    private final TaskExecutor<T, R> executor;
+    private final int threads;
+    private final int prefetch;
+    /**
+     * the received tasks that no thread has taken yet
+     */
+    private final BlockingQueue<T> buffer = new LinkedBlockingQueue<>();
+    /**
+     * the results the sender thread hasn't sent yet
+     */
+    private final BlockingQueue<R> results = new LinkedBlockingQueue<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private Thread sender;
+    private Thread heartbeats;
+    private volatile Initializer initializer;
+    private volatile boolean running;
+    /**
+     * the exception or error of the executor that stopped the runtime
+     */
+    private volatile Throwable failure;
+    private volatile boolean closed;
+
+    /**
+     * creates a runtime that buffers as many tasks as it has threads
+     *
+     * @param client a client that was just connected to the server
+     * @param executor the executor that computes the tasks
+     * @param threads the number of threads that execute tasks
+     */
+    public WorkerRuntime(Client client, TaskExecutor<T, R> executor, int threads) {
+        this(client, executor, threads, threads);
+    }
+
+    /**
+     * creates a runtime
+     *
+     * @param client a client that was just connected to the server
+     * @param executor the executor that computes the tasks
+     * @param threads the number of threads that execute tasks
+     * @param prefetch the number of tasks that are buffered in addition to
+     * the executed ones
+     */
+    public WorkerRuntime(Client client, TaskExecutor<T, R> executor, int threads, int prefetch) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one thread is needed");
+        }
+        if (prefetch < 0) {
+            throw new IllegalArgumentException("the prefetch must not be negative");
+        }
+        this.client = client;
+        this.executor = executor;
+        this.threads = threads;
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * receives the initializer, starts the threads and receives tasks until
+     * the server disconnects or the runtime is closed. The client is closed
+     * afterwards
+     *
+     * @throws IOException if the connection is lost or the executor failed
+     */
+    public void run() throws IOException {
+        if (client.hasInitializer()) {
+            initializer = client.receiveInitCommand().getGameIni();
+        }
+        running = true;
+        for (int i = 0; i < threads; i++) {
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    work();
+                }
+            }, "Worker" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+        sender = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendResults();
+            }
+        }, "WorkerResults");
+        sender.setDaemon(true);
+        sender.start();
+        startHeartbeats();
+        try {
+            client.lease(threads + prefetch, Math.max(1, Math.min(threads, prefetch)));
+            receiveTasks();
+        } catch (IOException ex) {
+            if (failure == null && !closed) {
+                throw ex;
+            }
+        } finally {
+            stop();
+        }
+        if (failure != null) {
+            throw new IOException("the executor failed", failure);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void receiveTasks() throws IOException {
+        while (running) {
+            Command command = client.receiveCommand();
+            switch (command.getType()) {
+                case TASK:
+                    buffer.add((T) ((TaskCommand) command).getTask());
+                    break;
+
+                case TASK_BATCH:
+                    buffer.addAll(((TaskBatchCommand<T>) command).getTasks());
+                    break;
+
+                case DISCONNECT:
+                    log.info("the server disconnected");
+                    running = false;
+                    break;
+
+                default:
+                    log.warn("ignore received command of type {}", command.getType());
+            }
+        }
+    }
+
+    /**
+     * executes buffered tasks until the runtime is stopped
+     */
+    private void work() {
+        try {
+            while (running) {
+                T task = buffer.take();
+                R result;
+                try {
+                    result = executor.execute(task, initializer);
+                } catch (Throwable ex) {
+                    //an error would kill the thread without giving the task back
+                    if (running) {
+                        fail(task, ex);
+                    }
+                    return;
+                }
+                result.setTaskId(task.getId());
+                results.add(result);
+            }
+        } catch (InterruptedException ex) {
+            //the runtime is stopped
+            log.log(Level.TRACE, ex);
+        }
+    }
+
+    /**
+     * sends the results of the threads until the runtime is stopped. All
+     * results that are ready are sent in one frame
+     */
+    private void sendResults() {
+        List<R> ready = new ArrayList<>();
+        try {
+            while (running) {
+                ready.add(results.take());
+                results.drainTo(ready);
+                if (ready.size() == 1) {
+                    client.sendResult(ready.get(0));
+                } else {
+                    client.sendResults(ready);
+                }
+                ready.clear();
+            }
+        } catch (InterruptedException ex) {
+            //the runtime is stopped
+            log.log(Level.TRACE, ex);
+        } catch (IOException ex) {
+            //the receiving thread notices the lost connection too
+            log.log(Level.TRACE, ex);
+        }
+    }
+
+    /**
+     * sends the results the sender thread didn't send before it was stopped
+     */
+    private void sendRemainingResults() {
+        List<R> ready = new ArrayList<>();
+        results.drainTo(ready);
+        try {
+            client.sendResults(ready);
+            log.debug("sent {} remaining results", ready.size());
+        } catch (IOException ex) {
+            log.warn("could not send {} remaining results: {}", ready.size(), ex.toString());
+        }
+    }
+
+    /**
+     * returns the exception or error of the executor that stopped the runtime
+     *
+     * @return the exception or null if the executor didn't fail
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * stops the runtime and closes the connection. The tasks that are not
+     * finished are given to other clients by the server. A running run()
+     * returns afterwards
+     */
+    public void close() {
+        closed = true;
+        running = false;
+        try {
+            client.close();
+        } catch (IOException ex) {
+            log.log(Level.ALL, ex);
+        }
+    }
+
+    /**
+     * stops the runtime because the executor failed. Closing the connection
+     * wakes up the receiving thread
+     *
+     * @param task the task that failed
+     * @param ex the exception or error of the executor
+     */
+    private void fail(T task, Throwable ex) {
+        log.error("task {} failed", task.getId(), ex);
+        failure = ex;
+        running = false;
+        try {
+            client.close();
+        } catch (IOException closeEx) {
+            log.log(Level.ALL, closeEx);
+        }
+    }
+
+    /**
+     * sends heartbeats in a third of the lease timeout of the server
+     */
+    private void startHeartbeats() {
+        final long interval = client.getLeaseTimeout() / 3;
+        if (interval <= 0) {
+            return;
+        }
+        heartbeats = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (running) {
+                        TimeUnit.MILLISECONDS.sleep(interval);
+                        client.heartbeat();
+                    }
+                } catch (InterruptedException | IOException ex) {
+                    log.log(Level.TRACE, ex);
+                }
+            }
+        }, "WorkerHeartbeats");
+        heartbeats.setDaemon(true);
+        heartbeats.start();
+    }
+
+    /**
+     * stops the threads and closes the client. Tasks that are still executed
+     * are interrupted. If the runtime wasn't closed and the executor didn't
+     * fail, the results that are ready are sent first
+     */
+    private void stop() {
+        running = false;
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        if (heartbeats != null) {
+            heartbeats.interrupt();
+        }
+        buffer.clear();
+        if (sender != null) {
+            sender.interrupt();
+            try {
+                sender.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failure == null && !closed && !results.isEmpty()) {
+            sendRemainingResults();
+        }
+        results.clear();
+        try {
+            client.close();
+        } catch (IOException ex) {
+            log.log(Level.ALL, ex);
+        }
+    }
+}
@@ -38,6 +38,18 @@ public abstract class Command implements Serializable {
         this.id = nextId.getAndIncrement();
     }
 
+    /**
+     * creates a command with a fixed id, so equal commands are serialized
+     * into the same bytes
+     *
+     * @param type the type of the command
+     * @param id the id of the command
+     */
+    protected Command(CommandType type, long id) {
+        this.type = type;
+        this.id = id;
+    }
+
     /**
      *
      * @return the type of the command
@@ -23,10 +23,15 @@ package de.sdc.commands;
  */
 public enum CommandType {
 
+    HELLO,
     INIT,
     REQUEST_TASK,
     TASK,
+    TASK_BATCH,
     RESULT,
+    RESULT_BATCH,
     DISCONNECT,
+    LEASE,
+    HEARTBEAT,
     CUSTOM
 }
@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc.commands;
+
+/**
+ * Tells the server that the client is still alive. If the server has a lease
+ * timeout the tasks of a client are given to other clients once the client
+ * hasn't sent anything within the timeout. A client that works longer than
+ * the timeout on a task has to send heartbeats meanwhile
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class HeartbeatCommand extends Command {
+
+    private static final long serialVersionUID = 1L;
+    public HeartbeatCommand() {
+        super(CommandType.HEARTBEAT);
+    }
+}
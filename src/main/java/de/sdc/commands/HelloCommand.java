@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc.commands;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The first command a client sends after connecting. It announces the
+ * compression the client wants to use and the hashes of the initializers the
+ * client has cached. The server answers with a hello command that contains
+ * the compression threshold both sides use from then on (0 if the connection
+ * isn't compressed) and the hash of its initializer. The initializer itself
+ * is only sent afterwards if the client hasn't cached it. The answer also
+ * contains the lease timeout of the server, so the client knows how often it
+ * has to send heartbeats while it works on a task
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class HelloCommand extends Command {
+
+    private static final long serialVersionUID = 1L;
+    private final int compressionThreshold;
+    private final ArrayList<String> cachedInitializers;
+    private final String initializerHash;
+    private final long leaseTimeout;
+
+    /**
+     *
+     * @param compressionThreshold frames with at least this many bytes are
+     * compressed, 0 disables the compression
+     */
+    public HelloCommand(int compressionThreshold) {
+        this(compressionThreshold, Collections.<String>emptyList(), null, 0);
+    }
+
+    /**
+     * creates the hello of a client
+     *
+     * @param compressionThreshold frames with at least this many bytes are
+     * compressed, 0 disables the compression
+     * @param cachedInitializers the hashes of the initializers the client has
+     * cached
+     */
+    public HelloCommand(int compressionThreshold, Collection<String> cachedInitializers) {
+        this(compressionThreshold, cachedInitializers, null, 0);
+    }
+
+    /**
+     * creates the answer of the server
+     *
+     * @param compressionThreshold the compression threshold of the connection
+     * @param initializerHash the hash of the initializer of the server or null
+     * if the server has no initializer
+     */
+    public HelloCommand(int compressionThreshold, String initializerHash) {
+        this(compressionThreshold, initializerHash, 0);
+    }
+
+    /**
+     * creates the answer of a server with a lease timeout
+     *
+     * @param compressionThreshold the compression threshold of the connection
+     * @param initializerHash the hash of the initializer of the server or null
+     * if the server has no initializer
+     * @param leaseTimeout the lease timeout of the server in milliseconds or 0
+     * if the leases don't expire
+     */
+    public HelloCommand(int compressionThreshold, String initializerHash, long leaseTimeout) {
+        this(compressionThreshold, Collections.<String>emptyList(), initializerHash, leaseTimeout);
+    }
+
+    private HelloCommand(int compressionThreshold, Collection<String> cachedInitializers, String initializerHash, long leaseTimeout) {
+        super(CommandType.HELLO);
+        if (compressionThreshold < 0) {
+            throw new IllegalArgumentException("the compression threshold must not be negative");
+        }
+        this.compressionThreshold = compressionThreshold;
+        this.cachedInitializers = new ArrayList<>(cachedInitializers);
+        this.initializerHash = initializerHash;
+        this.leaseTimeout = leaseTimeout;
+    }
+
+    /**
+     *
+     * @return the minimal size of a compressed frame or 0 if the frames aren't
+     * compressed
+     */
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     *
+     * @return the hashes of the initializers the client has cached
+     */
+    public List<String> getCachedInitializers() {
+        return cachedInitializers;
+    }
+
+    /**
+     *
+     * @return the hash of the initializer of the server or null if the server
+     * has no initializer
+     */
+    public String getInitializerHash() {
+        return initializerHash;
+    }
+
+    /**
+     *
+     * @return the lease timeout of the server in milliseconds or 0 if the
+     * leases don't expire
+     */
+    public long getLeaseTimeout() {
+        return leaseTimeout;
+    }
+}
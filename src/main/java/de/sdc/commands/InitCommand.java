@@ -21,16 +21,23 @@ import de.sdc.Initializer;
 /**
  * This is a command that could be send to the client to set it up. If a setup
  * should done an object of this class will be send to the client as the very
- * first command.
+ * first command. Every init command has the same id, so the same initializer
+ * is always serialized into the same frame and the initializer caches of the
+ * clients can identify it by the hash of the frame.
  *
  * @author Michael Pietsch (Skywalker-11)
  */
 public class InitCommand extends Command {
 
+    /**
+     * the id of every init command
+     */
+    public static final long ID = -1;
+
     Initializer initializer;
 
     public InitCommand(Initializer gameIni) {
-        super(CommandType.INIT);
+        super(CommandType.INIT, ID);
         this.initializer = gameIni;
     }
 
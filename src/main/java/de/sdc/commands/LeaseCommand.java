@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc.commands;
+
+/**
+ * Sent by a client to lease a window of tasks. The server keeps up to window
+ * tasks outstanding on the connection and sends a new task for every result it
+ * receives, so the client doesn't have to request each task on its own. The
+ * results must carry the id of their task (see ResultCommand.setTaskId).
+ *
+ * If the batch size is greater than 1 the server sends the currently available
+ * tasks in TaskBatchCommands of up to that size, so one frame carries many
+ * tasks
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class LeaseCommand extends Command {
+
+    private static final long serialVersionUID = 1L;
+    private final int window;
+    private final int batchSize;
+
+    /**
+     *
+     * @param window the number of tasks the client wants to have outstanding
+     */
+    public LeaseCommand(int window) {
+        this(window, 1);
+    }
+
+    /**
+     *
+     * @param window the number of tasks the client wants to have outstanding
+     * @param batchSize the maximum number of tasks that may be sent in one
+     * TaskBatchCommand
+     */
+    public LeaseCommand(int window, int batchSize) {
+        super(CommandType.LEASE);
+        if (window < 1) {
+            throw new IllegalArgumentException("the lease window must be at least 1");
+        }
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("the batch size must be at least 1");
+        }
+        this.window = window;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     *
+     * @return the number of tasks the client wants to have outstanding
+     */
+    public int getWindow() {
+        return window;
+    }
+
+    /**
+     *
+     * @return the maximum number of tasks that may be sent in one
+     * TaskBatchCommand
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+}
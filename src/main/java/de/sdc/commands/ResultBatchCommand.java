@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc.commands;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * This command wraps several results that are sent from a client to the server
+ * in one frame. Every result must carry the id of its task
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class ResultBatchCommand extends Command {
+
+    private static final long serialVersionUID = 1L;
+    private final ArrayList<ResultCommand> results;
+
+    /**
+     *
+     * @param results the results that should be sent to the server
+     */
+    public ResultBatchCommand(Collection<? extends ResultCommand> results) {
+        super(CommandType.RESULT_BATCH);
+        this.results = new ArrayList<>(results);
+    }
+
+    /**
+     *
+     * @return returns the results that are wrapped in this command
+     */
+    public List<ResultCommand> getResults() {
+        return results;
+    }
+}
@@ -26,10 +26,35 @@ import java.io.Serializable;
  */
 public abstract class ResultCommand extends Command implements Serializable {
 
+    /**
+     * task id of a result that is not assigned to a task
+     */
+    public static final int NO_TASK = -1;
+
+    private int taskId = NO_TASK;
+
     public ResultCommand() {
         super(CommandType.RESULT);
     }
 
+    /**
+     * @return the id of the task this is the result of or NO_TASK if it is not
+     * set
+     */
+    public int getTaskId() {
+        return taskId;
+    }
+
+    /**
+     * sets the id of the task this is the result of. This is required if the
+     * client has leased more than one task
+     *
+     * @param taskId id of the task
+     */
+    public void setTaskId(int taskId) {
+        this.taskId = taskId;
+    }
+
     /**
      * @return returns a short description of the result (may will be logged)
      */
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc.commands;
+
+import de.sdc.Task;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This command wraps several tasks that are sent from the server to a client
+ * in one frame. It is only sent to clients that leased tasks with a batch size
+ * greater than 1
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ * @param <T> tasks wrapped by this class
+ */
+public class TaskBatchCommand<T extends Task> extends Command {
+
+    private static final long serialVersionUID = 1L;
+    private final ArrayList<T> tasks;
+
+    /**
+     *
+     * @param tasks the tasks that should be executed on a client
+     */
+    public TaskBatchCommand(List<T> tasks) {
+        super(CommandType.TASK_BATCH);
+        this.tasks = new ArrayList<>(tasks);
+    }
+
+    /**
+     *
+     * @return returns the tasks that are wrapped in this command
+     */
+    public List<T> getTasks() {
+        return tasks;
+    }
+}
@@ -16,13 +16,10 @@
  */
 package de.sdc.examples.simple;
 
-import de.sdc.Client;
-import de.sdc.commands.Command;
-import de.sdc.commands.TaskCommand;
+import de.sdc.ClientRunner;
+import de.sdc.Initializer;
+import de.sdc.TaskExecutor;
 import java.io.IOException;
-import java.io.InvalidClassException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
 
 /**
  *
@@ -31,42 +28,23 @@ import java.util.logging.Logger;
 public class ClientStart {
 
     public static void main(String[] args) throws IOException {
-        Client client = new Client("localhost", 10000);
-        client.requestCommand();
-        while (client.isConnected()) {
-            //receive a command (thread will be blocked till a task is received from the server 
-            Command command = client.requestCommand();
-            
-            switch (command.getType()) {
-                case TASK: //a taskcommand was received
-                    TaskCommand toExecute = (TaskCommand) command;
+        ClientRunner<SimpleTask, SimpleResultCmd> runner = new ClientRunner<>("localhost", 10000, new TaskExecutor<SimpleTask, SimpleResultCmd>() {
+            @Override
+            public SimpleResultCmd execute(SimpleTask task, Initializer initializer) {
+                //get parameter from the task
+                double start = task.getStart();
 
-                    //get the task from the command
-                    SimpleTask task = (SimpleTask) toExecute.getTask();
+                //do what ever you want
+                double result = doSth(start);
 
-                    //get parameter from the task
-                    double start = task.getStart();
-
-                    //do what ever you want
-                    double result = doSth(start);
-
-                    //create a result command with the calculated result
-                    SimpleResultCmd resultCmd = new SimpleResultCmd(result);
-
-                    //send the result
-                    client.sendResult(resultCmd);
-                    break;
-
-                case DISCONNECT: // the server sent a disconnect
-                    //close the client connection
-                    client.close();
-                    System.out.print("Clean disconnect");
-                    System.exit(0);
-                    
-                default:
-                    throw new InvalidClassException("only task command accepted");
+                //create a result command with the calculated result
+                return new SimpleResultCmd(result);
             }
-        }
+        });
+        //receive the tasks, execute them and send the results till the server
+        //sends a disconnect. The next task is received while one is executed
+        runner.run();
+        System.out.print("Clean disconnect");
     }
 
     public static double doSth(double start) {
@@ -18,7 +18,9 @@ package de.sdc.examples.simple;
 
 import de.sdc.Server;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  *
@@ -28,7 +30,7 @@ public class ServerStart {
 
     public static void main(String[] args) throws IOException {
         //create a server
-        Server server = new Server(10000);
+        Server<SimpleTask, SimpleResultCmd> server = new Server<>(10000);
 
         //you can already add tasks before starting the server
         server.addTask(new SimpleTask(0));
@@ -50,27 +52,24 @@ public class ServerStart {
      *
      * @param server the server object which should be used to publish the tasks
      */
-    private static void calculate(Server server) {
+    private static void calculate(Server<SimpleTask, SimpleResultCmd> server) {
         //create tasks that the clients should execute
+        List<SimpleTask> tasks = new ArrayList<>();
         for (int i = 0; i < 10; i++) {
-            server.addTask(new SimpleTask(i));
+            tasks.add(new SimpleTask(i));
         }
 
-        try {
-            //asks the server if all queued tasks are finished
-            while (!server.allTasksFinished()) {
-                //wait 1 milli second and ask again
-                Thread.sleep(1500);
-                System.out.println("Tasks finished:" + server.getProgress() * 100 + "%");
-            }
-        } catch (InterruptedException ex) {
-        }
+        //the future completes once all tasks of the group are finished
+        CompletableFuture<List<SimpleResultCmd>> job = server.addTasks(tasks);
 
         //do something with the results (here they are printed)
-        List<SimpleResultCmd> results = server.getResults();
-        for (SimpleResultCmd result : results) {
+        for (SimpleResultCmd result : job.join()) {
             System.out.println(result.getValue());
         }
+
+        //wait for the other tasks too (the one added before the start)
+        server.whenAllTasksFinished().join();
+        System.out.println("Tasks finished:" + server.getProgress() * 100 + "%");
         server.resetQueue();
     }
 }
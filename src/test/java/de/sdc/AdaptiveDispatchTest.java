@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the windows of leasing clients are adapted to their latency and
+ * to the unfinished tasks
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class AdaptiveDispatchTest {
+
+    private static final int TASKS = 60;
+
+    private Server<TestTask, TestResult> server;
+    private int port;
+
+    @Before
+    public void createServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port);
+    }
+
+    @After
+    public void closeServer() {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void withoutAdaptionTheLeasedWindowIsFilled() throws Exception {
+        server.start();
+        addTasks();
+
+        Client client = new Client("localhost", port);
+        client.lease(16);
+        receiveTask(client);
+        assertEquals(16, server.getClientStatistics().get(0).getDispatchWindow());
+        client.close();
+    }
+
+    @Test(timeout = 20000)
+    public void theWindowStartsSmallAndGrowsWithTheLatency() throws Exception {
+        server.setAdaptiveDispatch(true);
+        server.start();
+        CompletableFuture<Void> finished = addTasks();
+
+        Client client = new Client("localhost", port);
+        client.lease(16);
+        Task task = receiveTask(client);
+        assertEquals(2, server.getClientStatistics().get(0).getDispatchWindow());
+
+        //the client works on one task at a time, so the tasks wait at it
+        int maxWindow = 2;
+        for (int i = 0; i < TASKS; i++) {
+            if (i > 0) {
+                task = receiveTask(client);
+            }
+            Thread.sleep(5);
+            client.sendResult(task, new TestResult(task.getId(), i));
+            maxWindow = Math.max(maxWindow, server.getClientStatistics().get(0).getDispatchWindow());
+        }
+        finished.get(5, TimeUnit.SECONDS);
+        assertTrue("the window didn't grow: " + maxWindow, maxWindow > 2);
+        assertTrue("the window exceeds the lease: " + maxWindow, maxWindow <= 16);
+        //no task is left, so the client doesn't get more than one
+        assertEquals(1, server.getClientStatistics().get(0).getDispatchWindow());
+        client.close();
+    }
+
+    private CompletableFuture<Void> addTasks() {
+        for (int i = 0; i < TASKS; i++) {
+            server.addTask(new TestTask());
+        }
+        return server.whenAllTasksFinished();
+    }
+
+    private static Task receiveTask(Client client) throws IOException {
+        Command command = client.receiveCommand();
+        assertEquals(CommandType.TASK, command.getType());
+        return ((TaskCommand<?>) command).getTask();
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.ServerSocket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a ClientRunner connects again with a growing delay, gives up
+ * after the configured attempts and stops after a disconnect
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class ClientRunnerTest {
+
+    private final TaskExecutor<TestTask, TestResult> echo = new TaskExecutor<TestTask, TestResult>() {
+        @Override
+        public TestResult execute(TestTask task, Initializer initializer) {
+            return new TestResult(task.getId(), task.getId());
+        }
+    };
+
+    private int port;
+    private ExecutorService executor;
+
+    @Before
+    public void findPort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test(timeout = 10000)
+    public void theRunnerGivesUpAfterTheAttempts() throws Exception {
+        ClientRunner<TestTask, TestResult> runner = new ClientRunner<>("localhost", port, echo);
+        runner.setReconnect(3, 20, 1000, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        try {
+            runner.run();
+            fail("the runner connected to a port without server");
+        } catch (ConnectException expected) {
+            //the delays were 20 and 40 ms
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(60));
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void theRunnerConnectsOnceTheServerIsStarted() throws Exception {
+        ClientRunner<TestTask, TestResult> runner = new ClientRunner<>("localhost", port, echo);
+        runner.setReconnect(50, 20, 100, TimeUnit.MILLISECONDS);
+        runner.setThreads(2, 2);
+        Future<Void> run = run(runner);
+        Thread.sleep(100);
+
+        Server<TestTask, TestResult> server = new Server<>(port);
+        try {
+            server.start();
+            for (int i = 0; i < 20; i++) {
+                server.addTask(new TestTask());
+            }
+            server.whenAllTasksFinished().get(10, TimeUnit.SECONDS);
+            assertEquals(20, server.getResults().size());
+            runner.stop();
+            run.get(5, TimeUnit.SECONDS);
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test(timeout = 20000)
+    public void theRunnerStopsAfterADisconnect() throws Exception {
+        Server<TestTask, TestResult> server = new Server<>(port);
+        server.start();
+        server.addTask(new TestTask());
+        ClientRunner<TestTask, TestResult> runner = new ClientRunner<>("localhost", port, echo);
+        Future<Void> run = run(runner);
+        server.whenAllTasksFinished().get(10, TimeUnit.SECONDS);
+
+        server.close();
+        run.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 20000)
+    public void theRunnerWorksForTheNextServerAfterADisconnect() throws Exception {
+        ClientRunner<TestTask, TestResult> runner = new ClientRunner<>("localhost", port, echo);
+        runner.setReconnect(50, 20, 100, TimeUnit.MILLISECONDS);
+        runner.setReconnectAfterDisconnect(true);
+        Future<Void> run = null;
+        for (int i = 0; i < 2; i++) {
+            Server<TestTask, TestResult> server = new Server<>(port);
+            try {
+                server.start();
+                server.addTask(new TestTask());
+                if (run == null) {
+                    run = run(runner);
+                }
+                server.whenAllTasksFinished().get(10, TimeUnit.SECONDS);
+                assertEquals(1, server.getResults().size());
+            } finally {
+                server.close();
+            }
+        }
+        runner.stop();
+        run.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test(timeout = 20000)
+    public void aFailingExecutorStopsTheRunner() throws Exception {
+        Server<TestTask, TestResult> server = new Server<>(port);
+        try {
+            server.start();
+            server.addTask(new TestTask());
+            ClientRunner<TestTask, TestResult> runner = new ClientRunner<>("localhost", port, new TaskExecutor<TestTask, TestResult>() {
+                @Override
+                public TestResult execute(TestTask task, Initializer initializer) throws IOException {
+                    throw new IOException("the task can't be computed");
+                }
+            });
+            try {
+                run(runner).get(5, TimeUnit.SECONDS);
+                fail("the runner connected again after the executor failed");
+            } catch (ExecutionException expected) {
+                assertEquals("the executor failed", expected.getCause().getMessage());
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private Future<Void> run(final ClientRunner<TestTask, TestResult> runner) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                runner.run();
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.CommandType;
+import de.sdc.commands.ResultBatchCommand;
+import de.sdc.commands.ResultCommand;
+import de.sdc.commands.TaskCommand;
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that the codecs serialize the commands and that server and client
+ * talk with a codec other than the default one
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class CodecTest {
+
+    private static final Codec[] CODECS = {new FstCodec(), new FstCodec(TestTask.class, TestResult.class),
+        new UnsafeFstCodec(TestTask.class, TestResult.class), new JavaCodec()};
+
+    @Test
+    public void everyCodecRestoresTheCommands() throws Exception {
+        for (Codec codec : CODECS) {
+            Codec.Encoder encoder = codec.createEncoder();
+            Codec.Decoder decoder = codec.createDecoder();
+            TestTask task = new TestTask(true, 3, 4);
+            TaskCommand<?> command = (TaskCommand<?>) roundTrip(encoder, decoder, new TaskCommand<>(task));
+            assertEquals(CommandType.TASK, command.getType());
+            assertEquals(task.getId(), command.getTask().getId());
+            assertEquals(Arrays.asList(3, 4), command.getTask().getPredecessors());
+            assertTrue(command.getTask().needsPredecessorResults());
+
+            List<TestResult> results = Arrays.asList(new TestResult(1, 10), new TestResult(2, 20));
+            ResultBatchCommand batch = (ResultBatchCommand) roundTrip(encoder, decoder, new ResultBatchCommand(results));
+            assertEquals(2, batch.getResults().size());
+            ResultCommand second = batch.getResults().get(1);
+            assertEquals(2, second.getTaskId());
+            assertEquals(20, ((TestResult) second).getValue());
+        }
+    }
+
+    @Test
+    public void theEncoderBufferIsReusedForSmallerObjects() throws Exception {
+        for (Codec codec : CODECS) {
+            Codec.Encoder encoder = codec.createEncoder();
+            Codec.Decoder decoder = codec.createDecoder();
+            byte[] big = new byte[2 * 1024 * 1024];
+            big[big.length - 1] = 1;
+            byte[] decoded = (byte[]) roundTrip(encoder, decoder, big);
+            assertEquals(big.length, decoded.length);
+            assertEquals(1, decoded[big.length - 1]);
+            assertEquals("small", roundTrip(encoder, decoder, "small"));
+        }
+    }
+
+    @Test
+    public void registeredClassesAreWrittenShorter() throws Exception {
+        TaskCommand<TestTask> command = new TaskCommand<>(new TestTask());
+        int unregistered = new FstCodec().createEncoder().encode(command);
+        int registered = new FstCodec(TestTask.class).createEncoder().encode(command);
+        assertTrue(registered < unregistered);
+    }
+
+    @Test(timeout = 10000)
+    public void serverAndClientUseTheConfiguredCodec() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Server<TestTask, TestResult> server = new Server<>(port);
+        server.setCodec(new JavaCodec());
+        server.start();
+        try {
+            CompletableFuture<TestResult> future = server.addTask(new TestTask());
+            Client client = new Client("localhost", port, new JavaCodec());
+            TaskCommand<?> command = (TaskCommand<?>) client.requestCommand();
+            client.sendResult(command.getTask(), new TestResult(command.getTask().getId(), 9));
+            assertEquals(9, future.get(5, TimeUnit.SECONDS).getValue());
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    private static Object roundTrip(Codec.Encoder encoder, Codec.Decoder decoder, Object object) throws Exception {
+        int length = encoder.encode(object);
+        return decoder.decode(encoder.getBuffer(), length);
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests writing and reading compressed frames with FrameWriter and
+ * FrameReader
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class FrameCompressionTest {
+
+    private static final int THRESHOLD = 1024;
+
+    @Test
+    public void compressedFramesAreInflated() throws IOException {
+        byte[] content = new byte[64 * 1024];
+        Arrays.fill(content, (byte) 7);
+        CompressionStatistics statistics = new CompressionStatistics();
+        FrameWriter writer = new FrameWriter(NetworkUtil.DEFAULT_CODEC);
+        writer.enableCompression(THRESHOLD, Compression.deflate().getLevel(), statistics);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        writer.write(content, stream);
+        writer.close();
+
+        byte[] frame = stream.toByteArray();
+        assertTrue(NetworkUtil.isCompressed(ByteBuffer.wrap(frame).getInt()));
+        assertTrue(frame.length < content.length / 10);
+
+        FrameReader reader = new FrameReader(NetworkUtil.DEFAULT_CODEC);
+        byte[] received = reader.read(new ByteArrayInputStream(frame));
+        reader.close();
+        assertArrayEquals(content, received);
+    }
+
+    @Test
+    public void serializedFramesAreCompressedFromTheirContent() throws IOException {
+        byte[] content = new byte[64 * 1024];
+        Arrays.fill(content, (byte) 3);
+        SerializedFrame serialized = SerializedFrame.encode(content, NetworkUtil.DEFAULT_CODEC, new Compression(THRESHOLD), new CompressionStatistics());
+        ByteBuffer plain = serialized.getFrame(0);
+        ByteBuffer compressed = serialized.getFrame(THRESHOLD);
+        assertTrue(NetworkUtil.isCompressed(compressed.getInt(0)));
+        assertTrue(compressed.remaining() < plain.remaining());
+
+        FrameReader reader = new FrameReader(NetworkUtil.DEFAULT_CODEC);
+        byte[] fromPlain = reader.read(new ByteArrayInputStream(toArray(plain)));
+        byte[] fromCompressed = reader.read(new ByteArrayInputStream(toArray(compressed)));
+        reader.close();
+        assertArrayEquals(content, fromPlain);
+        assertArrayEquals(content, fromCompressed);
+    }
+
+    @Test
+    public void anImpossibleInflatedLengthIsRejected() {
+        //a compressed frame with an empty content claiming 1 GB
+        ByteBuffer frame = ByteBuffer.allocate(2 * NetworkUtil.FRAME_HEADER_LENGTH);
+        frame.putInt(NetworkUtil.FRAME_HEADER_LENGTH | NetworkUtil.COMPRESSED_FRAME);
+        frame.putInt(1 << 30);
+        FrameReader reader = new FrameReader(NetworkUtil.DEFAULT_CODEC);
+        try {
+            reader.read(new ByteArrayInputStream(frame.array()));
+            fail("the frame should have been rejected");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().startsWith("invalid length of compressed frame"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void aFrameLongerThanTheMaximumIsRejectedBeforeItIsRead() {
+        //only the header is sent, the reader must not wait for the content
+        ByteBuffer frame = ByteBuffer.allocate(NetworkUtil.FRAME_HEADER_LENGTH);
+        frame.putInt(NetworkUtil.MAX_FRAME_LENGTH + 1);
+        FrameReader reader = new FrameReader(NetworkUtil.DEFAULT_CODEC);
+        try {
+            reader.read(new ByteArrayInputStream(frame.array()));
+            fail("the frame should have been rejected");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("exceeds the maximum"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void anInflatedLengthAboveTheMaximumIsRejected() {
+        //1 MB of deflated content could claim more than the maximum
+        int deflatedLength = 1024 * 1024;
+        ByteBuffer frame = ByteBuffer.allocate(2 * NetworkUtil.FRAME_HEADER_LENGTH + deflatedLength);
+        frame.putInt((NetworkUtil.FRAME_HEADER_LENGTH + deflatedLength) | NetworkUtil.COMPRESSED_FRAME);
+        frame.putInt(NetworkUtil.MAX_FRAME_LENGTH + 1);
+        FrameReader reader = new FrameReader(NetworkUtil.DEFAULT_CODEC);
+        try {
+            reader.read(new ByteArrayInputStream(frame.array()));
+            fail("the frame should have been rejected");
+        } catch (IOException ex) {
+            assertTrue(ex.getMessage().contains("exceeds the maximum"));
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] array = new byte[buffer.remaining()];
+        buffer.get(array);
+        return array;
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests that FrameWriter and FrameReader keep the frames intact while they
+ * reuse their buffers
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class FramingTest {
+
+    @Test
+    public void framesOfChangingSizesShareTheStream() throws IOException {
+        int[] sizes = {10, 100 * 1024, 3, 2 * 1024 * 1024, 0, 500};
+        FrameWriter writer = new FrameWriter(NetworkUtil.DEFAULT_CODEC);
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (int size : sizes) {
+            writer.write(content(size), stream);
+        }
+        writer.close();
+
+        FrameReader reader = new FrameReader(NetworkUtil.DEFAULT_CODEC);
+        InputStream input = new ByteArrayInputStream(stream.toByteArray());
+        for (int size : sizes) {
+            byte[] received = reader.read(input);
+            assertArrayEquals(content(size), received);
+        }
+        try {
+            reader.read(input);
+            fail("a frame was read from the end of the stream");
+        } catch (EOFException expected) {
+            //all frames were read
+        }
+        reader.close();
+    }
+
+    @Test
+    public void aFrameThatDoesntFitGrowsTheTargetBuffer() throws IOException {
+        FrameWriter writer = new FrameWriter(NetworkUtil.DEFAULT_CODEC);
+        ByteBuffer small = ByteBuffer.allocate(64);
+        ByteBuffer target = writer.write("first", small);
+        assertSame(small, target);
+        target = writer.write(content(1024), target);
+        writer.close();
+
+        target.flip();
+        FrameReader reader = new FrameReader(NetworkUtil.DEFAULT_CODEC);
+        assertEquals("first", reader.read(target, target.getInt()));
+        byte[] second = reader.read(target, target.getInt());
+        assertArrayEquals(content(1024), second);
+        assertEquals(0, target.remaining());
+        reader.close();
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31 + size);
+        }
+        return content;
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.CommandType;
+import de.sdc.commands.InitCommand;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the initializer is serialized once and sent to every client and
+ * that clients with a cache don't download it again
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class InitializerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Server<TestTask, TestResult> server;
+    private int port;
+
+    @Before
+    public void createServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port);
+    }
+
+    @After
+    public void closeServer() {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void everyClientReceivesTheInitializer() throws Exception {
+        server.setInitializer(new TestInitializer("first"));
+        server.start();
+        server.addTask(new TestTask());
+
+        for (int i = 0; i < 2; i++) {
+            Client client = new Client("localhost", port);
+            assertTrue(client.hasInitializer());
+            InitCommand init = client.receiveInitCommand();
+            assertEquals("first", ((TestInitializer) init.getGameIni()).getName());
+            client.close();
+        }
+    }
+
+    @Test
+    public void theInitializerIsSerializedOnce() throws Exception {
+        assertEquals(null, server.getInitializerFrame());
+        server.setInitializer(new TestInitializer("first"));
+        SerializedFrame frame = server.getInitializerFrame();
+        assertSame(frame, server.getInitializerFrame());
+        //every connection gets an own buffer of the same frame
+        assertNotSame(frame.getFrame(0), frame.getFrame(0));
+        assertEquals(frame.getFrame(0), frame.getFrame(0));
+
+        server.setInitializer(new TestInitializer("second"));
+        SerializedFrame changed = server.getInitializerFrame();
+        assertNotSame(frame, changed);
+        assertFalse(frame.getHash().equals(changed.getHash()));
+    }
+
+    @Test(timeout = 10000)
+    public void aClientWithoutInitializerGetsTasks() throws Exception {
+        server.start();
+        server.addTask(new TestTask());
+
+        Client client = new Client("localhost", port);
+        assertFalse(client.hasInitializer());
+        client.lease(1);
+        assertEquals(CommandType.TASK, client.receiveCommand().getType());
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void aCachedInitializerIsNotSentAgain() throws Exception {
+        server.setInitializer(new TestInitializer("cached"));
+        server.start();
+        server.addTask(new TestTask());
+        InitializerCache cache = new InitializerCache(folder.getRoot().toPath());
+
+        Client client = new Client("localhost", port, new FstCodec(), Compression.NONE, cache);
+        assertEquals("cached", ((TestInitializer) client.receiveInitCommand().getGameIni()).getName());
+        client.close();
+        String hash = server.getInitializerFrame().getHash();
+        assertEquals(Arrays.asList(hash), cache.getHashes());
+
+        //the server announces the hash and sends the task right away
+        client = new Client("localhost", port, new FstCodec(), Compression.NONE, cache);
+        assertEquals("cached", ((TestInitializer) client.receiveInitCommand().getGameIni()).getName());
+        client.lease(1);
+        assertEquals(CommandType.TASK, client.receiveCommand().getType());
+        client.close();
+    }
+
+    @Test
+    public void theCacheKeepsTheMostRecentlyUsedInitializers() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        InitializerCache cache = new InitializerCache(directory, 2);
+        byte[] content = {1, 2, 3};
+        cache.store("a", content);
+        Files.setLastModifiedTime(directory.resolve("a.init"), FileTime.fromMillis(1000));
+        cache.store("b", content);
+        Files.setLastModifiedTime(directory.resolve("b.init"), FileTime.fromMillis(2000));
+        //loading a marks it as recently used, so b is removed
+        assertTrue(Arrays.equals(content, cache.load("a")));
+        cache.store("c", content);
+
+        assertEquals(2, cache.getHashes().size());
+        assertTrue(cache.getHashes().contains("a"));
+        assertTrue(cache.getHashes().contains("c"));
+        assertEquals(null, cache.load("b"));
+    }
+
+    /**
+     * an initializer for the tests
+     */
+    static class TestInitializer extends Initializer {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+
+        TestInitializer(String name) {
+            this.name = name;
+        }
+
+        String getName() {
+            return name;
+        }
+    }
+}
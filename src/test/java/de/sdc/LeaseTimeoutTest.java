@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that the tasks of a stalled client are given to other clients once
+ * their lease expired
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class LeaseTimeoutTest {
+
+    private Server<TestTask, TestResult> server;
+    private int port;
+
+    @Before
+    public void startServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port);
+        server.setLeaseTimeout(300, TimeUnit.MILLISECONDS);
+        server.setMetricsEnabled(true);
+        server.start();
+    }
+
+    @After
+    public void closeServer() {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void theTaskOfAStalledClientIsRequeued() throws Exception {
+        TestTask task = new TestTask();
+        CompletableFuture<TestResult> future = server.addTask(task);
+
+        Client stalled = new Client("localhost", port);
+        assertEquals(task.getId(), receiveTask(stalled.requestCommand()).getId());
+
+        //the stalled client never answers, so the task expires and is sent
+        //to the next client
+        Client worker = new Client("localhost", port);
+        Task requeued = receiveTask(worker.requestCommand());
+        assertEquals(task.getId(), requeued.getId());
+
+        worker.sendResult(requeued, new TestResult(requeued.getId(), 5));
+        assertEquals(5, future.get(5, TimeUnit.SECONDS).getValue());
+        assertEquals(1, server.getMetrics().getTasksRequeued());
+        assertEquals(2, server.getMetrics().getTasksDispatched());
+        worker.close();
+        stalled.close();
+    }
+
+    private static Task receiveTask(Command command) {
+        assertEquals(CommandType.TASK, command.getType());
+        return ((TaskCommand<?>) command).getTask();
+    }
+}
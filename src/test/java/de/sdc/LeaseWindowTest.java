@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import de.sdc.commands.ResultCommand;
+import de.sdc.commands.TaskBatchCommand;
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a client which leases a window of tasks gets them without
+ * requesting every single one, also in batches and as copies of stragglers
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class LeaseWindowTest {
+
+    private Server<TestTask, TestResult> server;
+    private int port;
+
+    @Before
+    public void createServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port);
+    }
+
+    @After
+    public void closeServer() {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void theLeasedWindowIsKeptFilled() throws Exception {
+        server.start();
+        List<CompletableFuture<TestResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(server.addTask(new TestTask()));
+        }
+
+        Client client = new Client("localhost", port);
+        client.lease(3);
+        List<Task> received = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            received.add(receiveTask(client.receiveCommand()));
+        }
+        assertEquals(3, server.getTaskQueue().getRunningTaskCount());
+        assertEquals(2, server.getTaskQueue().getAvailableTaskCount());
+
+        //every result is answered with the next task
+        for (int i = 0; i < 5; i++) {
+            Task task = received.get(i);
+            client.sendResult(task, new TestResult(task.getId(), i));
+            if (i < 2) {
+                received.add(receiveTask(client.receiveCommand()));
+            }
+        }
+        for (CompletableFuture<TestResult> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(5, server.getResults().size());
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void tasksAndResultsAreSentInBatches() throws Exception {
+        server.start();
+        List<CompletableFuture<TestResult>> futures = new ArrayList<>();
+        for (int i = 0; i < 6; i++) {
+            futures.add(server.addTask(new TestTask()));
+        }
+
+        Client client = new Client("localhost", port);
+        client.lease(4, 4);
+        Command command = client.receiveCommand();
+        assertEquals(CommandType.TASK_BATCH, command.getType());
+        List<? extends Task> batch = ((TaskBatchCommand<?>) command).getTasks();
+        assertEquals(4, batch.size());
+
+        List<ResultCommand> results = new ArrayList<>();
+        for (Task task : batch) {
+            results.add(new TestResult(task.getId(), 1));
+        }
+        client.sendResults(results);
+        //only two tasks are left, so the next batch is smaller
+        command = client.receiveCommand();
+        assertEquals(CommandType.TASK_BATCH, command.getType());
+        batch = ((TaskBatchCommand<?>) command).getTasks();
+        assertEquals(2, batch.size());
+
+        results.clear();
+        for (Task task : batch) {
+            results.add(new TestResult(task.getId(), 2));
+        }
+        client.sendResults(results);
+        for (CompletableFuture<TestResult> future : futures) {
+            future.get(5, TimeUnit.SECONDS);
+        }
+        assertEquals(6, server.getResults().size());
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void aClientWithRoomInItsWindowGetsACopyOfAStraggler() throws Exception {
+        server.setSpeculativeExecution(50, TimeUnit.MILLISECONDS);
+        server.start();
+        CompletableFuture<TestResult> future = server.addTask(new TestTask());
+
+        Client slow = new Client("localhost", port);
+        slow.lease(1);
+        Task task = receiveTask(slow.receiveCommand());
+        Client fast = new Client("localhost", port);
+        fast.lease(1);
+        assertEquals(task.getId(), receiveTask(fast.receiveCommand()).getId());
+
+        fast.sendResult(task, new TestResult(task.getId(), 1));
+        assertEquals(1, future.get(5, TimeUnit.SECONDS).getValue());
+        //the result of the slow client is ignored
+        slow.sendResult(task, new TestResult(task.getId(), 2));
+        slow.close();
+        fast.close();
+        assertEquals(1, server.getResults().size());
+        assertEquals(1, server.getResults().get(0).getValue());
+    }
+
+    private static Task receiveTask(Command command) {
+        assertEquals(CommandType.TASK, command.getType());
+        return ((TaskCommand<?>) command).getTask();
+    }
+}
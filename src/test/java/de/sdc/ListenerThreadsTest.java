@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.CommandType;
+import de.sdc.commands.TaskCommand;
+import java.net.ServerSocket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests the thread factories of the listeners of the blocking engine
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class ListenerThreadsTest {
+
+    @Test(timeout = 10000)
+    public void theListenersRunInThreadsOfTheFactory() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final AtomicInteger created = new AtomicInteger();
+        final ThreadFactory platform = ListenerThreads.platform();
+        Server<TestTask, TestResult> server = new Server<>(port);
+        server.setListenerThreadFactory(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                created.incrementAndGet();
+                return platform.newThread(r);
+            }
+        });
+        server.start();
+        try {
+            CompletableFuture<TestResult> future = server.addTask(new TestTask());
+            Client client = new Client("localhost", port);
+            TaskCommand<?> command = (TaskCommand<?>) client.requestCommand();
+            assertEquals(CommandType.TASK, command.getType());
+            client.sendResult(command.getTask(), new TestResult(command.getTask().getId(), 1));
+            assertEquals(1, future.get(5, TimeUnit.SECONDS).getValue());
+            assertEquals(1, created.get());
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void virtualThreadsNeedASupportingJvm() throws Exception {
+        if (!ListenerThreads.isVirtualSupported()) {
+            try {
+                ListenerThreads.virtual();
+                fail("virtual threads were created on a jvm without them");
+            } catch (UnsupportedOperationException expected) {
+                //the server has to fall back to platform threads
+            }
+            return;
+        }
+        Thread thread = ListenerThreads.virtual().newThread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        assertNotNull(thread);
+        assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+    }
+}
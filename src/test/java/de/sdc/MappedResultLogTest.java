@@ -0,0 +1,142 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests appending and reading the results of the MappedResultLog, also after
+ * the log was torn by a crash
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class MappedResultLogTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void aContinuedLogKeepsItsResults() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MappedResultLog<TestTask, TestResult> log = new MappedResultLog<>(directory);
+        log.resultReceived(new TestTask(), new TestResult(1, 10));
+        log.resultReceived(new TestTask(), new TestResult(2, 20));
+        log.close();
+
+        log = new MappedResultLog<>(directory);
+        log.resultReceived(new TestTask(), new TestResult(3, 30));
+        assertEquals(3, log.size());
+        assertEquals(values(10, 20, 30), values(log));
+        log.close();
+    }
+
+    @Test
+    public void aResultLargerThanASegmentGetsItsOwnSegment() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MappedResultLog<TestTask, TestResult> log = new MappedResultLog<>(directory, NetworkUtil.DEFAULT_CODEC, 16);
+        log.resultReceived(new TestTask(), new TestResult(1, 10));
+        log.resultReceived(new TestTask(), new TestResult(2, 20));
+        assertEquals(values(10, 20), values(log));
+        assertEquals(2, segmentCount(directory));
+        log.close();
+    }
+
+    @Test
+    public void aTornRecordTruncatesTheLog() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        MappedResultLog<TestTask, TestResult> log = new MappedResultLog<>(directory, NetworkUtil.DEFAULT_CODEC, 4096);
+        log.resultReceived(new TestTask(), new TestResult(1, 10));
+        log.resultReceived(new TestTask(), new TestResult(2, 20));
+        log.close();
+
+        //change the last byte of the second record as if its content was
+        //only written partly
+        Path segment = directory.resolve("results-00000.log");
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            channel.read(header, 0);
+            int second = 8 + header.getInt(0);
+            header.clear();
+            channel.read(header, second);
+            int end = second + 8 + header.getInt(0);
+            ByteBuffer last = ByteBuffer.allocate(1);
+            channel.read(last, end - 1);
+            last.flip();
+            last.put(0, (byte) ~last.get(0));
+            channel.write(last, end - 1);
+        }
+
+        log = new MappedResultLog<>(directory, NetworkUtil.DEFAULT_CODEC, 4096);
+        assertEquals(1, log.size());
+        log.resultReceived(new TestTask(), new TestResult(3, 30));
+        assertEquals(values(10, 30), values(log));
+        log.close();
+
+        log = new MappedResultLog<>(directory, NetworkUtil.DEFAULT_CODEC, 4096);
+        assertEquals(values(10, 30), values(log));
+        log.close();
+    }
+
+    @Test
+    public void theIteratorSeesResultsAppendedWhileIterating() throws Exception {
+        MappedResultLog<TestTask, TestResult> log = new MappedResultLog<>(folder.getRoot().toPath());
+        log.resultReceived(new TestTask(), new TestResult(1, 10));
+        Iterator<TestResult> iterator = log.iterator();
+        assertEquals(10, iterator.next().getValue());
+        assertFalse(iterator.hasNext());
+        log.resultReceived(new TestTask(), new TestResult(2, 20));
+        assertEquals(20, iterator.next().getValue());
+        log.close();
+    }
+
+    private static List<Integer> values(int... values) {
+        List<Integer> list = new ArrayList<>();
+        for (int value : values) {
+            list.add(value);
+        }
+        return list;
+    }
+
+    private static List<Integer> values(MappedResultLog<TestTask, TestResult> log) {
+        List<Integer> list = new ArrayList<>();
+        for (TestResult result : log) {
+            list.add(result.getValue());
+        }
+        return list;
+    }
+
+    private static int segmentCount(Path directory) throws IOException {
+        int count = 0;
+        while (Files.exists(directory.resolve(String.format("results-%05d.log", count)))) {
+            count++;
+        }
+        return count;
+    }
+}
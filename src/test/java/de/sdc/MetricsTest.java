@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.ServerSocket;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the latency histogram and the metrics the server collects
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class MetricsTest {
+
+    private Server<TestTask, TestResult> server;
+    private int port;
+
+    @Before
+    public void createServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port);
+    }
+
+    @After
+    public void closeServer() {
+        server.close();
+    }
+
+    @Test
+    public void theHistogramIsOffByAtMostTheBucketWidth() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getP50());
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500500, histogram.getMean(), 0.001);
+        assertEquals(1000000, histogram.getMax());
+        assertClose(500000, histogram.getP50());
+        assertClose(990000, histogram.getP99());
+        assertEquals(1000000, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void smallDurationsAreExact() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 16; i++) {
+            histogram.record(i);
+        }
+        histogram.record(-5);
+        assertEquals(17, histogram.getCount());
+        assertEquals(0, histogram.getPercentile(10));
+        assertEquals(7, histogram.getP50());
+        assertEquals(15, histogram.getMax());
+    }
+
+    @Test
+    public void theMetricsAreDisabledByDefault() {
+        assertNull(server.getMetrics());
+    }
+
+    @Test(timeout = 10000)
+    public void theServerCountsTheTasksAndFrames() throws Exception {
+        server.setMetricsEnabled(true);
+        server.start();
+        for (int i = 0; i < 10; i++) {
+            server.addTask(new TestTask());
+        }
+        Metrics metrics = server.getMetrics();
+        assertEquals(10, metrics.getAvailableTasks());
+
+        Client client = new Client("localhost", port);
+        for (int i = 0; i < 10; i++) {
+            Task task = ((TaskCommand<?>) client.requestCommand()).getTask();
+            client.sendResult(task, new TestResult(task.getId(), i));
+        }
+        server.whenAllTasksFinished().get(5, TimeUnit.SECONDS);
+        assertEquals(10, metrics.getTasksDispatched());
+        assertEquals(10, metrics.getResultsReceived());
+        assertEquals(10, metrics.getFinishedTasks());
+        assertEquals(0, metrics.getRunningTasks());
+        assertEquals(1, metrics.getConnectedClients());
+        assertEquals(10, metrics.getQueueWait().getCount());
+        assertEquals(10, metrics.getDispatchLatency().getCount());
+        assertTrue(metrics.getFramesSent() >= 10);
+        assertTrue(metrics.getFramesReceived() >= 20);
+        assertTrue(metrics.getBytesSent() > 0);
+        assertTrue(metrics.getBytesReceived() > 0);
+
+        SortedMap<String, Number> snapshot = metrics.snapshot();
+        assertEquals(10L, snapshot.get("results.received"));
+        assertEquals(10L, snapshot.get("latency.dispatch.count"));
+        int id = server.getClientStatistics().get(0).getClientId();
+        assertEquals(10L, snapshot.get("client." + id + ".completed"));
+        client.close();
+    }
+
+    @Test(timeout = 10000)
+    public void aTaskOfALostClientIsCountedAsRequeued() throws Exception {
+        server.setMetricsEnabled(true);
+        server.start();
+        server.addTask(new TestTask());
+
+        Client client = new Client("localhost", port);
+        client.requestCommand();
+        client.close();
+        while (server.getTaskQueue().getAvailableTaskCount() == 0) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, server.getMetrics().getTasksRequeued());
+    }
+
+    @Test
+    public void theMetricsAreRegisteredWhileTheServerRuns() throws Exception {
+        server.setMetricsEnabled(true);
+        MBeanServer beans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("de.sdc:type=Server,port=" + port);
+        assertFalse(beans.isRegistered(name));
+        server.start();
+        assertTrue(beans.isRegistered(name));
+        server.close();
+        assertFalse(beans.isRegistered(name));
+    }
+
+    private static void assertClose(long expected, long actual) {
+        assertTrue(expected + " != " + actual, Math.abs(actual - expected) <= expected / 16);
+    }
+}
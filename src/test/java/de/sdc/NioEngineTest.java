@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import de.sdc.commands.TaskCommand;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the selector based engine of the server, also that a client which
+ * misbehaves only closes its own connection
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class NioEngineTest {
+
+    private Server<TestTask, TestResult> server;
+    private int port;
+
+    @Before
+    public void startServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port, ServerEngine.NIO);
+        server.start();
+    }
+
+    @After
+    public void closeServer() {
+        server.close();
+    }
+
+    @Test(timeout = 10000)
+    public void clientsRequestTasksAndSendResults() throws Exception {
+        CompletableFuture<TestResult> first = server.addTask(new TestTask());
+        CompletableFuture<TestResult> second = server.addTask(new TestTask());
+
+        Client one = new Client("localhost", port);
+        Client two = new Client("localhost", port);
+        Task task = receiveTask(one.requestCommand());
+        Task other = receiveTask(two.requestCommand());
+        one.sendResult(task, new TestResult(task.getId(), 1));
+        two.sendResult(other, new TestResult(other.getId(), 2));
+
+        assertEquals(3, first.get(5, TimeUnit.SECONDS).getValue() + second.get(5, TimeUnit.SECONDS).getValue());
+        assertEquals(2, server.getResults().size());
+        one.close();
+        two.close();
+    }
+
+    @Test(timeout = 10000)
+    public void aCustomCommandWithoutHandlerOnlyClosesItsConnection() throws Exception {
+        Client failing = new Client("localhost", port);
+        failing.sendCommand(new PingCommand());
+        expectClosed(failing);
+
+        //the event loop still serves the other clients
+        CompletableFuture<TestResult> future = server.addTask(new TestTask());
+        Client worker = new Client("localhost", port);
+        Task task = receiveTask(worker.requestCommand());
+        worker.sendResult(task, new TestResult(task.getId(), 7));
+        assertEquals(7, future.get(5, TimeUnit.SECONDS).getValue());
+        worker.close();
+    }
+
+    @Test(timeout = 10000)
+    public void aFrameLongerThanTheMaximumClosesTheConnection() throws Exception {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setSoTimeout(5000);
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            out.writeInt(NetworkUtil.MAX_FRAME_LENGTH + 1);
+            out.flush();
+            //the server closes the connection instead of allocating the frame
+            assertEquals(-1, socket.getInputStream().read());
+        }
+
+        CompletableFuture<TestResult> future = server.addTask(new TestTask());
+        Client worker = new Client("localhost", port);
+        Task task = receiveTask(worker.requestCommand());
+        worker.sendResult(task, new TestResult(task.getId(), 8));
+        assertEquals(8, future.get(5, TimeUnit.SECONDS).getValue());
+        worker.close();
+    }
+
+    private static void expectClosed(Client client) throws IOException {
+        try {
+            client.receiveCommand();
+            fail("the server didn't close the connection");
+        } catch (IOException expected) {
+            //the server closed the connection
+        } finally {
+            client.close();
+        }
+    }
+
+    private static Task receiveTask(Command command) {
+        assertEquals(CommandType.TASK, command.getType());
+        return ((TaskCommand<?>) command).getTask();
+    }
+
+    /**
+     * a custom command the server has no handler for
+     */
+    private static class PingCommand extends Command {
+
+        private static final long serialVersionUID = 1L;
+
+        PingCommand() {
+            super(CommandType.CUSTOM);
+        }
+    }
+}
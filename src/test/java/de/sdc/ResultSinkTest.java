@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.TaskCommand;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * Tests that the results are handed to a result sink, by an executor with a
+ * limited number of pending results
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class ResultSinkTest {
+
+    private final TaskQueue<TestTask, TestResult> queue = new TaskQueue<>();
+    private final List<TestResult> received = Collections.synchronizedList(new ArrayList<TestResult>());
+    private final ResultSink<TestTask, TestResult> sink = new ResultSink<TestTask, TestResult>() {
+        @Override
+        public void resultReceived(TestTask task, TestResult result) {
+            received.add(result);
+        }
+    };
+
+    @Test
+    public void theExecutorHandsTheResultsToTheSink() {
+        DeferredExecutor executor = new DeferredExecutor();
+        queue.setResultSink(sink, executor, 2);
+        TestTask task = new TestTask();
+        CompletableFuture<TestResult> future = queue.addTask(task);
+
+        assertTrue(queue.finishTask(queue.pollTask(), new TestResult(task.getId(), 1)));
+        //the task is finished once the sink has the result
+        assertFalse(future.isDone());
+        assertFalse(queue.allTasksFinished());
+        executor.runAll();
+        assertEquals(1, future.join().getValue());
+        assertEquals(1, received.size());
+        assertTrue(queue.allTasksFinished());
+        //the results are not collected in memory
+        assertTrue(queue.getResults().isEmpty());
+    }
+
+    @Test
+    public void theBacklogIsDrainedByTheExecutor() {
+        DeferredExecutor executor = new DeferredExecutor();
+        queue.setResultSink(sink, executor, 2);
+        for (int i = 0; i < 3; i++) {
+            queue.addTask(new TestTask());
+        }
+        TestTask first = queue.pollTask();
+        queue.finishTask(first, new TestResult(first.getId(), 1));
+        assertFalse(queue.hasResultBacklog());
+        TestTask second = queue.pollTask();
+        queue.finishTask(second, new TestResult(second.getId(), 2));
+        assertTrue(queue.hasResultBacklog());
+        //a listener that mustn't wait takes a permit anyway
+        TestTask third = queue.pollTask();
+        assertTrue(queue.finishTask(third, new TestResult(third.getId(), 3), false));
+
+        final AtomicInteger drained = new AtomicInteger();
+        queue.whenResultBacklogDrained(new Runnable() {
+            @Override
+            public void run() {
+                drained.incrementAndGet();
+            }
+        });
+        executor.runNext();
+        assertTrue(queue.hasResultBacklog());
+        assertEquals(0, drained.get());
+        executor.runNext();
+        assertFalse(queue.hasResultBacklog());
+        assertEquals(1, drained.get());
+        executor.runAll();
+        assertEquals(3, received.size());
+        assertEquals(1, drained.get());
+        assertTrue(queue.allTasksFinished());
+
+        //a waiter is run at once if there is no backlog
+        queue.whenResultBacklogDrained(new Runnable() {
+            @Override
+            public void run() {
+                drained.incrementAndGet();
+            }
+        });
+        assertEquals(2, drained.get());
+    }
+
+    @Test(timeout = 10000)
+    public void theServerHandsTheResultsOfTheClientsToTheSink() throws Exception {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        Server<TestTask, TestResult> server = new Server<>(port);
+        try {
+            server.setResultSink(sink);
+            server.start();
+            TestTask task = new TestTask();
+            CompletableFuture<TestResult> future = server.addTask(task);
+
+            Client client = new Client("localhost", port);
+            Task leased = ((TaskCommand<?>) client.requestCommand()).getTask();
+            assertEquals(task.getId(), leased.getId());
+            client.sendResult(leased, new TestResult(leased.getId(), 7));
+            assertEquals(7, future.get(5, TimeUnit.SECONDS).getValue());
+            assertEquals(1, received.size());
+            assertTrue(server.getResults().isEmpty());
+            client.close();
+        } finally {
+            server.close();
+        }
+    }
+
+    /**
+     * an executor that runs the submitted results when the test wants
+     */
+    private static class DeferredExecutor implements Executor {
+
+        private final List<Runnable> pending = new ArrayList<>();
+
+        @Override
+        public void execute(Runnable command) {
+            pending.add(command);
+        }
+
+        void runNext() {
+            pending.remove(0).run();
+        }
+
+        void runAll() {
+            while (!pending.isEmpty()) {
+                runNext();
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.CRC32;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the recovery of the TaskJournal, also from journals whose last record
+ * is torn or corrupt
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class TaskJournalTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replayRestoresUnfinishedAndFinishedTasks() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestTask first = new TestTask();
+        TestTask second = new TestTask();
+        TestTask third = new TestTask();
+        TaskJournal journal = new TaskJournal(directory);
+        journal.recover();
+        journal.taskAdded(first);
+        journal.taskAdded(second);
+        journal.taskAdded(third);
+        journal.taskDispatched(second);
+        journal.taskFinished(second);
+        journal.flush();
+        journal.close();
+
+        TaskJournal.Recovery recovery = recover(directory);
+        assertEquals(ids(first, third), ids(recovery));
+        assertEquals(ids(second), recovery.finishedTaskIds);
+        assertEquals(third.getId(), recovery.highestTaskId);
+    }
+
+    @Test
+    public void replayStopsAtATornRecord() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestTask kept = new TestTask();
+        TestTask torn = new TestTask();
+        TaskJournal journal = new TaskJournal(directory);
+        journal.recover();
+        journal.taskAdded(kept);
+        journal.taskAdded(torn);
+        journal.flush();
+        journal.close();
+
+        //cut the last record in half as if the server died while writing it
+        Path file = lastJournalFile(directory);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 10);
+        }
+
+        TaskJournal.Recovery recovery = recover(directory);
+        assertEquals(ids(kept), ids(recovery));
+    }
+
+    @Test
+    public void replayStopsAtARecordThatIsNoEvent() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestTask kept = new TestTask();
+        TaskJournal journal = new TaskJournal(directory);
+        journal.recover();
+        journal.taskAdded(kept);
+        journal.flush();
+        journal.close();
+
+        //a record with a valid checksum that doesn't contain an event
+        Codec.Encoder encoder = NetworkUtil.DEFAULT_CODEC.createEncoder();
+        int length = encoder.encode("foreign record");
+        CRC32 crc = new CRC32();
+        crc.update(encoder.getBuffer(), 0, length);
+        ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.putInt(length).putInt((int) crc.getValue()).put(encoder.getBuffer(), 0, length);
+        record.flip();
+        try (FileChannel channel = FileChannel.open(lastJournalFile(directory), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(record);
+        }
+
+        TaskJournal.Recovery recovery = recover(directory);
+        assertEquals(ids(kept), ids(recovery));
+    }
+
+    @Test
+    public void snapshotKeepsTheHighestTaskId() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        TestTask unfinished = new TestTask();
+        TestTask finished = new TestTask();
+        TaskJournal journal = new TaskJournal(directory, NetworkUtil.DEFAULT_CODEC, 2);
+        journal.recover();
+        journal.taskAdded(unfinished);
+        journal.taskAdded(finished);
+        journal.taskFinished(finished);
+        journal.flush();
+        journal.close();
+
+        TaskJournal.Recovery recovery = recover(directory);
+        assertEquals(ids(unfinished), ids(recovery));
+        assertEquals(finished.getId(), recovery.highestTaskId);
+        assertTrue(recovery.finishedTaskIds.contains(finished.getId()));
+    }
+
+    @Test
+    public void aTaskThatCantBeEncodedFailsTheFlush() throws Exception {
+        TaskJournal journal = new TaskJournal(folder.getRoot().toPath());
+        journal.recover();
+        try {
+            journal.taskAdded(new UnserializableTask());
+            try {
+                journal.flush();
+                fail("the journal recorded a task that can't be encoded");
+            } catch (IOException expected) {
+                //the writer thread recorded the failure and woke the flush
+            }
+        } finally {
+            journal.close();
+        }
+    }
+
+    @Test
+    public void theServerOnlyAcceptsAJournalWithAResultSink() throws Exception {
+        Server<TestTask, TestResult> server = new Server<>(0);
+        TaskJournal journal = new TaskJournal(folder.newFolder("journal").toPath());
+        try {
+            try {
+                server.setJournal(journal);
+                fail("the journal was accepted although the results are only kept in memory");
+            } catch (IllegalStateException expected) {
+                //the results would be lost in a crash
+            }
+            server.setResultSink(new MappedResultLog<TestTask, TestResult>(folder.newFolder("results").toPath()));
+            server.setJournal(journal);
+        } finally {
+            server.close();
+        }
+    }
+
+    private static TaskJournal.Recovery recover(Path directory) throws IOException {
+        TaskJournal journal = new TaskJournal(directory);
+        try {
+            return journal.recover();
+        } finally {
+            journal.close();
+        }
+    }
+
+    private static Set<Integer> ids(Task... tasks) {
+        Set<Integer> ids = new HashSet<>();
+        for (Task task : tasks) {
+            ids.add(task.getId());
+        }
+        return ids;
+    }
+
+    private static Set<Integer> ids(TaskJournal.Recovery recovery) {
+        return ids(recovery.unfinishedTasks.toArray(new Task[0]));
+    }
+
+    private static class UnserializableTask extends TestTask {
+
+        private static final long serialVersionUID = 1L;
+
+        private void writeObject(ObjectOutputStream out) {
+            throw new IllegalStateException("this task can't be encoded");
+        }
+    }
+
+    private static Path lastJournalFile(Path directory) throws IOException {
+        Path last = null;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "journal-*")) {
+            for (Path file : stream) {
+                if (Files.size(file) > 0 && (last == null || file.getFileName().toString().compareTo(last.getFileName().toString()) > 0)) {
+                    last = file;
+                }
+            }
+        }
+        return last;
+    }
+}
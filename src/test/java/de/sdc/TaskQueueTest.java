@@ -0,0 +1,443 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Test;
+
+/**
+ * Tests adding, finishing and releasing tasks of the TaskQueue
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class TaskQueueTest {
+
+    private final TaskQueue<TestTask, TestResult> queue = new TaskQueue<>();
+
+    @Test
+    public void addingATaskTwiceReturnsThePendingFuture() {
+        TestTask task = new TestTask();
+        CompletableFuture<TestResult> first = queue.addTask(task);
+        CompletableFuture<TestResult> second = queue.addTask(task);
+
+        assertSame(first, second);
+        assertEquals(1, queue.getUnfinishedTaskCount());
+        assertEquals(1, queue.getAvailableTaskCount());
+        assertSame(task, queue.pollTask());
+        assertNull(queue.pollTask());
+
+        TestResult result = new TestResult(task.getId(), 1);
+        assertTrue(queue.finishTask(task, result));
+        assertSame(result, first.join());
+        assertTrue(queue.allTasksFinished());
+    }
+
+    @Test(timeout = 10000)
+    public void aWaitingTakerIsWokenByAnAddedTask() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<TestTask> taken = take(executor);
+            try {
+                taken.get(100, TimeUnit.MILLISECONDS);
+                fail("a task was taken from an empty queue");
+            } catch (TimeoutException expected) {
+                //the taker is parked until a task is added
+            }
+            TestTask task = new TestTask();
+            queue.addTask(task);
+            assertSame(task, taken.get(5, TimeUnit.SECONDS));
+            assertEquals(1, queue.getRunningTaskCount());
+            assertEquals(0, queue.getAvailableTaskCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void aWaitingTakerCanBeInterrupted() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<TestTask> taken = take(executor);
+        executor.shutdownNow();
+        try {
+            taken.get(5, TimeUnit.SECONDS);
+            fail("the interrupted taker returned a task");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof InterruptedException);
+        }
+        //the task isn't lost to the interrupted taker
+        TestTask task = new TestTask();
+        queue.addTask(task);
+        assertSame(task, queue.pollTask());
+    }
+
+    @Test
+    public void queuesOfDifferentServersAreIndependent() {
+        TaskQueue<TestTask, TestResult> other = new TaskQueue<>();
+        queue.addTask(new TestTask());
+
+        assertEquals(0, other.getUnfinishedTaskCount());
+        assertNull(other.pollTask());
+        assertEquals(-1d, other.getProgress(), 0d);
+        assertEquals(1, queue.getAvailableTaskCount());
+    }
+
+    @Test
+    public void onlyTheResultOfARunningTaskIsTaken() {
+        TestTask task = new TestTask();
+        CompletableFuture<TestResult> future = queue.addTask(task);
+        assertFalse(queue.finishTask(task, new TestResult(task.getId(), 1)));
+
+        assertSame(task, queue.pollTask());
+        //the client disconnected, the task is available again
+        queue.setTaskAvailable(task);
+        assertEquals(0, queue.getRunningTaskCount());
+        assertFalse(queue.finishTask(task, new TestResult(task.getId(), 2)));
+
+        assertSame(task, queue.pollTask());
+        assertTrue(queue.finishTask(task, new TestResult(task.getId(), 3)));
+        assertFalse(queue.finishTask(task, new TestResult(task.getId(), 4)));
+        assertEquals(3, future.join().getValue());
+        assertEquals(1, queue.getResults().size());
+        assertEquals(1d, queue.getProgress(), 0d);
+    }
+
+    @Test(timeout = 30000)
+    public void concurrentWorkersFinishEveryTaskOnce() throws Exception {
+        final int tasks = 10000;
+        int workers = 4;
+        for (int i = 0; i < tasks; i++) {
+            queue.addTask(new TestTask());
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            List<Future<Integer>> finished = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                finished.add(executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() {
+                        int count = 0;
+                        for (TestTask task = queue.pollTask(); task != null; task = queue.pollTask()) {
+                            if (queue.finishTask(task, new TestResult(task.getId(), 0))) {
+                                count++;
+                            }
+                        }
+                        return count;
+                    }
+                }));
+            }
+            int total = 0;
+            for (Future<Integer> count : finished) {
+                total += count.get();
+            }
+            assertEquals(tasks, total);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(tasks, queue.getFinishedTaskCount());
+        assertEquals(0, queue.getUnfinishedTaskCount());
+        assertEquals(tasks, queue.getResults().size());
+        assertTrue(queue.whenAllTasksFinished().isDone());
+    }
+
+    @Test
+    public void finishingAPredecessorReleasesItsDependents() {
+        TestTask first = new TestTask();
+        TestTask second = new TestTask();
+        TestTask dependent = new TestTask(true, first.getId(), second.getId());
+        queue.addTask(first);
+        queue.addTask(second);
+        queue.addTask(dependent);
+
+        assertEquals(1, queue.getBlockedTaskCount());
+        List<TestTask> polled = new ArrayList<>();
+        assertEquals(2, queue.pollTasks(3, polled));
+        assertFalse(polled.contains(dependent));
+
+        queue.finishTask(first, new TestResult(first.getId(), 1));
+        assertEquals(1, queue.getBlockedTaskCount());
+        assertNull(queue.pollTask());
+
+        queue.finishTask(second, new TestResult(second.getId(), 2));
+        assertEquals(0, queue.getBlockedTaskCount());
+        assertSame(dependent, queue.pollTask());
+        assertEquals(2, dependent.getPredecessorResults().size());
+        assertEquals(1, ((TestResult) dependent.getPredecessorResults().get(first.getId())).getValue());
+        assertEquals(2, ((TestResult) dependent.getPredecessorResults().get(second.getId())).getValue());
+    }
+
+    @Test
+    public void aTaskAddedAfterItsPredecessorFinishedIsAvailable() {
+        TestTask predecessor = new TestTask();
+        queue.addTask(predecessor);
+        queue.finishTask(queue.pollTask(), new TestResult(predecessor.getId(), 3));
+
+        TestTask dependent = new TestTask(true, predecessor.getId());
+        queue.addTask(dependent);
+
+        assertEquals(0, queue.getBlockedTaskCount());
+        assertSame(dependent, queue.pollTask());
+        assertEquals(3, ((TestResult) dependent.getPredecessorResults().get(predecessor.getId())).getValue());
+    }
+
+    @Test
+    public void aTaskNeedingTheResultOfAPredecessorHandedToTheSinkIsRejected() {
+        final List<TestResult> received = new ArrayList<>();
+        queue.setResultSink(new ResultSink<TestTask, TestResult>() {
+            @Override
+            public void resultReceived(TestTask task, TestResult result) {
+                received.add(result);
+            }
+        }, null, 1);
+        TestTask predecessor = new TestTask();
+        queue.addTask(predecessor);
+        queue.finishTask(queue.pollTask(), new TestResult(predecessor.getId(), 6));
+        assertEquals(1, received.size());
+
+        try {
+            queue.addTask(new TestTask(true, predecessor.getId()));
+            fail("the result of the predecessor is only in the sink");
+        } catch (IllegalArgumentException expected) {
+            //the dependent has to be added before the predecessor finishes
+        }
+        //a task that doesn't need the result can still be added
+        TestTask dependent = new TestTask(predecessor.getId());
+        queue.addTask(dependent);
+        assertSame(dependent, queue.pollTask());
+    }
+
+    @Test
+    public void theDependentsOfARejectedResultFail() {
+        queue.setResultSink(new ResultSink<TestTask, TestResult>() {
+            @Override
+            public void resultReceived(TestTask task, TestResult result) throws IOException {
+                throw new IOException("the sink is full");
+            }
+        }, null, 1);
+        TestTask predecessor = new TestTask();
+        TestTask dependent = new TestTask(predecessor.getId());
+        TestTask indirect = new TestTask(dependent.getId());
+        queue.addTask(predecessor);
+        CompletableFuture<TestResult> dependentFuture = queue.addTask(dependent);
+        CompletableFuture<TestResult> indirectFuture = queue.addTask(indirect);
+
+        queue.finishTask(queue.pollTask(), new TestResult(predecessor.getId(), 5));
+        assertTrue(dependentFuture.isCompletedExceptionally());
+        assertTrue(indirectFuture.isCompletedExceptionally());
+        assertEquals(0, queue.getBlockedTaskCount());
+        assertNull(queue.pollTask());
+        assertTrue(queue.allTasksFinished());
+
+        //a dependent added later fails as well
+        CompletableFuture<TestResult> late = queue.addTask(new TestTask(predecessor.getId()));
+        assertTrue(late.isCompletedExceptionally());
+        assertTrue(queue.allTasksFinished());
+    }
+
+    @Test
+    public void aDependentOfATaskThatIsNotAddedIsRejected() {
+        TestTask predecessor = new TestTask();
+        TestTask dependent = new TestTask(predecessor.getId());
+        try {
+            queue.addTask(dependent);
+            fail("the dependent would wait forever if the predecessor is never added");
+        } catch (IllegalArgumentException expected) {
+            //the predecessor has to be added first
+        }
+
+        assertEquals(0, queue.getUnfinishedTaskCount());
+        assertEquals(0, queue.getBlockedTaskCount());
+        queue.addTask(predecessor);
+        queue.addTask(dependent);
+        assertSame(predecessor, queue.pollTask());
+        assertNull(queue.pollTask());
+        queue.finishTask(predecessor, new TestResult(predecessor.getId(), 4));
+        assertSame(dependent, queue.pollTask());
+    }
+
+    @Test
+    public void tasksWithAHigherPriorityAreDispatchedFirst() {
+        queue.setPriorityAging(1, TimeUnit.HOURS);
+        TestTask low = new TestTask();
+        TestTask normal = new TestTask();
+        TestTask high = new TestTask();
+        queue.addTask(low, -1);
+        queue.addTask(normal);
+        queue.addTask(high, 1);
+
+        assertSame(high, queue.pollTask());
+        assertSame(normal, queue.pollTask());
+        assertSame(low, queue.pollTask());
+    }
+
+    @Test
+    public void tasksOfTheSamePriorityAreDispatchedInOrder() {
+        List<TestTask> tasks = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            tasks.add(new TestTask());
+            queue.addTask(tasks.get(i));
+        }
+        for (TestTask task : tasks) {
+            assertSame(task, queue.pollTask());
+        }
+    }
+
+    @Test
+    public void aWaitingTaskOvertakesHigherPrioritiesByAging() throws InterruptedException {
+        queue.setPriorityAging(10, TimeUnit.MILLISECONDS);
+        TestTask old = new TestTask();
+        queue.addTask(old);
+        Thread.sleep(50);
+        TestTask newer = new TestTask();
+        queue.addTask(newer, 2);
+
+        assertSame(old, queue.pollTask());
+        assertSame(newer, queue.pollTask());
+    }
+
+    @Test
+    public void aReleasedTaskKeepsItsPriority() {
+        queue.setPriorityAging(1, TimeUnit.HOURS);
+        TestTask predecessor = new TestTask();
+        TestTask waiting = new TestTask();
+        TestTask dependent = new TestTask(predecessor.getId());
+        queue.addTask(predecessor);
+        queue.addTask(waiting);
+        queue.addTask(dependent, 3);
+        queue.finishTask(queue.pollTask(), new TestResult(predecessor.getId(), 1));
+
+        assertSame(dependent, queue.pollTask());
+        assertSame(waiting, queue.pollTask());
+    }
+
+    @Test
+    public void tasksOfANamedQueueGetItsPriority() {
+        queue.setPriorityAging(1, TimeUnit.HOURS);
+        queue.addQueue("background", -5);
+        queue.addQueue("interactive", 5);
+        TestTask background = new TestTask();
+        TestTask normal = new TestTask();
+        TestTask interactive = new TestTask();
+        queue.addTask(background, "background");
+        queue.addTask(normal);
+        queue.addTask(interactive, "interactive");
+
+        assertSame(interactive, queue.pollTask());
+        assertSame(normal, queue.pollTask());
+        assertSame(background, queue.pollTask());
+        try {
+            queue.addTask(new TestTask(), "unknown");
+            fail("a task was added to a queue that doesn't exist");
+        } catch (IllegalArgumentException expected) {
+            //the queue has to be added first
+        }
+        assertEquals(0, queue.getAvailableTaskCount());
+    }
+
+    @Test
+    public void aStragglerIsCopiedOnce() throws InterruptedException {
+        queue.setStragglerThreshold(20, TimeUnit.MILLISECONDS);
+        TestTask task = new TestTask();
+        CompletableFuture<TestResult> future = queue.addTask(task);
+        assertSame(task, queue.pollTask());
+        assertNull(queue.pollStraggler(Collections.<Integer>emptySet()));
+
+        Thread.sleep(50);
+        //the client that runs the task already doesn't get a copy
+        assertNull(queue.pollStraggler(Collections.singleton(task.getId())));
+        assertSame(task, queue.pollStraggler(Collections.<Integer>emptySet()));
+        assertNull(queue.pollStraggler(Collections.<Integer>emptySet()));
+
+        //the first result is taken, the one of the copy is ignored
+        assertTrue(queue.finishTask(task, new TestResult(task.getId(), 1)));
+        assertFalse(queue.finishTask(task, new TestResult(task.getId(), 2)));
+        assertEquals(1, future.join().getValue());
+        assertEquals(1, queue.getFinishedTaskCount());
+        assertTrue(queue.allTasksFinished());
+    }
+
+    @Test
+    public void aFinishedTaskIsNotCopied() throws InterruptedException {
+        queue.setStragglerThreshold(20, TimeUnit.MILLISECONDS);
+        TestTask task = new TestTask();
+        queue.addTask(task);
+        queue.finishTask(queue.pollTask(), new TestResult(task.getId(), 1));
+
+        Thread.sleep(50);
+        assertNull(queue.pollStraggler(Collections.<Integer>emptySet()));
+    }
+
+    @Test
+    public void withoutSpeculativeExecutionNothingIsCopied() throws InterruptedException {
+        TestTask task = new TestTask();
+        queue.addTask(task);
+        queue.pollTask();
+
+        Thread.sleep(50);
+        assertNull(queue.pollStraggler(Collections.<Integer>emptySet()));
+    }
+
+    @Test(timeout = 10000)
+    public void aWaitingTakerGetsACopyOfAStraggler() throws Exception {
+        queue.setStragglerThreshold(20, TimeUnit.MILLISECONDS);
+        TestTask task = new TestTask();
+        queue.addTask(task);
+        queue.pollTask();
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            assertSame(task, take(executor).get(5, TimeUnit.SECONDS));
+            assertEquals(1, queue.getRunningTaskCount());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * takes a task in another thread and returns once the thread is about to
+     * wait for it
+     */
+    private Future<TestTask> take(ExecutorService executor) throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        Future<TestTask> taken = executor.submit(new Callable<TestTask>() {
+            @Override
+            public TestTask call() throws InterruptedException {
+                started.countDown();
+                return queue.takeTask();
+            }
+        });
+        started.await();
+        return taken;
+    }
+}
@@ -0,0 +1,40 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.ResultCommand;
+
+/**
+ * A result for the tests that carries a single value
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class TestResult extends ResultCommand {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int value;
+
+    public TestResult(int taskId, int value) {
+        setTaskId(taskId);
+        this.value = value;
+    }
+
+    public int getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * A task for the tests that may depend on other tasks
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class TestTask extends Task {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ArrayList<Integer> predecessors;
+    private final boolean needsResults;
+
+    public TestTask(Integer... predecessors) {
+        this(false, predecessors);
+    }
+
+    public TestTask(boolean needsResults, Integer... predecessors) {
+        this.predecessors = new ArrayList<>(Arrays.asList(predecessors));
+        this.needsResults = needsResults;
+    }
+
+    @Override
+    public Collection<Integer> getPredecessors() {
+        return predecessors;
+    }
+
+    @Override
+    public boolean needsPredecessorResults() {
+        return needsResults;
+    }
+}
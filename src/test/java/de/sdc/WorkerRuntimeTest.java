@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2015 Michael Pietsch (Skywalker-11)
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.sdc;
+
+import de.sdc.commands.Command;
+import de.sdc.commands.CommandType;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that a WorkerRuntime runs the tasks of a server on several threads
+ * and gives them back if the executor fails
+ *
+ * @author Michael Pietsch (Skywalker-11)
+ */
+public class WorkerRuntimeTest {
+
+    private Server<TestTask, TestResult> server;
+    private int port;
+    private ExecutorService executor;
+
+    @Before
+    public void createServer() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        server = new Server<>(port);
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void closeServer() {
+        executor.shutdownNow();
+        server.close();
+    }
+
+    @Test(timeout = 20000)
+    public void theTasksAreRunOnSeveralThreads() throws Exception {
+        server.setInitializer(new InitializerTest.TestInitializer("shared"));
+        server.start();
+        for (int i = 0; i < 50; i++) {
+            server.addTask(new TestTask());
+        }
+        final Set<String> threads = Collections.synchronizedSet(new HashSet<String>());
+        final Set<String> initializers = Collections.synchronizedSet(new HashSet<String>());
+        WorkerRuntime<TestTask, TestResult> runtime = new WorkerRuntime<>(new Client("localhost", port), new TaskExecutor<TestTask, TestResult>() {
+            @Override
+            public TestResult execute(TestTask task, Initializer initializer) throws InterruptedException {
+                threads.add(Thread.currentThread().getName());
+                initializers.add(((InitializerTest.TestInitializer) initializer).getName());
+                Thread.sleep(2);
+                return new TestResult(0, task.getId());
+            }
+        }, 4);
+        Future<Void> run = run(runtime);
+
+        server.whenAllTasksFinished().get(10, TimeUnit.SECONDS);
+        assertEquals(50, server.getResults().size());
+        //the runtime sets the id of the task
+        for (TestResult result : server.getResults()) {
+            assertEquals(result.getValue(), result.getTaskId());
+        }
+        assertTrue("only one thread was used", threads.size() > 1);
+        assertEquals(Collections.singleton("shared"), initializers);
+
+        runtime.close();
+        run.get(5, TimeUnit.SECONDS);
+        assertNull(runtime.getFailure());
+    }
+
+    @Test(timeout = 20000)
+    public void theTasksOfAFailedExecutorAreGivenBack() throws Exception {
+        server.start();
+        server.addTask(new TestTask());
+        final IllegalStateException error = new IllegalStateException("the executor failed");
+        WorkerRuntime<TestTask, TestResult> runtime = new WorkerRuntime<>(new Client("localhost", port), new TaskExecutor<TestTask, TestResult>() {
+            @Override
+            public TestResult execute(TestTask task, Initializer initializer) {
+                throw error;
+            }
+        }, 2);
+        Future<Void> run = run(runtime);
+        try {
+            run.get(5, TimeUnit.SECONDS);
+            fail("the failure of the executor wasn't thrown");
+        } catch (ExecutionException expected) {
+            assertTrue(expected.getCause() instanceof IOException);
+            assertSame(error, expected.getCause().getCause());
+        }
+        assertSame(error, runtime.getFailure());
+
+        //another client gets the task
+        Client client = new Client("localhost", port);
+        Command command = client.requestCommand();
+        assertEquals(CommandType.TASK, command.getType());
+        client.close();
+    }
+
+    private Future<Void> run(final WorkerRuntime<TestTask, TestResult> runtime) {
+        return executor.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws IOException {
+                runtime.run();
+                return null;
+            }
+        });
+    }
+}